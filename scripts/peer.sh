@@ -9,7 +9,7 @@
 #  from the root of the compiled tree
 
 if [ "$#" -lt 3 ]; then
-  echo "Usage: $0 <svc_access_point> <boot ip> <boot port> [-b]"
+  echo "Usage: $0 <svc_access_point> <boot ip> <boot port> [-b] [-v]"
   exit 1
 fi
 
@@ -18,11 +18,12 @@ fi
 sap=$1
 ip=$2
 port=$3
-boot=$4
+shift 3
+flags="$*"
 
 # Execute the program
 # Should not need to change anything but the class and its package, unless you use any jar file
 
 # echo "java peer.Peer ${ver} ${id} ${sap} ${mc_addr} ${mc_port} ${mdb_addr} ${mdb_port} ${mdr_addr} ${mdr_port}"
 
-java -cp .:./../lib/log4j-api-2.14.1.jar:./../lib/log4j-core-2.14.1.jar peer.Peer ${sap} ${ip} ${port} ${boot}
+java -cp .:./../lib/log4j-api-2.14.1.jar:./../lib/log4j-core-2.14.1.jar peer.Peer ${sap} ${ip} ${port} ${flags}
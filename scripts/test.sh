@@ -24,19 +24,19 @@ oper=$2
 
 case $oper in
 BACKUP)
-  if [ "$#" -ne 4 ]; then
-    echo "Usage: $0 <peer_ap> BACKUP <filename> <rep degree>"
+  if [ "$#" -ne 4 ] && [ "$#" -ne 5 ]; then
+    echo "Usage: $0 <peer_ap> BACKUP <filename> <rep degree> [chain]|<k>+<m>"
     exit 1
   fi
   opernd_1=$3
-  rep_deg=$4
+  rep_deg="$4 $5"
   ;;
 RESTORE)
-  if [ "$#" -ne 3 ]; then
-    echo "Usage: $0 <peer_ap> RESTORE <filename>"
+  if [ "$#" -ne 3 ] && [ "$#" -ne 5 ]; then
+    echo "Usage: $0 <peer_ap> RESTORE <filename> [<offset> <length>]"
   fi
   opernd_1=$3
-  rep_deg=""
+  rep_deg="$4 $5"
   ;;
 DELETE)
   if [ "$#" -ne 3 ]; then
@@ -47,12 +47,12 @@ DELETE)
   rep_deg=""
   ;;
 RECLAIM)
-  if [ "$#" -ne 3 ]; then
-    echo "Usage: $0 <peer_ap> RECLAIM <max space>"
+  if [ "$#" -ne 3 ] && [ "$#" -ne 4 ]; then
+    echo "Usage: $0 <peer_ap> RECLAIM <max space> [largest|lru|replicated]"
     exit 1
   fi
   opernd_1=$3
-  rep_deg=""
+  rep_deg=$4""
   ;;
 STATE)
   if [ "$#" -ne 2 ]; then
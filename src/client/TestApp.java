@@ -54,7 +54,16 @@ public class TestApp implements ClientCallbackInterface {
                 stub.chord();
                 break;
             case "BACKUP":
-                stub.backup(args[2], Integer.parseInt(args[3]));
+                // <k>+<m> asks for k data and m parity fragments instead of full replicas
+                if (args[3].contains("+")) {
+                    String[] geometry = args[3].split("\\+");
+                    stub.backup(args[2], Integer.parseInt(geometry[0]), Integer.parseInt(geometry[1]));
+                } else if (args.length > 4 && args[4].equalsIgnoreCase("chain")) {
+                    // the replicas forward the file to each other instead of this peer sending every copy
+                    stub.backup(args[2], Integer.parseInt(args[3]), true);
+                } else {
+                    stub.backup(args[2], Integer.parseInt(args[3]));
+                }
                 break;
             case "LOOKUP":
                 stub.clientFindSuccessor(Integer.parseInt(args[2]));
@@ -63,13 +72,23 @@ public class TestApp implements ClientCallbackInterface {
                 stub.state();
                 break;
             case "RESTORE":
-                stub.restore(args[2]);
+                // an offset and a length restore only that range of the file
+                if (args.length > 4) {
+                    stub.restore(args[2], Long.parseLong(args[3]), Long.parseLong(args[4]));
+                } else {
+                    stub.restore(args[2]);
+                }
                 break;
             case "DELETE":
                 stub.delete(args[2]);
                 break;
             case "RECLAIM":
-                stub.reclaim(Long.parseLong(args[2]));
+                // an eviction policy may follow the maximum space
+                if (args.length > 3) {
+                    stub.reclaim(Long.parseLong(args[2]), args[3]);
+                } else {
+                    stub.reclaim(Long.parseLong(args[2]));
+                }
                 break;
             default:
                 System.out.println("Invalid Operation!");
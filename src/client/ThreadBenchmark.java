@@ -0,0 +1,112 @@
+package client;
+
+import peer.Threads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark comparing the platform thread pools of a peer with the virtual thread mode. Operations are simulated
+ * by tasks that block, like the protocols do on sockets, and run on executors of the same sizes the peer uses:
+ * <ul>
+ *     <li>capacity: many operations are dispatched at once, and the number running at the same time is measured</li>
+ *     <li>starvation: a few long BACKUPs are dispatched before short LOOKUPs, and the latency of the LOOKUPs is
+ *     measured</li>
+ * </ul>
+ * Virtual threads need JDK 21, on older JDKs only the platform thread pools are measured.
+ */
+public class ThreadBenchmark {
+    private static final int DISPATCHER_THREADS = 4; // threads of the executor inbound messages are dispatched on
+    private static final int PROTOCOL_THREADS = 16; // threads of the executor outbound operations run on
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long blocking = args.length > 1 ? Long.parseLong(args[1]) : 100;
+
+        System.out.printf("JDK %s, %d operations blocking %dms each%n", System.getProperty("java.version"), operations, blocking);
+        System.out.printf("%-10s %12s %12s %14s %14s%n", "mode", "elapsed", "concurrent", "lookup p50", "lookup p99");
+        run("platform", false, operations, blocking);
+        if (Threads.isAvailable()) {
+            run("virtual", true, operations, blocking);
+        } else {
+            System.out.printf("%-10s %s%n", "virtual", "not available, needs JDK 21");
+        }
+    }
+
+    private static void run(String mode, boolean virtual, int operations, long blocking) throws Exception {
+        // warm up the executor and the JIT before measuring
+        capacity(virtual, Math.min(operations, 100), 1);
+
+        long elapsed = capacity(virtual, operations, blocking);
+        double concurrent = (double) operations * blocking / Math.max(1, elapsed);
+        List<Long> latencies = starvation(virtual, 4, 20 * blocking, 100, 5);
+        System.out.printf("%-10s %10dms %12.1f %12.1fms %12.1fms%n", mode, elapsed, concurrent,
+                percentile(latencies, 0.5) / 1e6, percentile(latencies, 0.99) / 1e6);
+    }
+
+    /**
+     * @return the milliseconds to run every operation, dispatched at once on an executor of the protocol's size
+     */
+    private static long capacity(boolean virtual, int operations, long blocking) throws Exception {
+        ExecutorService executor = Threads.pool(PROTOCOL_THREADS, virtual);
+        try {
+            long started = System.nanoTime();
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < operations; i++) {
+                tasks.add(executor.submit(() -> block(blocking)));
+            }
+            for (Future<?> task : tasks) task.get();
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return the latency of each LOOKUP, in nanoseconds, from being dispatched to being answered, while the
+     * BACKUPs dispatched before them are running
+     */
+    private static List<Long> starvation(boolean virtual, int backups, long backupMillis, int lookups, long lookupMillis) throws Exception {
+        ExecutorService executor = Threads.pool(DISPATCHER_THREADS, virtual);
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (int i = 0; i < backups; i++) {
+                running.add(executor.submit(() -> block(backupMillis)));
+            }
+
+            List<Future<Long>> answered = new ArrayList<>();
+            for (int i = 0; i < lookups; i++) {
+                long dispatched = System.nanoTime();
+                answered.add(executor.submit(() -> {
+                    block(lookupMillis);
+                    return System.nanoTime() - dispatched;
+                }));
+            }
+
+            List<Long> latencies = new ArrayList<>();
+            for (Future<Long> lookup : answered) latencies.add(lookup.get());
+            for (Future<?> backup : running) backup.get();
+            return latencies;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void block(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static double percentile(List<Long> values, double percentile) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(percentile * sorted.size()) - 1));
+    }
+}
@@ -12,13 +12,22 @@ public class Ack extends ApplicationMessage {
         super("ACK", sender);
     }
 
+    public Ack(ChordReference sender, byte[] body) {
+        super("ACK", sender, body);
+    }
+
     @Override
     public byte[] encode() {
+        if (this.body.length > 0) return super.encode();
         return String.format("%s %s \r\n %s \r\n\r\n",
                 "APP", this.sender,
                 this.operation).getBytes(StandardCharsets.UTF_8);
     }
 
+    public String getMessage() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
     @Override
     public Operation getOperation(Peer context, SSLConnection connection) {
         // Should be expecting on backup/restore operation, no need to delegate the task
@@ -0,0 +1,27 @@
+package messages.application;
+
+import peer.chord.ChordReference;
+
+import java.util.List;
+
+public class Added extends BatchMessage {
+    public Added(ChordReference sender, byte[] body) {
+        super("ADDED", sender, body);
+
+        /* entries: <fileId>:<key> of every file the sender started serving as a soft replica */
+    }
+
+    public Added(ChordReference sender, List<String> entries) {
+        this(sender, encodeBody(entries));
+    }
+
+    @Override
+    public String toString() {
+        return "Added{" +
+                "type='" + type + '\'' +
+                ", operation='" + operation + '\'' +
+                ", sender=" + sender +
+                ", count=" + getCount() +
+                '}';
+    }
+}
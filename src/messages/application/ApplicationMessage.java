@@ -25,7 +25,7 @@ public abstract class ApplicationMessage extends Message {
 
         switch (chordType) {
             case "ACK":
-                return new Ack(sender);
+                return new Ack(sender, body);
             case "NACK":
                 return new Nack(sender, body);
             case "BACKUP":
@@ -36,6 +36,12 @@ public abstract class ApplicationMessage extends Message {
                 return new Delete(sender, body);
             case "REMOVED":
                 return new Removed(sender, body);
+            case "SYNC":
+                return new Sync(sender, body);
+            case "FETCH":
+                return new Fetch(sender, body);
+            case "ADDED":
+                return new Added(sender, body);
             default:
                 return null;
         }
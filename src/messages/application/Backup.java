@@ -6,26 +6,89 @@ import peer.Peer;
 import peer.chord.ChordReference;
 import peer.ssl.SSLConnection;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class Backup extends ApplicationMessage {
     private final String fileID;
     private final long size;
     private final ChordReference owner;
     private final int key;
     private final int replicationDegree;
+    private final int manifestSize;
+    private final String codec;
+    private final boolean chained;
+    private final List<ChordReference> chain = new ArrayList<>();
+    private final List<Integer> chainKeys = new ArrayList<>();
+    private final byte[] content;
 
     public Backup(ChordReference sender, byte[] body) {
         super("BACKUP", sender, body);
 
-        /* <fileId>::<size>::<owner> */
+        /* <fileId>::<size>::<owner>::<key>::<replicationDegree>::<manifestSize>::<codec>[::<chain>] */
         /* owner: chord reference */
+        /* codec: codec proposed for the chunks, the receiver answers with the one it accepts on the ACK */
+        /* chain: peers the file is forwarded to, <key>@<reference> separated by ';', or '-' on the last one */
+        /* small files are sent inline: the fields are followed by CRLF and the file's bytes */
+
+        int end = body.length;
+        for (int i = 0; i + 1 < body.length; i++) {
+            if (body[i] == '\r' && body[i + 1] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        content = end < body.length ? Arrays.copyOfRange(body, end + 2, body.length) : null;
 
-        String[] parts = new String(body).split("::");
+        String[] parts = new String(body, 0, end).split("::");
 
         fileID = parts[0];
         size = Long.parseLong(parts[1]);
         owner = ChordReference.parse(parts[2]);
         key = Integer.parseInt(parts[3]);
         replicationDegree = Integer.parseInt(parts[4]);
+        manifestSize = Integer.parseInt(parts[5]);
+        codec = parts[6];
+        chained = parts.length > 7;
+        if (chained && !parts[7].equals("-")) {
+            for (String link : parts[7].split(";")) {
+                String[] fields = link.split("@", 2);
+                chainKeys.add(Integer.parseInt(fields[0]));
+                chain.add(ChordReference.parse(fields[1]));
+            }
+        }
+    }
+
+    /**
+     * Method to create the same message with the file's content inline
+     *
+     * @param content File's content
+     * @return the inline message
+     */
+    public Backup inline(byte[] content) {
+        byte[] inline = new byte[body.length + 2 + content.length];
+        System.arraycopy(body, 0, inline, 0, body.length);
+        inline[body.length] = '\r';
+        inline[body.length + 1] = '\n';
+        System.arraycopy(content, 0, inline, body.length + 2, content.length);
+        return new Backup(sender, inline);
+    }
+
+    /**
+     * Method to encode the chain field of a chained backup
+     *
+     * @param chain Peers the file is forwarded to, in order
+     * @param keys  Key associated with each peer
+     * @return the encoded chain
+     */
+    public static String encodeChain(List<ChordReference> chain, List<Integer> keys) {
+        if (chain.isEmpty()) return "-";
+        List<String> links = new ArrayList<>();
+        for (int i = 0; i < chain.size(); i++) {
+            links.add(keys.get(i) + "@" + chain.get(i));
+        }
+        return String.join(";", links);
     }
 
     @Override
@@ -53,6 +116,43 @@ public class Backup extends ApplicationMessage {
         return replicationDegree;
     }
 
+    public int getManifestSize() {
+        return manifestSize;
+    }
+
+    /**
+     * @return the codec proposed by the sender
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return true if the receiver forwards the file to the rest of the chain
+     */
+    public boolean isChained() {
+        return chained;
+    }
+
+    public List<ChordReference> getChain() {
+        return chain;
+    }
+
+    public List<Integer> getChainKeys() {
+        return chainKeys;
+    }
+
+    public boolean isInline() {
+        return content != null;
+    }
+
+    /**
+     * @return the file's content if it was sent inline, null otherwise
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
     @Override
     public Operation getOperation(Peer context, SSLConnection connection) {
         return new BackupOp(connection, this, context);
@@ -0,0 +1,126 @@
+package messages.application;
+
+import peer.Constants;
+import peer.chord.ChordReference;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Application message that carries a list of entries, so many files are handled on a single exchange.
+ * <p>
+ * Small lists are sent inline, after the fields and a CRLF. Larger lists are sent after the receiver's ACK with
+ * {@link peer.ssl.SSLPeer#sendBytes}, as the manifest of a backup.
+ */
+public abstract class BatchMessage extends ApplicationMessage {
+    private final int count;
+    private final int listSize;
+    private final byte[] list;
+    private final String[] fields;
+    private List<String> entries;
+
+    public BatchMessage(String operation, ChordReference sender, byte[] body) {
+        super(operation, sender, body);
+
+        /* <count>::<listSize>[::<field>...][CRLF<list>] */
+        /* list: entries separated by '\n' */
+
+        int end = body.length;
+        for (int i = 0; i + 1 < body.length; i++) {
+            if (body[i] == '\r' && body[i + 1] == '\n') {
+                end = i;
+                break;
+            }
+        }
+
+        String[] parts = new String(body, 0, end, StandardCharsets.UTF_8).split("::");
+        count = Integer.parseInt(parts[0]);
+        listSize = Integer.parseInt(parts[1]);
+        fields = Arrays.copyOfRange(parts, 2, parts.length);
+        if (end < body.length) {
+            list = Arrays.copyOfRange(body, end + 2, body.length);
+            entries = decode(list);
+        } else {
+            list = null;
+        }
+    }
+
+    /**
+     * Method to build the body of a batch, the list is inline if it is small enough
+     *
+     * @param entries Entries of the batch
+     * @param extra   Fields of the message after the list's, if it has any
+     * @return the body
+     */
+    protected static byte[] encodeBody(List<String> entries, String... extra) {
+        byte[] list = encodeList(entries);
+        StringBuilder header = new StringBuilder(String.format("%d::%d", entries.size(), list.length));
+        for (String field : extra) header.append("::").append(field);
+        byte[] fields = header.toString().getBytes(StandardCharsets.UTF_8);
+        if (list.length > Constants.INLINE_THRESHOLD) return fields;
+
+        byte[] body = new byte[fields.length + 2 + list.length];
+        System.arraycopy(fields, 0, body, 0, fields.length);
+        body[fields.length] = '\r';
+        body[fields.length + 1] = '\n';
+        System.arraycopy(list, 0, body, fields.length + 2, list.length);
+        return body;
+    }
+
+    /**
+     * @param entries Entries of a batch
+     * @return the encoded list
+     */
+    public static byte[] encodeList(List<String> entries) {
+        return String.join("\n", entries).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<String> decode(byte[] list) {
+        List<String> decoded = new ArrayList<>(count);
+        if (count > 0) decoded.addAll(Arrays.asList(new String(list, StandardCharsets.UTF_8).split("\n", -1)));
+        return decoded;
+    }
+
+    /**
+     * Method to set the entries of a batch whose list was not inline
+     *
+     * @param list List received after the message
+     * @throws IllegalArgumentException if the list does not have the expected number of entries
+     */
+    public void setList(byte[] list) {
+        List<String> decoded = this.decode(list);
+        if (decoded.size() != count) {
+            throw new IllegalArgumentException(String.format("Expected %d entries but received %d", count, decoded.size()));
+        }
+        this.entries = decoded;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getListSize() {
+        return listSize;
+    }
+
+    /**
+     * @param index Index of the field, after the list's
+     * @return the field
+     */
+    protected String getField(int index) {
+        return fields[index];
+    }
+
+    public boolean isInline() {
+        return list != null;
+    }
+
+    /**
+     * @return the entries of the batch, null if the list was not inline and was not received yet
+     */
+    public List<String> getEntries() {
+        return entries;
+    }
+}
@@ -2,17 +2,18 @@ package messages.application;
 
 import peer.chord.ChordReference;
 
-public class Delete extends ApplicationMessage {
-    private final String fileId;
+import java.util.List;
 
+public class Delete extends BatchMessage {
     public Delete(ChordReference sender, byte[] body) {
         super("DELETE", sender, body);
 
-        this.fileId = new String(body);
+        /* entries: IDs of the stored files to delete, a file's ID or the ID of one of its fragments */
+        /* the ACK carries a bitmap of the entries the receiver no longer stores */
     }
 
-    public String getFileId() {
-        return fileId;
+    public Delete(ChordReference sender, List<String> fileIds) {
+        this(sender, encodeBody(fileIds));
     }
 
     @Override
@@ -21,7 +22,7 @@ public class Delete extends ApplicationMessage {
                 "type='" + type + '\'' +
                 ", operation='" + operation + '\'' +
                 ", sender=" + sender +
-                ", fileId='" + fileId + '\'' +
+                ", count=" + getCount() +
                 '}';
     }
 }
@@ -0,0 +1,28 @@
+package messages.application;
+
+import peer.chord.ChordReference;
+
+import java.util.List;
+
+public class Fetch extends BatchMessage {
+    public Fetch(ChordReference sender, byte[] body) {
+        super("FETCH", sender, body);
+
+        /* entries: IDs of the saved files to be streamed */
+        /* the ACK carries a bitmap of the entries the receiver has, after the sender's ACK they are sent in order */
+    }
+
+    public Fetch(ChordReference sender, List<String> fileIds) {
+        this(sender, encodeBody(fileIds));
+    }
+
+    @Override
+    public String toString() {
+        return "Fetch{" +
+                "type='" + type + '\'' +
+                ", operation='" + operation + '\'' +
+                ", sender=" + sender +
+                ", count=" + getCount() +
+                '}';
+    }
+}
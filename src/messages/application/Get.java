@@ -1,18 +1,57 @@
 package messages.application;
 
+import peer.backend.Compression;
 import peer.chord.ChordReference;
 
 public class Get extends ApplicationMessage {
     private final String fileId;
+    private final long offset;
+    private final long length;
+    private final String codec;
 
     public Get(ChordReference sender, byte[] body) {
         super("GET", sender, body);
 
-        fileId = new String(body);
+        /* <fileId>[::<offset>::<length>[::<codec>]] */
+        /* without a range the whole file is requested */
+        /* codec: codec proposed for the transfer, the ACK of a file that is not sent inline carries the one chosen */
+
+        String[] parts = new String(body).split("::");
+
+        fileId = parts[0];
+        if (parts.length >= 3) {
+            offset = Long.parseLong(parts[1]);
+            length = Long.parseLong(parts[2]);
+        } else {
+            offset = 0;
+            length = -1;
+        }
+        codec = parts.length == 4 ? parts[3] : Compression.NONE;
     }
 
     public String getFileId() {
         return fileId;
     }
-}
 
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the number of bytes requested, -1 for everything after the offset
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isRanged() {
+        return length >= 0;
+    }
+
+    /**
+     * @return the codec proposed by the requester
+     */
+    public String getCodec() {
+        return codec;
+    }
+}
@@ -2,25 +2,33 @@ package messages.application;
 
 import peer.chord.ChordReference;
 
-public class Removed extends ApplicationMessage {
-    private final String fileId;
-    private final int key;
+import java.util.List;
 
+public class Removed extends BatchMessage {
     public Removed(ChordReference sender, byte[] body) {
         super("REMOVED", sender, body);
 
-        String[] parts = new String(body).split(":");
+        /* entries: <fileId>:<key> of every file the sender stopped serving */
+    }
 
-        fileId = parts[0];
-        key = Integer.parseInt(parts[1]);
+    public Removed(ChordReference sender, List<String> entries) {
+        this(sender, encodeBody(entries));
     }
 
-    public String getFileId() {
-        return fileId;
+    /**
+     * @param entry Entry of the batch
+     * @return the ID of the removed file
+     */
+    public static String fileId(String entry) {
+        return entry.substring(0, entry.lastIndexOf(':'));
     }
 
-    public int getKey() {
-        return key;
+    /**
+     * @param entry Entry of the batch
+     * @return the key the removed file was stored with
+     */
+    public static int key(String entry) {
+        return Integer.parseInt(entry.substring(entry.lastIndexOf(':') + 1));
     }
 
     @Override
@@ -29,8 +37,7 @@ public class Removed extends ApplicationMessage {
                 "type='" + type + '\'' +
                 ", operation='" + operation + '\'' +
                 ", sender=" + sender +
-                ", fileId='" + fileId + '\'' +
-                ", key=" + key +
+                ", count=" + getCount() +
                 '}';
     }
 }
@@ -0,0 +1,58 @@
+package messages.application;
+
+import peer.chord.ChordReference;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Sync extends BatchMessage {
+    public static final String TREE = "TREE";
+    public static final String FILES = "FILES";
+    public static final String OFFER = "OFFER";
+    public static final String HOT = "HOT";
+
+    public Sync(ChordReference sender, byte[] body) {
+        super("SYNC", sender, body);
+
+        /* fields: <phase>[::<leaf>,<leaf>...] */
+        /* TREE: entries are the hashes of the root and of the nodes, the ACK carries the leaves of the nodes that differ */
+        /* FILES: entries describe the sender's files on the differing leaves */
+        /* OFFER: entries describe files the sender holds and the receiver should */
+        /* HOT: entries describe popular files the sender holds, the receiver may keep soft replicas of them */
+    }
+
+    public Sync(ChordReference sender, String phase, List<String> entries, String... fields) {
+        this(sender, encodeBody(entries, withPhase(phase, fields)));
+    }
+
+    private static String[] withPhase(String phase, String[] fields) {
+        String[] all = new String[fields.length + 1];
+        all[0] = phase;
+        System.arraycopy(fields, 0, all, 1, fields.length);
+        return all;
+    }
+
+    public String getPhase() {
+        return getField(0);
+    }
+
+    /**
+     * @return the leaves the entries of a FILES phase are from
+     */
+    public List<Integer> getLeaves() {
+        List<Integer> leaves = new ArrayList<>();
+        for (String leaf : getField(1).split(",")) leaves.add(Integer.parseInt(leaf));
+        return leaves;
+    }
+
+    @Override
+    public String toString() {
+        return "Sync{" +
+                "type='" + type + '\'' +
+                ", operation='" + operation + '\'' +
+                ", sender=" + sender +
+                ", phase=" + getPhase() +
+                ", count=" + getCount() +
+                '}';
+    }
+}
@@ -39,8 +39,12 @@ public abstract class ChordMessage extends Message {
                 return new PredecessorReply(sender, body);
             case "NOTIFICATION":
                 return new Notification(sender, body);
+            case "SUCCESSORS":
+                return new Successors(sender);
+            case "SUCCESSORSREPLY":
+                return new SuccessorsReply(sender, body);
             case "COPY":
-                return new Copy(sender);
+                return new Copy(sender, body);
             case "COPYREPLY":
                 return new CopyReply(sender, body);
             default:
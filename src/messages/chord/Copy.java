@@ -2,8 +2,37 @@ package messages.chord;
 
 import peer.chord.ChordReference;
 
+import java.nio.charset.StandardCharsets;
+
 public class Copy extends ChordMessage {
-    public Copy(ChordReference sender) {
-        super("CHORD", "COPY", sender);
+    private final String after;
+
+    public Copy(ChordReference sender, byte[] body) {
+        super("CHORD", "COPY", sender, body);
+
+        /* [<after>]: ID of the last file of the previous page, empty for the first page */
+        String after = new String(body, StandardCharsets.UTF_8).trim();
+        this.after = after.isEmpty() ? null : after;
+    }
+
+    public Copy(ChordReference sender, String after) {
+        this(sender, (after == null ? "" : after).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the ID of the last file of the previous page, or null for the first page
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    @Override
+    public String toString() {
+        return "Copy{" +
+                "type='" + type + '\'' +
+                ", operation='" + operation + '\'' +
+                ", sender=" + sender +
+                ", after=" + after +
+                '}';
     }
 }
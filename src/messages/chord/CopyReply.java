@@ -3,26 +3,62 @@ package messages.chord;
 import peer.backend.PeerFile;
 import peer.chord.ChordReference;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 public class CopyReply extends ChordMessage {
+    private final int count;
+    private final int listSize;
+    private final String next;
     private final List<PeerFile> files = new ArrayList<>();
 
     public CopyReply(ChordReference sender, byte[] body) {
         super("CHORD", "COPYREPLY", sender, body);
 
-        if (new String(body).equals("NONE")) {
-            return;
+        /* <count>::<listSize>::<next> */
+        /* the page is sent after the joiner's ACK, one file description per line, next is END on the last page */
+        String[] parts = new String(body, StandardCharsets.UTF_8).trim().split("::");
+        this.count = Integer.parseInt(parts[0]);
+        this.listSize = Integer.parseInt(parts[1]);
+        this.next = parts[2].equals("END") ? null : parts[2];
+    }
+
+    public CopyReply(ChordReference sender, int count, int listSize, String next) {
+        this(sender, String.format("%d::%d::%s", count, listSize, next == null ? "END" : next).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Method to set the files of the page
+     *
+     * @param list Page received after the reply
+     * @param key  Key the files are saved with
+     * @throws IllegalArgumentException if the page does not have the expected number of files
+     */
+    public void setList(byte[] list, int key) {
+        if (count == 0) return;
+        for (String description : new String(list, StandardCharsets.UTF_8).split("\n")) {
+            PeerFile file = PeerFile.parse(description, key);
+            if (file != null) files.add(file);
+        }
+        if (files.size() != count) {
+            throw new IllegalArgumentException(String.format("Expected %d files but received %d", count, files.size()));
         }
+    }
 
-        String[] files = new String(body).split("::");
+    public int getCount() {
+        return count;
+    }
 
-        for (String file : files) {
-            String[] parts = file.split("\\|");
+    public int getListSize() {
+        return listSize;
+    }
 
-            this.files.add(new PeerFile(Integer.parseInt(parts[0]), parts[1], ChordReference.parse(parts[2]), Long.parseLong(parts[3]), Integer.parseInt(parts[4])));
-        }
+    /**
+     * @return the ID to request the next page after, or null if this is the last page
+     */
+    public String getNext() {
+        return next;
     }
 
     @Override
@@ -31,7 +67,8 @@ public class CopyReply extends ChordMessage {
                 "type='" + type + '\'' +
                 ", operation='" + operation + '\'' +
                 ", sender=" + sender +
-                ", files=" + files +
+                ", count=" + count +
+                ", next=" + next +
                 '}';
     }
 
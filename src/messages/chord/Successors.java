@@ -0,0 +1,18 @@
+package messages.chord;
+
+import peer.chord.ChordReference;
+
+import java.nio.charset.StandardCharsets;
+
+public class Successors extends ChordMessage {
+    public Successors(ChordReference sender) {
+        super("CHORD", "SUCCESSORS", sender);
+    }
+
+    @Override
+    public byte[] encode() {
+        return String.format("%s %s \r\n %s \r\n\r\n",
+                "CHORD", this.sender,
+                this.operation).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,40 @@
+package messages.chord;
+
+import peer.chord.ChordReference;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SuccessorsReply extends ChordMessage {
+    private final List<ChordReference> successors = new ArrayList<>();
+
+    public SuccessorsReply(ChordReference sender, byte[] body) {
+        super("CHORD", "SUCCESSORSREPLY", sender, body);
+
+        /* <reference>;<reference>;... or nil */
+        String successors = new String(body);
+        if (!successors.equals("nil")) {
+            for (String successor : successors.split(";")) {
+                ChordReference reference = ChordReference.parse(successor);
+                if (reference != null) this.successors.add(reference);
+            }
+        }
+    }
+
+    /**
+     * @param successors Successor list
+     * @return the body of the reply
+     */
+    public static String encodeSuccessors(List<ChordReference> successors) {
+        if (successors.isEmpty()) return "nil";
+        List<String> references = new ArrayList<>();
+        for (ChordReference successor : successors) {
+            references.add(successor.toString());
+        }
+        return String.join(";", references);
+    }
+
+    public List<ChordReference> getSuccessors() {
+        return successors;
+    }
+}
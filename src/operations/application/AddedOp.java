@@ -0,0 +1,32 @@
+package operations.application;
+
+import messages.application.Ack;
+import messages.application.Added;
+import messages.application.ApplicationMessage;
+import messages.application.Removed;
+import peer.Peer;
+import peer.backend.PeerFile;
+import peer.ssl.SSLConnection;
+
+public class AddedOp extends AppOperation {
+    public AddedOp(SSLConnection connection, ApplicationMessage message, Peer context) {
+        super(connection, message, context);
+    }
+
+    @Override
+    public void run() {
+        Added added = (Added) message;
+        if (!this.receiveEntries(added)) return;
+        context.send(connection, new Ack(context.getReference()));
+
+        for (String entry : added.getEntries()) {
+            // same entries as a REMOVED
+            String filename = context.getSentFilename(Removed.fileId(entry));
+            PeerFile peerFile = filename == null ? null : context.getSentFile(filename);
+            // a file being deleted must not gain replicas, the DELETE already sent does not reach them
+            if (peerFile == null || peerFile.beingDeleted) continue;
+            context.addKey(peerFile, Removed.key(entry));
+            log.info("{} is also served by {} while it is popular", peerFile.getId(), added.getSender());
+        }
+    }
+}
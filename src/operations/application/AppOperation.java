@@ -1,12 +1,18 @@
 package operations.application;
 
+import messages.application.Ack;
 import messages.application.ApplicationMessage;
+import messages.application.BatchMessage;
 import operations.Operation;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import peer.Constants;
 import peer.Peer;
 import peer.ssl.SSLConnection;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public abstract class AppOperation extends Operation {
     protected final Logger log = LogManager.getLogger(getClass());
 
@@ -29,8 +35,36 @@ public abstract class AppOperation extends Operation {
                 return new DeleteOp(connection, message, context);
             case "REMOVED":
                 return new RemovedOp(connection, message, context);
+            case "SYNC":
+                return new SyncOp(connection, message, context);
+            case "FETCH":
+                return new FetchOp(connection, message, context);
+            case "ADDED":
+                return new AddedOp(connection, message, context);
             default:
                 return null;
         }
     }
+
+    /**
+     * Method to get the entries of a batch, if the list was not inline the sender is acknowledged and the list is
+     * received on blocking mode
+     *
+     * @param batch Batch Message received
+     * @return true if the entries are available
+     */
+    protected boolean receiveEntries(BatchMessage batch) {
+        if (batch.isInline()) return true;
+        try {
+            context.send(connection, new Ack(context.getReference()));
+            connection.setPeerNetData(ByteBuffer.allocate(Constants.TLS_CHUNK_SIZE));
+            connection.getSocketChannel().configureBlocking(true);
+            batch.setList(context.receiveBytes(connection, batch.getListSize()));
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Could not receive the entries of {}: {}", batch, e.getMessage());
+            context.closeConnection(connection);
+            return false;
+        }
+    }
 }
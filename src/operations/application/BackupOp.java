@@ -1,5 +1,6 @@
 package operations.application;
 
+import messages.Message;
 import messages.application.Ack;
 import messages.application.ApplicationMessage;
 import messages.application.Backup;
@@ -7,14 +8,26 @@ import messages.application.Nack;
 import peer.Constants;
 import peer.Peer;
 import peer.Utils;
+import peer.backend.ChunkStore;
+import peer.backend.Compression;
+import peer.backend.Manifest;
+import peer.backend.PeerInternalState;
 import peer.chord.ChordReference;
+import peer.ssl.MessageTimeoutException;
 import peer.ssl.SSLConnection;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class BackupOp extends AppOperation {
     public BackupOp(SSLConnection connection, ApplicationMessage message, Peer context) {
@@ -29,35 +42,334 @@ public class BackupOp extends AppOperation {
         int key = ((Backup) message).getKey();
         int replicationDegree = ((Backup) message).getReplicationDegree();
 
-        // test capacity
-        if (!context.hasSpace(size)) {
-            log.info("No space to store file with size: {}", Utils.prettySize(size));
-            context.send(this.connection, new Nack(this.context.getReference(), "NOSPACE".getBytes(StandardCharsets.UTF_8)));
+        if (((Backup) message).isChained()) {
+            this.runChained();
             return;
-        } else if (this.context.getSavedFile(fileId) != null) {
-            log.info("Already have this file backed up!");
-            context.send(this.connection, new Nack(this.context.getReference(), "HAVEFILE".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // the file is claimed first, so a concurrent backup of it can not pass the check below too
+        if (!this.context.claim(fileId)) {
+            log.info("Already receiving this file!");
+            context.send(this.connection, new Nack(this.context.getReference(), "BUSY".getBytes(StandardCharsets.UTF_8)));
             return;
         }
+        try {
+            if (this.context.getSavedFile(fileId) != null) {
+                log.info("Already have this file backed up!");
+                context.send(this.connection, new Nack(this.context.getReference(), "HAVEFILE".getBytes(StandardCharsets.UTF_8)));
+                return;
+            }
+            // the space is reserved before the ACK, so concurrent backups can not overrun the capacity together
+            PeerInternalState.Reservation reservation = context.reserve(size);
+            if (reservation == null) {
+                log.info("No space to store file with size: {}", Utils.prettySize(size));
+                context.send(this.connection, new Nack(this.context.getReference(), "NOSPACE".getBytes(StandardCharsets.UTF_8)));
+                return;
+            }
+
+            log.info("Staring backup on fileId: {} for owner: {} with size: {}", fileId, owner, Utils.prettySize(size));
+            try {
+                this.receive(fileId, owner, size, key, replicationDegree, reservation);
+            } finally {
+                // what was written was committed to the occupation, the rest is released
+                reservation.release();
+            }
+        } finally {
+            this.context.unclaim(fileId);
+        }
+    }
 
-        log.info("Staring backup on fileId: {} for owner: {} with size: {}", fileId, owner, Utils.prettySize(size));
+    /**
+     * Method to receive a file, inline or as the chunks this peer does not have, after its space was reserved
+     */
+    private void receive(String fileId, ChordReference owner, long size, int key, int replicationDegree, PeerInternalState.Reservation reservation) {
+        if (((Backup) message).isInline()) {
+            // the file came with the message, the ACK finishes the exchange
+            byte[] content = ((Backup) message).getContent();
+            Manifest manifest;
+            try {
+                if (content.length != size) throw new IOException("Inline content does not match the file size");
+                manifest = this.context.getChunkStore().ingest(fileId, content, reservation);
+            } catch (IOException e) {
+                log.error("Error storing inline file: {}", e.getMessage());
+                context.send(this.connection, new Nack(this.context.getReference(), "FAILED".getBytes(StandardCharsets.UTF_8)));
+                return;
+            }
+            context.send(this.connection, new Ack(this.context.getReference()));
+            this.context.addSavedFile(key, fileId, owner, size, replicationDegree, manifest.checksum());
+            log.info("Received inline file!");
+            return;
+        }
 
+        int manifestSize = ((Backup) message).getManifestSize();
+        String codec = Compression.accept(((Backup) message).getCodec());
+        ChunkStore store = this.context.getChunkStore();
+        Manifest manifest = null;
+        boolean receiving = false;
+        boolean stored = false;
         try {
-            FileOutputStream outputStream = new FileOutputStream(this.context.getFileLocation(fileId));
-            FileChannel fileChannel = outputStream.getChannel();
-            log.info("Ready to receive file...");
-            context.send(this.connection, new Ack(this.context.getReference()));
+            log.info("Ready to receive manifest...");
+            context.send(this.connection, Compression.NONE.equals(codec)
+                    ? new Ack(this.context.getReference())
+                    : new Ack(this.context.getReference(), codec.getBytes(StandardCharsets.UTF_8)));
             connection.setPeerNetData(ByteBuffer.allocate(Constants.TLS_CHUNK_SIZE));
             connection.getSocketChannel().configureBlocking(true);
-            context.receiveFile(connection, fileChannel, ((Backup) this.message).getSize());
-            fileChannel.close();
+            manifest = Manifest.decode(context.receiveBytes(connection, manifestSize));
+            if (manifest.size() != size) throw new IOException("Manifest does not match the file size");
+
+            // reply with the chunks this peer does not have, only those are sent
+            boolean[] needed = store.reference(manifest);
+            receiving = true;
+            if (store.unpark(fileId)) log.info("Resuming interrupted backup of {}", fileId);
+            context.sendBytes(connection, Manifest.toBitmap(needed));
+            long missing = manifest.length(needed);
+            log.info("Missing {} of {}, ready to receive chunks...", Utils.prettySize(missing), Utils.prettySize(size));
+
+            ChunkStore.ChunkWriter writer = store.writer(manifest, needed, reservation);
+            context.receiveFile(connection, writer, missing, codec);
+            if (!writer.isComplete()) throw new IOException("Did not receive every missing chunk");
+            store.commit(fileId, manifest, reservation);
+            stored = true;
             log.info("Received file!");
             log.info("Sending ACK to client so they can close connection");
             context.send(this.connection, new Ack(this.context.getReference()));
 
-            this.context.addSavedFile(key, fileId, owner, size, replicationDegree);
+            this.context.addSavedFile(key, fileId, owner, size, replicationDegree, manifest.checksum());
         } catch (IOException e) {
             log.error("Error receiving file: {}", e.getMessage());
+        } finally {
+            // verified chunks of an interrupted transfer are kept for the owner's retry
+            if (receiving && !stored) store.park(fileId, manifest);
+        }
+    }
+
+    /**
+     * Chained backup, the file is stored if possible and forwarded to the next peer of the chain at the same time.
+     * This peer asks upstream for the chunks it needs together with the ones the rest of the chain needs, and the
+     * ACK sent upstream carries the result of this peer and of every peer after it. The ACK is also sent when this
+     * peer or the rest of the chain fails, with the peers that did not report a result as FAILED.
+     */
+    private void runChained() {
+        Backup backup = (Backup) message;
+        String fileId = backup.getFileID();
+        long size = backup.getSize();
+
+        // a peer that can not store the file still forwards it to the rest of the chain
+        String status = null;
+        PeerInternalState.Reservation reservation = null;
+        boolean claimed = this.context.claim(fileId);
+        if (!claimed) {
+            status = "BUSY";
+        } else if (this.context.getSavedFile(fileId) != null) {
+            status = "HAVEFILE";
+        } else if ((reservation = context.reserve(size)) == null) {
+            status = "NOSPACE";
+        }
+        log.info("Staring chained backup on fileId: {} for owner: {} ({} peers after this one)", fileId, backup.getOwner(), backup.getChain().size());
+
+        ChunkStore store = this.context.getChunkStore();
+        Map<Integer, String> results = new LinkedHashMap<>();
+        Manifest manifest = null;
+        SSLConnection downstream = null;
+        boolean receiving = false;
+        boolean stored = false;
+        try {
+            context.send(this.connection, new Ack(this.context.getReference()));
+            connection.setPeerNetData(ByteBuffer.allocate(Constants.TLS_CHUNK_SIZE));
+            connection.getSocketChannel().configureBlocking(true);
+            manifest = Manifest.decode(context.receiveBytes(connection, backup.getManifestSize()));
+            if (manifest.size() != size) throw new IOException("Manifest does not match the file size");
+
+            boolean[] forward = new boolean[manifest.count()];
+            if (!backup.getChain().isEmpty()) {
+                downstream = context.openChain(backup.getChain(), backup.getChainKeys(), fileId, size, backup.getOwner(),
+                        backup.getReplicationDegree(), manifest, results);
+            }
+            if (downstream != null) {
+                downstream.setPeerNetData(ByteBuffer.allocate(Constants.TLS_CHUNK_SIZE));
+                downstream.getSocketChannel().configureBlocking(true);
+                forward = Manifest.fromBitmap(context.receiveBytes(downstream, (manifest.count() + 7) / 8), manifest.count());
+            }
+
+            boolean[] needed = new boolean[manifest.count()];
+            if (status == null) {
+                needed = store.reference(manifest);
+                receiving = true;
+                if (store.unpark(fileId)) log.info("Resuming interrupted backup of {}", fileId);
+            }
+            boolean[] union = new boolean[manifest.count()];
+            for (int i = 0; i < union.length; i++) {
+                union[i] = needed[i] || forward[i];
+            }
+            context.sendBytes(connection, Manifest.toBitmap(union));
+            log.info("Missing {}, forwarding {} of {}", Utils.prettySize(manifest.length(needed)),
+                    Utils.prettySize(manifest.length(forward)), Utils.prettySize(size));
+
+            ChunkStore.ChunkWriter writer = store.writer(manifest, needed, reservation);
+            Future<Boolean> forwarding = null;
+            Pipe pipe = null;
+            if (downstream != null && manifest.length(forward) > 0) {
+                pipe = Pipe.open();
+                forwarding = this.forward(downstream, pipe.source());
+            }
+            try {
+                context.receiveFile(connection, new ChainWriter(manifest, union, needed, writer, forward, pipe == null ? null : pipe.sink()), manifest.length(union));
+            } finally {
+                if (pipe != null) pipe.sink().close();
+            }
+            boolean forwarded = forwarding == null || forwarding.get();
+
+            if (status == null) {
+                if (!writer.isComplete()) throw new IOException("Did not receive every missing chunk");
+                store.commit(fileId, manifest, reservation);
+                stored = true;
+                status = "STORED";
+                this.context.addSavedFile(backup.getKey(), fileId, backup.getOwner(), size, backup.getReplicationDegree(), manifest.checksum());
+                log.info("Received file!");
+            }
+
+            if (downstream != null && forwarded) {
+                downstream.getSocketChannel().configureBlocking(false);
+                try {
+                    Message reply = context.receiveBlocking(downstream, Constants.CHAIN_ACK_TIMEOUT * backup.getChain().size());
+                    if (reply instanceof Ack) results.putAll(Peer.parseChainResults(((Ack) reply).getMessage()));
+                } catch (MessageTimeoutException e) {
+                    log.error("The rest of the chain did not answer: {}", e.getMessage());
+                }
+            }
+        } catch (IOException | ExecutionException e) {
+            log.error("Error on chained backup: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (downstream != null) context.closeConnection(downstream);
+            if (receiving && !stored) store.park(fileId, manifest);
+            if (reservation != null) reservation.release();
+            if (claimed) this.context.unclaim(fileId);
+        }
+        this.reply(status, results);
+    }
+
+    /**
+     * Method to send the result of this peer and of the rest of the chain upstream
+     *
+     * @param status  Result of this peer, or null if it failed
+     * @param results Results of the peers after this one, the ones missing are sent as FAILED
+     */
+    private void reply(String status, Map<Integer, String> results) {
+        Backup backup = (Backup) message;
+        List<String> body = new ArrayList<>();
+        body.add(backup.getKey() + ":" + (status == null ? "FAILED" : status));
+        for (Integer key : backup.getChainKeys()) {
+            body.add(key + ":" + results.getOrDefault(key, "FAILED"));
+        }
+        context.send(this.connection, new Ack(this.context.getReference(), String.join("::", body).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Method to send what is written to the pipe to the next peer of the chain. If the next peer fails the rest
+     * of the pipe is discarded so this peer keeps receiving its own chunks.
+     *
+     * @return true if everything was sent to the next peer
+     */
+    private Future<Boolean> forward(SSLConnection downstream, ReadableByteChannel source) {
+        return context.PROTOCOL_EXECUTOR.submit(() -> {
+            ReadableByteChannel full = new ReadableByteChannel() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    int total = 0;
+                    // fill the buffer completely, the transport relies on full records except for the last one
+                    while (dst.hasRemaining()) {
+                        int bytes = source.read(dst);
+                        if (bytes < 0) return total == 0 ? -1 : total;
+                        total += bytes;
+                    }
+                    return total;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return source.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    source.close();
+                }
+            };
+            context.sendFile(downstream, full);
+            // the transfer stopped early if anything is left on the pipe
+            ByteBuffer discard = ByteBuffer.allocate(Constants.CHUNK_SIZE);
+            long discarded = 0;
+            int bytes;
+            while ((bytes = source.read(discard.clear())) >= 0) {
+                discarded += bytes;
+            }
+            source.close();
+            if (discarded > 0) log.error("Forwarding to the next peer of the chain failed with {} left", Utils.prettySize(discarded));
+            return discarded == 0;
+        });
+    }
+
+    /**
+     * Splits the chunks received from upstream between the ones this peer stores and the ones forwarded to
+     * the next peer of the chain, a chunk can be both
+     */
+    private static class ChainWriter implements WritableByteChannel {
+        private final Manifest manifest;
+        private final boolean[] union;
+        private final boolean[] local;
+        private final WritableByteChannel writer;
+        private final boolean[] forward;
+        private final WritableByteChannel downstream;
+        private int chunk = -1;
+        private long left = 0;
+        private boolean open = true;
+
+        ChainWriter(Manifest manifest, boolean[] union, boolean[] local, WritableByteChannel writer, boolean[] forward, WritableByteChannel downstream) {
+            this.manifest = manifest;
+            this.union = union;
+            this.local = local;
+            this.writer = writer;
+            this.forward = forward;
+            this.downstream = downstream;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = 0;
+            while (src.hasRemaining()) {
+                if (left == 0) {
+                    do chunk++; while (chunk < union.length && !union[chunk]);
+                    if (chunk >= union.length) throw new IOException("Received more data than expected");
+                    left = manifest.length(chunk);
+                }
+                int length = (int) Math.min(src.remaining(), left);
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + length);
+                if (local[chunk]) writeFully(writer, slice.duplicate());
+                if (forward[chunk] && downstream != null) writeFully(downstream, slice.duplicate());
+                src.position(src.position() + length);
+                left -= length;
+                written += length;
+            }
+            return written;
+        }
+
+        private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
         }
     }
 }
@@ -1,17 +1,15 @@
 package operations.application;
 
+import messages.application.Ack;
 import messages.application.ApplicationMessage;
 import messages.application.Delete;
-import messages.application.Removed;
 import peer.Peer;
+import peer.backend.Manifest;
 import peer.backend.PeerFile;
 import peer.ssl.SSLConnection;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.Arrays;
+import java.util.List;
 
 public class DeleteOp extends AppOperation {
     public DeleteOp(SSLConnection connection, ApplicationMessage message, Peer context) {
@@ -20,31 +18,35 @@ public class DeleteOp extends AppOperation {
 
     @Override
     public void run() {
-        String fileId = ((Delete) message).getFileId();
-
-        log.info("Received DELETE request for: {}", fileId);
-
-        PeerFile file = context.getSavedFile(fileId);
-        if (file == null) {
-            this.context.closeConnection(connection);
-            return;
-        }
-
-        this.context.closeConnection(connection);
-
-        try {
-            if (Files.deleteIfExists(Path.of(context.getFileLocation(fileId)))) {
-                String body = String.join(":", Arrays.asList(fileId, String.valueOf(file.getKey())));
-
-                SSLConnection connection = this.context.connectToPeer(message.getSender().getAddress());
-                assert connection != null;
+        Delete delete = (Delete) message;
+        if (!this.receiveEntries(delete)) return;
+
+        List<String> fileIds = delete.getEntries();
+        log.info("Received DELETE request for {} files", fileIds.size());
+
+        // the owner is acknowledged with every entry this peer no longer stores, the others are retried
+        boolean[] deleted = new boolean[fileIds.size()];
+        for (int i = 0; i < fileIds.size(); i++) {
+            String fileId = fileIds.get(i);
+            PeerFile file = context.getSavedFile(fileId);
+            if (file == null) {
+                deleted[i] = true;
+                continue;
+            }
 
-                log.info("Removed file: {}", file);
-                this.context.getSavedFilesMap().remove(fileId);
-                this.context.send(connection, new Removed(context.getReference(), body.getBytes(StandardCharsets.UTF_8)));
+            try {
+                if (this.context.deleteStoredFile(fileId)) {
+                    log.info("Removed file: {}", file);
+                    this.context.removeSavedFile(fileId);
+                    this.context.tombstone(fileId);
+                    deleted[i] = true;
+                }
+            } catch (IOException e) {
+                log.error("Error deleting file: {}: {}", file, e.getMessage());
             }
-        } catch (IOException e) {
-            log.error("Error deleting file: {}: {}", file, e.getMessage());
         }
+
+        // client needs to close connection on their side
+        context.send(connection, new Ack(context.getReference(), Manifest.toBitmap(deleted)));
     }
 }
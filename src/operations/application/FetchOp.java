@@ -0,0 +1,105 @@
+package operations.application;
+
+import messages.Message;
+import messages.application.Ack;
+import messages.application.ApplicationMessage;
+import messages.application.Fetch;
+import peer.Peer;
+import peer.backend.Manifest;
+import peer.backend.PeerFile;
+import peer.ssl.MessageTimeoutException;
+import peer.ssl.SSLConnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FetchOp extends AppOperation {
+    public FetchOp(SSLConnection connection, ApplicationMessage message, Peer context) {
+        super(connection, message, context);
+    }
+
+    @Override
+    public void run() {
+        Fetch fetch = (Fetch) message;
+        if (!this.receiveEntries(fetch)) return;
+
+        List<String> fileIds = fetch.getEntries();
+        boolean[] present = new boolean[fileIds.size()];
+        List<PeerFile> files = new ArrayList<>();
+        for (int i = 0; i < fileIds.size(); i++) {
+            PeerFile file = context.getSavedFile(fileIds.get(i));
+            present[i] = file != null;
+            if (present[i]) files.add(file);
+        }
+        context.send(connection, new Ack(context.getReference(), Manifest.toBitmap(present)));
+
+        // the files are only sent once the receiver is on blocking mode
+        Message ready;
+        try {
+            ready = context.receiveBlocking(connection, 500);
+        } catch (MessageTimeoutException e) {
+            log.error("{} did not start the stream: {}", fetch.getSender(), e.getMessage());
+            return;
+        }
+        if (!(ready instanceof Ack)) return;
+
+        log.info("Streaming {} files to {}", files.size(), fetch.getSender());
+        for (PeerFile file : files) {
+            ReadableByteChannel channel;
+            try {
+                channel = context.openStoredFile(file.getId());
+            } catch (IOException e) {
+                // the stream must keep its framing, the receiver finds the checksum does not match
+                log.error("Could not access file {}: {}", file.getId(), e.getMessage());
+                channel = Channels.newChannel(new Zeros(file.getSize()));
+            }
+            context.sendFile(connection, channel);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("Could not close file {}: {}", file.getId(), e.getMessage());
+            }
+        }
+        log.info("Stream to {} finished", fetch.getSender());
+
+        // client needs to close connection on their side
+    }
+
+    /**
+     * Stream of zeros standing for a file that could not be read
+     */
+    private static class Zeros extends InputStream {
+        private long remaining;
+
+        Zeros(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0) return -1;
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (remaining == 0) return -1;
+            int read = (int) Math.min(length, remaining);
+            Arrays.fill(bytes, offset, offset + read, (byte) 0);
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            // the channel over this stream only fills a whole record while bytes are available
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -4,15 +4,18 @@ import messages.application.Ack;
 import messages.application.ApplicationMessage;
 import messages.application.Get;
 import messages.application.Nack;
+import peer.Constants;
 import peer.Peer;
+import peer.backend.Compression;
 import peer.backend.PeerFile;
 import peer.ssl.MessageTimeoutException;
 import peer.ssl.SSLConnection;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class GetOp extends AppOperation {
     public GetOp(SSLConnection connection, ApplicationMessage message, Peer context) {
@@ -31,9 +34,32 @@ public class GetOp extends AppOperation {
             context.send(connection, new Nack(context.getReference(), "NOTFOUND".getBytes(StandardCharsets.UTF_8)));
             return;
         }
+        context.countRequest(fileID);
+
+        Get request = (Get) message;
+        long length = request.isRanged() ? Math.min(request.getLength(), peerFile.getSize() - request.getOffset()) : peerFile.getSize();
+        if (length <= Constants.INLINE_THRESHOLD) {
+            // small files are sent inside the ACK, no second GET and no stream
+            try (ReadableByteChannel channel = context.openStoredFile(fileID, request.getOffset(), Math.max(length, 0))) {
+                ByteBuffer content = ByteBuffer.allocate((int) Math.max(length, 0));
+                while (content.hasRemaining()) {
+                    if (channel.read(content) < 0) break;
+                }
+                context.send(connection, new Ack(context.getReference(), Arrays.copyOf(content.array(), content.position())));
+                log.info("File sent inline!");
+            } catch (IOException e) {
+                log.error("Could not access file {}: {}", fileID, e.getMessage());
+                context.send(connection, new Nack(context.getReference(), "NOTFOUND".getBytes(StandardCharsets.UTF_8)));
+            }
+            return;
+        }
+
+        String codec = this.chooseCodec(request, fileID, length);
         log.info("Sending ACK and wait for GET...");
-        // send ACK and wait for a new GET
-        context.send(connection, new Ack(context.getReference()));
+        // send ACK and wait for a new GET, the ACK carries the codec the file is sent with
+        context.send(connection, Compression.NONE.equals(codec)
+                ? new Ack(context.getReference())
+                : new Ack(context.getReference(), codec.getBytes(StandardCharsets.UTF_8)));
 
         Get message;
         try {
@@ -46,19 +72,39 @@ public class GetOp extends AppOperation {
         // safe call
         assert message != null;
 
-        File file = new File(context.getFileLocation(fileID));
-        FileChannel fileChannel;
+        ReadableByteChannel fileChannel;
         try {
-            fileChannel = FileChannel.open(file.toPath());
+            fileChannel = message.isRanged()
+                    ? context.openStoredFile(fileID, message.getOffset(), message.getLength())
+                    : context.openStoredFile(fileID);
         } catch (IOException e) {
             log.error("Could not access file {}: {}", fileID, e.getMessage());
             return;
         }
 
         log.info("Sending file...");
+        fileChannel = Peer.encode(fileChannel, codec);
         this.context.sendFile(connection, fileChannel);
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            log.error("Could not close file {}: {}", fileID, e.getMessage());
+        }
         log.info("File sent!");
 
         // client needs to close connection on their side
     }
+
+    /**
+     * Method to choose the codec of a transfer, a file the requester can decompress is only sent compressed if
+     * a sample of the requested range compresses
+     */
+    private String chooseCodec(Get request, String fileID, long length) {
+        if (Compression.NONE.equals(Compression.accept(request.getCodec()))) return Compression.NONE;
+        try (ReadableByteChannel sample = context.openStoredFile(fileID, request.getOffset(), Math.min(Constants.COMPRESSION_SAMPLE, length))) {
+            return Compression.propose(sample);
+        } catch (IOException e) {
+            return Compression.NONE;
+        }
+    }
 }
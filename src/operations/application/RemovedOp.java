@@ -1,22 +1,27 @@
 package operations.application;
 
+import messages.application.Ack;
 import messages.application.ApplicationMessage;
 import messages.application.Backup;
 import messages.application.Removed;
-import peer.Constants;
 import peer.Peer;
+import peer.backend.Chunker;
+import peer.backend.Compression;
+import peer.backend.Manifest;
 import peer.backend.PeerFile;
 import peer.chord.ChordReference;
 import peer.ssl.SSLConnection;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ThreadLocalRandom;
 
 public class RemovedOp extends AppOperation {
     public RemovedOp(SSLConnection connection, ApplicationMessage message, Peer context) {
@@ -25,75 +30,116 @@ public class RemovedOp extends AppOperation {
 
     @Override
     public void run() {
-        this.context.closeConnection(connection);
+        Removed removed = (Removed) message;
+        if (!this.receiveEntries(removed)) return;
+        // the peer that stopped serving the files only needs to know they were received
+        context.send(connection, new Ack(context.getReference()));
 
-        String fileId = ((Removed) message).getFileId();
-        int key = ((Removed) message).getKey();
-
-        Map.Entry<String, PeerFile> file = null;
-        for (Map.Entry<String, PeerFile> entry : this.context.getSentFilesMap().entrySet()) {
-            if (entry.getValue().getId().equals(fileId)) {
-                file = entry;
-                break;
-            }
+        for (String entry : removed.getEntries()) {
+            this.removed(Removed.fileId(entry), Removed.key(entry));
         }
+    }
 
-        if (file == null) return;
+    /**
+     * Method to handle the removal of a single file, a new backup is started unless the file is being deleted
+     *
+     * @param fileId ID of the removed file, or of one of its fragments
+     * @param key    Key associated with the peer that stopped serving it
+     */
+    private void removed(String fileId, int key) {
+        // fragments of erasure coded files are stored as <fileId>.<index>
+        String parentId = PeerFile.parentId(fileId);
+        String filename = this.context.getSentFilename(parentId);
+        PeerFile peerFile = filename == null ? null : this.context.getSentFile(filename);
+        if (peerFile == null) return;
+        Map.Entry<String, PeerFile> file = new AbstractMap.SimpleImmutableEntry<>(filename, peerFile);
+
+        if (file.getValue().isErasureCoded()) {
+            this.fragmentRemoved(file, PeerFile.fragmentIndex(fileId), key);
+            return;
+        }
 
-        file.getValue().getKeys().remove(key);
+        context.removeKey(file.getValue(), key);
 
         if (file.getValue().beingDeleted) {
             if (file.getValue().getKeys().isEmpty()) {
                 log.info("File {} is no longer being backed by any peer!", file);
-                context.getSentFilesMap().remove(file.getKey());
+                context.removeSentFile(file.getKey());
             }
+        } else if (file.getValue().getKeys().size() >= file.getValue().getReplicationDegree()) {
+            // a soft replica of a popular file was dropped, or another replica took over already
+            log.info("File {} is still served by {} peers", fileId, file.getValue().getKeys().size());
         } else {
             log.info("Replication degree dropped bellow the desired, starting new backup...");
 
-            List<Integer> keys = new ArrayList<>();
-            ThreadLocalRandom.current().ints(0, Constants.CHORD_MAX_PEERS).distinct().limit(file.getValue().getReplicationDegree() * 2L).forEach(keys::add);
-            ChordReference targetPeer = null;
-            Integer targetKey = null;
+            // the peer that removed it is still on the placement, it must not be chosen again
+            List<ChordReference> excluded = new ArrayList<>(context.locateReplicas(file.getValue()).values());
+            excluded.add(message.getSender());
+            List<Integer> targetKeys = new ArrayList<>();
+            List<ChordReference> targets = context.findTargets(fileId, 1, excluded, targetKeys);
+            ChordReference targetPeer = targets.isEmpty() ? null : targets.get(0);
+            Integer targetKey = targets.isEmpty() ? null : targetKeys.get(0);
 
-            List<ChordReference> currentPeers = new ArrayList<>();
-            for (int k : file.getValue().getKeys()) {
-                currentPeers.add(context.findSuccessor(k));
-            }
+            if (targetPeer != null) {
+                File localFile = new File(file.getKey());
+                if (!localFile.exists()) {
+                    return;
+                }
 
-            for (int k : keys) {
-                ChordReference peer = context.findSuccessor(k);
-                if (peer.getGuid() != this.context.getGuid() && !currentPeers.contains(peer)) {
-                    targetPeer = peer;
-                    targetKey = k;
-                    break;
+                Manifest manifest;
+                try (FileChannel channel = FileChannel.open(localFile.toPath())) {
+                    manifest = Chunker.chunk(channel);
+                } catch (IOException e) {
+                    log.error("Could not read file {}: {}", localFile, e.getMessage());
+                    return;
                 }
-            }
 
-            if (targetPeer != null) {
                 String body = String.join("::",
                         Arrays.asList(fileId,
                                 String.valueOf(file.getValue().getSize()),
                                 file.getValue().getOwner().toString(),
                                 targetKey.toString(),
-                                String.valueOf(file.getValue().getReplicationDegree())
+                                String.valueOf(file.getValue().getReplicationDegree()),
+                                String.valueOf(manifest.encodedSize()),
+                                Compression.propose(localFile.toPath())
                         ));
                 Backup message = new Backup(context.getReference(), body.getBytes(StandardCharsets.UTF_8));
 
-                File localFile = new File(context.getFileLocation(file.getKey()));
-                if (!localFile.exists()) {
-                    return;
-                }
-
                 ChordReference finalTargetPeer = targetPeer;
                 Map.Entry<String, PeerFile> finalFile = file;
-                Callable<String> runnable = () -> context.backup(finalTargetPeer, localFile, message, finalFile.getValue());
+                Callable<String> runnable = () -> context.backup(finalTargetPeer, localFile, message, finalFile.getValue(), manifest);
 
                 context.PROTOCOL_EXECUTOR.submit(runnable);
 
                 log.info("BACKUP submitted for {}", file.getValue());
             }
         }
+    }
 
-
+    /**
+     * Method to handle the removal of a fragment of an erasure coded file, the lost fragment is rebuilt from
+     * the surviving ones unless the file is being deleted
+     *
+     * @param file  Erasure coded File
+     * @param index Index of the removed fragment
+     * @param key   Key associated with the peer that stopped serving it
+     */
+    private void fragmentRemoved(Map.Entry<String, PeerFile> file, int index, int key) {
+        PeerFile peerFile = file.getValue();
+        Integer current = peerFile.getFragments().get(index);
+        // the fragment may have been placed again already
+        if (current == null || current != key) return;
+
+        context.removeFragment(peerFile, index);
+
+        if (peerFile.beingDeleted) {
+            if (peerFile.getFragments().isEmpty() && peerFile.getKeys().isEmpty()) {
+                log.info("File {} is no longer being backed by any peer!", file);
+                context.removeSentFile(file.getKey());
+            }
+        } else {
+            log.info("Fragment {} of {} was lost, repairing from the surviving fragments...", index, peerFile.getId());
+            log.info(context.repairFragment(peerFile, index));
+        }
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,49 @@
+package operations.application;
+
+import messages.application.Ack;
+import messages.application.ApplicationMessage;
+import messages.application.Sync;
+import peer.Peer;
+import peer.backend.PeerFile;
+import peer.ssl.SSLConnection;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SyncOp extends AppOperation {
+    public SyncOp(SSLConnection connection, ApplicationMessage message, Peer context) {
+        super(connection, message, context);
+    }
+
+    @Override
+    public void run() {
+        Sync sync = (Sync) message;
+        switch (sync.getPhase()) {
+            case Sync.TREE:
+                String differing = context.getReplicas().compareTree(sync.getSender(), sync.getEntries());
+                context.send(connection, new Ack(context.getReference(), differing.getBytes(StandardCharsets.UTF_8)));
+                break;
+            case Sync.FILES:
+                if (!this.receiveEntries(sync)) return;
+                // the partner does not wait for the files to be transferred
+                context.send(connection, new Ack(context.getReference()));
+                context.getReplicas().reconcile(sync.getSender(), sync.getLeaves(), sync.getEntries());
+                break;
+            case Sync.OFFER:
+            case Sync.HOT:
+                if (!this.receiveEntries(sync)) return;
+                context.send(connection, new Ack(context.getReference()));
+
+                List<PeerFile> offered = new ArrayList<>();
+                for (String entry : sync.getEntries()) {
+                    PeerFile file = PeerFile.parse(entry, context.getGuid());
+                    if (file != null) offered.add(file);
+                }
+                context.getReplicas().pullReplicas(sync.getSender(), offered, sync.getPhase().equals(Sync.HOT));
+                break;
+            default:
+                log.error("Unknown SYNC phase: {}", sync.getPhase());
+        }
+    }
+}
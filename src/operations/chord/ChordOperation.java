@@ -36,6 +36,10 @@ public abstract class ChordOperation extends Operation {
                 return new PredecessorReplyOp(connection, (PredecessorReply) message, context);
             case "NOTIFICATION":
                 return new NotificationOp(connection, (Notification) message, context);
+            case "SUCCESSORS":
+                return new SuccessorsOp(connection, (Successors) message, context);
+            case "SUCCESSORSREPLY":
+                return new SuccessorsReplyOp(connection, (SuccessorsReply) message, context);
             case "COPY":
                 return new CopyOp(connection, message, context);
             default:
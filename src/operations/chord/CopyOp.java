@@ -1,15 +1,23 @@
 package operations.chord;
 
 import messages.Message;
+import messages.application.Ack;
 import messages.chord.ChordMessage;
+import messages.chord.Copy;
 import messages.chord.CopyReply;
+import peer.Constants;
 import peer.Peer;
 import peer.backend.PeerFile;
+import peer.chord.ChordPeer;
+import peer.chord.ChordReference;
+import peer.ssl.MessageTimeoutException;
 import peer.ssl.SSLConnection;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 public class CopyOp extends ChordOperation {
     public CopyOp(SSLConnection connection, ChordMessage message, Peer context) {
@@ -18,24 +26,48 @@ public class CopyOp extends ChordOperation {
 
     @Override
     public void run() {
-        int key = message.getSender().getGuid();
+        Copy copy = (Copy) message;
+        int joiner = copy.getSender().getGuid();
 
-        List<String> keys = new ArrayList<>();
+        // the joiner takes over the arc between this peer's predecessor and itself, the whole arc before
+        // itself if the predecessor is not known
+        ChordReference predecessor = context.getPredecessor();
+        int from = predecessor == null || predecessor.getGuid() == joiner ? context.getGuid() : predecessor.getGuid();
 
+        // page: the files on the arc with the smallest IDs after the previous page, largest on top
+        PriorityQueue<PeerFile> page = new PriorityQueue<>(Comparator.comparing(PeerFile::getId).reversed());
         for (PeerFile file : context.getSavedFiles()) {
-            if (file.getKey() <= message.getSender().getGuid())
-                keys.add(String.format("%d|%s|%s|%d|%d", file.getKey(), file.getId(), file.getOwner(), file.getSize(), file.getReplicationDegree()));
+            String id = file.getId();
+            // fragments are placed one per peer, they are not handed over
+            if (PeerFile.fragmentIndex(id) >= 0) continue;
+            // soft replicas are not on the placement, the joiner does not take them over
+            if (file.isSoft()) continue;
+            if (copy.getAfter() != null && id.compareTo(copy.getAfter()) <= 0) continue;
+            if (!ChordPeer.between(Peer.ringPosition(id), from, joiner, false)) continue;
+            page.add(file);
+            if (page.size() > Constants.COPY_PAGE_SIZE) page.poll();
         }
 
-        Message reply;
-        if (keys.isEmpty()) {
-            reply = new CopyReply(this.context.getReference(), "NONE".getBytes(StandardCharsets.UTF_8));
-        } else {
-            byte[] replyBody = String.join("::", keys).getBytes(StandardCharsets.UTF_8);
+        List<PeerFile> files = new ArrayList<>(page);
+        files.sort(Comparator.comparing(PeerFile::getId));
+        List<String> descriptions = new ArrayList<>(files.size());
+        for (PeerFile file : files) descriptions.add(file.describe());
+        byte[] list = String.join("\n", descriptions).getBytes(StandardCharsets.UTF_8);
 
-            reply = new CopyReply(this.context.getReference(), replyBody);
+        String next = files.size() == Constants.COPY_PAGE_SIZE ? files.get(files.size() - 1).getId() : null;
+        context.send(connection, new CopyReply(context.getReference(), files.size(), list.length, next));
+        if (files.isEmpty()) return;
+
+        // the page is sent once the joiner is on blocking mode
+        Message ready;
+        try {
+            ready = context.receiveBlocking(connection, 100);
+        } catch (MessageTimeoutException e) {
+            log.error("{} did not acknowledge the COPY page: {}", copy.getSender(), e.getMessage());
+            return;
         }
+        if (ready instanceof Ack) context.sendBytes(connection, list);
 
-        context.send(connection, reply);
+        // client needs to close connection on their side
     }
 }
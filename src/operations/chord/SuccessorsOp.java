@@ -0,0 +1,25 @@
+package operations.chord;
+
+import messages.Message;
+import messages.chord.Successors;
+import messages.chord.SuccessorsReply;
+import peer.Peer;
+import peer.ssl.SSLConnection;
+
+import java.nio.charset.StandardCharsets;
+
+public class SuccessorsOp extends ChordOperation {
+    public SuccessorsOp(SSLConnection connection, Successors message, Peer context) {
+        super(connection, message, context);
+    }
+
+    @Override
+    public void run() {
+        log.debug("Sending back successor list...");
+
+        String successors = SuccessorsReply.encodeSuccessors(context.getSuccessorList());
+        Message message = new SuccessorsReply(context.getReference(), successors.getBytes(StandardCharsets.UTF_8));
+
+        context.send(connection, message);
+    }
+}
@@ -0,0 +1,16 @@
+package operations.chord;
+
+import messages.chord.SuccessorsReply;
+import peer.Peer;
+import peer.ssl.SSLConnection;
+
+public class SuccessorsReplyOp extends ChordOperation {
+    public SuccessorsReplyOp(SSLConnection connection, SuccessorsReply message, Peer context) {
+        super(connection, message, context);
+    }
+
+    @Override
+    public void run() {
+        // this will be handled by the chord peer
+    }
+}
@@ -9,4 +9,62 @@ public class Constants {
     public final static long DEFAULT_CAPACITY = (long) Math.pow(2, 31); // 2.15GB
     public final static int M_BIT = 8;
     public final static int CHORD_MAX_PEERS = (int) Math.pow(2, M_BIT);
+    public final static int SUCCESSOR_LIST_SIZE = 8; // successors kept by each peer, replicas are placed on them
+    public final static long OCCUPATION_RECONCILE_PERIOD = 300; // seconds
+    public final static int OCCUPATION_RECONCILE_BATCH = 1000; // files visited before pausing
+    public final static long OCCUPATION_RECONCILE_PAUSE = 50; // milliseconds
+    public final static long METADATA_LOG_FLUSH_INTERVAL = 50; // milliseconds, group commit window
+    public final static boolean METADATA_LOG_FSYNC = true;
+    public final static long METADATA_LOG_COMPACT_SIZE = 4 * 1024 * 1024; // 4MB
+    public final static long METADATA_SNAPSHOT_PERIOD = 300; // seconds
+    public final static int CDC_MIN_CHUNK = 16 * 1024;
+    public final static int CDC_AVG_BITS = 16; // 64KB average chunk
+    public final static int CDC_MAX_CHUNK = 256 * 1024;
+    public final static int ERASURE_BLOCK = 64 * 1024; // bytes coded at a time on each fragment
+    public final static long RESTORE_STRIPE_SIZE = 4 * 1024 * 1024; // bytes fetched from a replica at a time
+    public final static int RESTORE_SLOW_FACTOR = 4; // replicas this many times slower than the fastest stop receiving stripes
+    public final static long PARTIAL_TRANSFER_TTL = 600; // seconds the chunks of an interrupted BACKUP are kept
+    public final static int PACK_THRESHOLD = 32 * 1024; // objects up to this size are kept on pack segments
+    public final static long PACK_SEGMENT_SIZE = 64 * 1024 * 1024; // 64MB
+    public final static double PACK_COMPACT_RATIO = 0.5; // segments with less live data than this are compacted
+    public final static long PACK_COMPACT_PERIOD = 30; // seconds
+    public final static int FANOUT_WINDOW = 64; // chunks of a file kept in memory while it is sent to its replicas
+    public final static long FANOUT_WAIT = 5000; // milliseconds to wait for every replica before reading
+    public final static int INLINE_THRESHOLD = 8 * 1024; // files up to this size travel inside the BACKUP message and the GET reply
+    public final static int CHAIN_ACK_TIMEOUT = 2000; // milliseconds, per peer left on the chain
+    public final static long RESERVATION_TIMEOUT = 600; // seconds before the space reserved for a BACKUP that never finished is released
+    public final static boolean BACKGROUND_VERIFICATION = false; // scrub every saved file right after startup
+    public final static long SCRUB_PERIOD = 6 * 60 * 60; // seconds between background scrubs of the saved files
+    public final static long SCRUB_RATE = 8 * 1024 * 1024; // bytes per second read by the scrubber
+    public final static int BATCH_SIZE = 4096; // entries of a DELETE or REMOVED batch, the ACK's bitmap must fit on a message
+    public final static int BATCH_RETRIES = 3; // attempts after the first one for the entries of a batch that failed
+    public final static long BATCH_RETRY_DELAY = 1000; // milliseconds, multiplied by the attempt
+    public final static int MERKLE_BRANCHES = 16; // leaves under each node of the anti-entropy Merkle tree
+    public final static long ANTI_ENTROPY_PERIOD = 300; // seconds between anti-entropy rounds with the successors
+    public final static long TOMBSTONE_TTL = 24 * 60 * 60; // seconds a deleted or reclaimed file is not pulled back by anti-entropy
+    public final static int COPY_PAGE_SIZE = 8192; // files listed on each page of the COPY sent to a joining peer
+    public final static int COPY_STREAMS = 4; // connections a joining peer receives the files of its arc on
+    public final static long CHUNK_CACHE_SIZE = 64 * 1024 * 1024; // 64MB of hot chunks kept off-heap
+    public final static double CHUNK_CACHE_WINDOW = 0.01; // part of the chunk cache where new chunks wait to be admitted
+    public final static int CHUNK_HANDLE_CACHE_SIZE = 128; // chunk files kept open for reading
+    public final static long POPULARITY_HALF_LIFE = 600; // seconds for the GET count of a saved file to fade by half
+    public final static long POPULARITY_PERIOD = 60; // seconds between checks for files that became hot or cold
+    public final static double HOT_THRESHOLD = 64; // decayed GET count above which a file gets soft replicas
+    public final static double COLD_THRESHOLD = 8; // decayed GET count below which a soft replica is dropped
+    public final static int HOT_EXTRA_REPLICAS = 2; // soft replicas of a hot file, on the peers after its holders
+    public final static double HEDGE_PERCENTILE = 0.95; // a stripe that did not start after this percentile of the first byte latencies is hedged
+    public final static int HEDGE_SAMPLES = 256; // recent first byte latencies the hedge delay is computed from
+    public final static int HEDGE_MIN_SAMPLES = 16; // samples needed before the percentile is used instead of the maximum delay
+    public final static long HEDGE_MIN_DELAY = 50; // milliseconds
+    public final static long HEDGE_MAX_DELAY = 2000; // milliseconds
+    public final static long REPLICA_FAILURE_PENALTY = 60; // seconds a replica that failed is tried after the others
+    public final static long CONNECT_TIMEOUT = 2000; // milliseconds to wait for a peer to accept a connection
+    public final static long JOIN_JITTER = 1000; // maximum random milliseconds to wait before joining through the boot peer
+    public final static boolean WIRE_COMPRESSION = true; // propose and accept compressed BACKUP and GET transfers
+    public final static boolean COMPRESS_AT_REST = false; // keep the chunk files that compress compressed on disk
+    public final static int COMPRESSION_LEVEL = 1; // Deflater level, the fastest one
+    public final static int COMPRESSION_BLOCK = 64 * 1024; // bytes compressed at a time on a transfer
+    public final static int COMPRESSION_SAMPLE = 64 * 1024; // bytes of a file compressed to decide whether to propose compression
+    public final static double COMPRESSION_RATIO = 0.9; // data must shrink below this part of its size to be sent or kept compressed
+    public final static int COMPRESSION_BACKOFF = 16; // blocks sent stored without trying after a block that did not compress
 }
@@ -5,24 +5,36 @@ import messages.Message;
 import messages.application.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import peer.backend.ChunkStore;
+import peer.backend.Chunker;
+import peer.backend.Compression;
+import peer.backend.EvictionPolicy;
+import peer.backend.FanOutReader;
+import peer.backend.Fragments;
+import peer.backend.Manifest;
+import peer.backend.PartialTransfer;
 import peer.backend.PeerFile;
 import peer.backend.PeerInternalState;
+import peer.backend.ReedSolomon;
+import peer.backend.StripedFetch;
 import peer.chord.ChordPeer;
 import peer.chord.ChordReference;
 import peer.ssl.MessageTimeoutException;
 import peer.ssl.SSLConnection;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.RemoteException;
@@ -31,6 +43,7 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Function;
 
 /**
  * Main class for the System, the peer is responsible for the execution of protocols and
@@ -40,9 +53,11 @@ import java.util.concurrent.*;
 public class Peer extends ChordPeer implements RemotePeer {
     private final static Logger log = LogManager.getLogger(Peer.class);
     private final String sap;
-    public final ExecutorService PROTOCOL_EXECUTOR = Executors.newFixedThreadPool(16);
-    private final ExecutorService clientRequests = Executors.newFixedThreadPool(8);
+    public final ExecutorService PROTOCOL_EXECUTOR = Threads.pool(16);
+    private final ExecutorService clientRequests = Threads.pool(8);
     private ClientCallbackInterface callbackInterface;
+    private final StripedFetch stripedFetch = new StripedFetch(this, scheduler);
+    private final ReplicaMaintenance replicas = new ReplicaMaintenance(this);
 
     /**
      * Main method to start the peer
@@ -52,15 +67,19 @@ public class Peer extends ChordPeer implements RemotePeer {
      */
     public static void main(String[] args) throws UnknownHostException {
         if (args.length < 3) {
-            System.out.println("Usage: java Peer <Service Access Point> <BOOT PEER IP> <BOOT PEER PORT> [-b]");
+            System.out.println("Usage: java Peer <Service Access Point> <BOOT PEER IP> <BOOT PEER PORT> [-b] [-v]");
             System.out.println("Service Access Point: RMI bind");
+            System.out.println("-b: boot peer, -v: run operations on virtual threads (JDK 21+)");
             return;
         }
 
         String sap = args[0];
         InetAddress bootAddress = InetAddress.getByName(args[1]);
         int bootPort = Integer.parseInt(args[2]);
-        boolean boot = (args.length > 3 && args[3].equals("-b"));
+        List<String> flags = Arrays.asList(args).subList(3, args.length);
+        boolean boot = flags.contains("-b");
+        // the executors are created with the peer, the mode is selected before
+        if (flags.contains("-v") && Threads.useVirtual(true)) log.info("Running operations on virtual threads");
 
         try {
             Peer peer = new Peer(new InetSocketAddress(bootAddress, bootPort), boot, sap);
@@ -128,19 +147,157 @@ public class Peer extends ChordPeer implements RemotePeer {
      */
     @Override
     public void backup(String filename, int replicationDegree) {
-        clientRequests.submit(() -> _backup(filename, replicationDegree));
+        clientRequests.submit(() -> _backup(filename, replicationDegree, false));
     }
 
     /**
-     * Private method to backup a file, this method generates 3 * <code>replication degree</code> keys to attempt
-     * to find <code>replication degree</code> peers to send the file to. For each peer it finds starts a new
-     * separate backup operation, this behaviour enhances the concurrency because this means we can send a file to
-     * multiple peers at the same time.
+     * Method to start a backup operation by the client, optionally as a chain where the replicas forward the
+     * file to each other instead of this peer sending every copy
+     *
+     * @param filename          Filename to be backed up
+     * @param replicationDegree Desired Replication degree
+     * @param chained           if true the file is sent along a chain of the replicas
+     */
+    @Override
+    public void backup(String filename, int replicationDegree, boolean chained) {
+        clientRequests.submit(() -> _backup(filename, replicationDegree, chained));
+    }
+
+    /**
+     * Method to start an erasure coded backup operation by the client
+     *
+     * @param filename        Filename to be backed up
+     * @param dataFragments   Number of data fragments (k)
+     * @param parityFragments Number of parity fragments (m)
+     */
+    @Override
+    public void backup(String filename, int dataFragments, int parityFragments) {
+        clientRequests.submit(() -> _backupErasure(filename, dataFragments, parityFragments));
+    }
+
+    /**
+     * Method to find distinct peers, other than this one, to store a file on. The peers are the first ones of the
+     * file's placement that are not excluded, the key used for each peer is its GUID.
+     *
+     * @param fileId     File's ID
+     * @param count      Number of peers wanted
+     * @param excluded   Peers that can not be chosen
+     * @param targetKeys List to put the key used for each peer on
+     * @return the chosen peers, may be fewer than <code>count</code>
+     */
+    public List<ChordReference> findTargets(String fileId, int count, Collection<ChordReference> excluded, List<Integer> targetKeys) {
+        List<ChordReference> targetPeers = new ArrayList<>();
+        for (ChordReference peer : this.placement(fileId, count + excluded.size() + 1)) {
+            if (targetPeers.size() == count) break;
+            if (peer.getGuid() == this.guid || excluded.contains(peer)) continue;
+            targetPeers.add(peer);
+            targetKeys.add(peer.getGuid());
+        }
+        log.info("Placement of {}: {}", fileId, targetPeers);
+        return targetPeers;
+    }
+
+    /**
+     * Method to get the placement of a file: the file's ID is hashed to a position on the ring, and the file's
+     * copies go to the peer responsible for that position and the peers after it. Any peer finds the same peers
+     * from the ID alone, with one lookup and one successor list, more successor lists are only fetched when
+     * more peers are needed than a list has.
+     *
+     * @param fileId File's ID
+     * @param count  Number of peers wanted
+     * @return the first distinct peers after the file's position, this peer included, may be fewer than
+     * <code>count</code> on a small ring
+     */
+    public List<ChordReference> placement(String fileId, int count) {
+        return this.placementAt(ringPosition(fileId), count);
+    }
+
+    /**
+     * @param position Position on the ring
+     * @param count    Number of peers wanted
+     * @return the first distinct peers after the position
+     * @see #placement(String, int)
+     */
+    List<ChordReference> placementAt(int position, int count) {
+        List<ChordReference> peers = new ArrayList<>();
+        ChordReference first = this.findSuccessor(position);
+        if (first == null) return peers;
+        peers.add(first);
+
+        ChordReference last = first;
+        while (peers.size() < count) {
+            List<ChordReference> successors = this.getSuccessors(last);
+            if (successors == null) break;
+            int before = peers.size();
+            for (ChordReference successor : successors) {
+                if (peers.size() == count) break;
+                // the list wraps around on rings smaller than the list
+                if (!peers.contains(successor)) peers.add(successor);
+            }
+            if (peers.size() == before) break;
+            last = peers.get(peers.size() - 1);
+        }
+        return peers;
+    }
+
+    /**
+     * @param fileId File's ID
+     * @return the position of the file on the ring
+     */
+    public static int ringPosition(String fileId) {
+        String parentId = PeerFile.parentId(fileId);
+        try {
+            return (int) (Long.parseLong(parentId.substring(0, Math.min(8, parentId.length())), 16) % Constants.CHORD_MAX_PEERS);
+        } catch (NumberFormatException e) {
+            return Math.floorMod(parentId.hashCode(), Constants.CHORD_MAX_PEERS);
+        }
+    }
+
+    /**
+     * Method to find the peers serving the replicas of a file. Replicas are found on the file's placement, the
+     * keys that are not on it (files backed up with random keys, or placed before peers joined or left) are
+     * looked up on their own.
+     *
+     * @param peerFile File to be located
+     * @return the peer serving each key of the file, by key
+     */
+    public Map<Integer, ChordReference> locateReplicas(PeerFile peerFile) {
+        Set<Integer> keys = new HashSet<>(peerFile.getKeys());
+        boolean known = !keys.isEmpty();
+        Map<Integer, ChordReference> replicas = new LinkedHashMap<>();
+        for (ChordReference peer : this.placement(peerFile.getId(), peerFile.getReplicationDegree() + 1)) {
+            if (peer.getGuid() == this.guid) continue;
+            if (!known && replicas.size() < peerFile.getReplicationDegree() || keys.remove(peer.getGuid())) {
+                replicas.put(peer.getGuid(), peer);
+            }
+        }
+        for (int key : keys) {
+            ChordReference reference = this.findSuccessor(key);
+            if (reference != null && reference.getGuid() != this.guid) replicas.put(key, reference);
+        }
+        return replicas;
+    }
+
+    @Override
+    protected void startPeriodicChecks() {
+        super.startPeriodicChecks();
+        // the round runs on the protocol executor, the scheduler's threads keep the ring stable
+        scheduler.scheduleWithFixedDelay(() -> PROTOCOL_EXECUTOR.submit(this.replicas::antiEntropy),
+                Constants.ANTI_ENTROPY_PERIOD, Constants.ANTI_ENTROPY_PERIOD, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(() -> PROTOCOL_EXECUTOR.submit(this.replicas::balanceReplicas),
+                Constants.POPULARITY_PERIOD, Constants.POPULARITY_PERIOD, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Private method to backup a file, the file is sent to the first <code>replication degree</code> peers of its
+     * placement. For each peer it starts a new separate backup operation, this behaviour enhances the concurrency
+     * because this means we can send a file to multiple peers at the same time.
      *
      * @param filename          File to be backed up
      * @param replicationDegree desired replication degree
+     * @param chained           if true the replicas forward the file to each other, small files are always sent directly
      */
-    private void _backup(String filename, int replicationDegree) {
+    private void _backup(String filename, int replicationDegree, boolean chained) {
         if (!this.isActive()) {
             sendNotification("Peer's Server is not online yet!");
             return;
@@ -161,38 +318,44 @@ public class Peer extends ChordPeer implements RemotePeer {
             long size = attributes.size();
             String fileId = Utils.generateHashForFile(filename, attributes);
 
+            // the file is split into chunks once, every target only receives the chunks it does not have
+            Manifest manifest;
+            try (FileChannel channel = FileChannel.open(file.toPath())) {
+                manifest = Chunker.chunk(channel);
+            }
+            log.info("File split into {} chunks", manifest.count());
 
-            List<Integer> keys = new ArrayList<>();
-            ThreadLocalRandom.current().ints(0, Constants.CHORD_MAX_PEERS).distinct().limit(replicationDegree * 4L).forEach(keys::add);
-
-            log.info("Keys: {}", keys);
 
-            List<ChordReference> targetPeers = new ArrayList<>();
             List<Integer> targetKeys = new ArrayList<>();
-
-            for (int key : keys) {
-                ChordReference peer = findSuccessor(key);
-                if (peer.getGuid() != this.guid && !targetPeers.contains(peer)) {
-                    targetPeers.add(peer);
-                    targetKeys.add(key);
-                }
-                if (targetPeers.size() == replicationDegree) break;
-            }
+            List<ChordReference> targetPeers = findTargets(fileId, replicationDegree, Collections.emptyList(), targetKeys);
 
             if (targetPeers.size() == 0) {
                 sendNotification("Could not find Peers to Backup this file!");
                 return;
             }
 
+            // a file that changed since it was backed up has a new ID, its previous version is retired
+            PeerFile previous = this.internalState.getSentFilesMap().get(filename);
             PeerFile peerFile;
-            if (this.internalState.getSentFilesMap().containsKey(filename)) {
-                peerFile = this.internalState.getSentFilesMap().get(filename);
+            if (previous != null && previous.getId().equals(fileId)) {
+                peerFile = previous;
             } else {
                 peerFile = new PeerFile(-1, fileId, this.getReference(), size, replicationDegree);
             }
+            peerFile.setChecksum(manifest.checksum());
+
+            if (chained && targetPeers.size() > 1 && size > Constants.INLINE_THRESHOLD) {
+                String result = this.backupChain(targetPeers, targetKeys, file, fileId, size, replicationDegree, manifest, peerFile);
+                this.registerBackup(filename, previous, peerFile);
+                sendNotification(result);
+                return;
+            }
 
             log.info("Sending file to: {} with keys: {}", targetPeers, targetKeys);
             List<Future<String>> tasks = new ArrayList<>();
+            // every chunk is read from disk once and sent to all the targets that need it
+            FanOutReader reader = new FanOutReader(file.toPath(), manifest, targetPeers.size());
+            String codec = Compression.propose(file.toPath());
 
             for (ChordReference targetPeer : targetPeers) {
                 String body = String.join("::",
@@ -200,24 +363,29 @@ public class Peer extends ChordPeer implements RemotePeer {
                                 String.valueOf(size),
                                 this.getReference().toString(),
                                 targetKeys.get(targetPeers.indexOf(targetPeer)).toString(),
-                                String.valueOf(replicationDegree)
+                                String.valueOf(replicationDegree),
+                                String.valueOf(manifest.encodedSize()),
+                                codec
                         ));
                 Backup message = new Backup(this.getReference(), body.getBytes(StandardCharsets.UTF_8));
 
-                Callable<String> runnable = () -> backup(targetPeer, file, message, peerFile);
+                Callable<String> runnable = () -> backup(targetPeer, file, message, peerFile, manifest, -1, reader);
                 tasks.add(PROTOCOL_EXECUTOR.submit(runnable));
             }
 
 
             StringBuilder result = new StringBuilder("----------------------------------------------------------------\n");
             result.append(String.format("Result for %s with replication degree %d\n", filename, replicationDegree));
-            for (Future<String> task : tasks) {
-                String peerResult = task.get();
-                result.append(peerResult).append("\n");
+            try (reader) {
+                for (Future<String> task : tasks) {
+                    String peerResult = task.get();
+                    result.append(peerResult).append("\n");
+                }
             }
+            log.info("{} chunks read from disk for {} targets", reader.getDiskReads(), targetPeers.size());
             result.append("----------------------------------------------------------------");
 
-            this.internalState.addSentFile(filename, peerFile);
+            this.registerBackup(filename, previous, peerFile);
 
             sendNotification(result.toString());
         } catch (IOException e) {
@@ -229,34 +397,210 @@ public class Peer extends ChordPeer implements RemotePeer {
         }
     }
 
+    /**
+     * Private method to backup a file with erasure coding. The file is split into <code>k</code> data fragments
+     * and <code>m</code> parity fragments, and each fragment is sent to a different peer, any <code>k</code> of them
+     * are enough to restore the file. If the file was already backed up with the same geometry only the fragments
+     * that are not being served are sent.
+     *
+     * @param filename        File to be backed up
+     * @param dataFragments   Number of data fragments (k)
+     * @param parityFragments Number of parity fragments (m)
+     */
+    private void _backupErasure(String filename, int dataFragments, int parityFragments) {
+        if (!this.isActive()) {
+            sendNotification("Peer's Server is not online yet!");
+            return;
+        }
+
+        if (this.successor() == null || this.successor().getGuid() == this.guid) {
+            sendNotification("Could not start BACKUP as this peer has not found other peers yet");
+            return;
+        }
+
+        ReedSolomon codec;
+        try {
+            codec = new ReedSolomon(dataFragments, parityFragments);
+        } catch (IllegalArgumentException e) {
+            sendNotification("Failed to BACKUP file: " + e.getMessage());
+            return;
+        }
+        int total = codec.getTotalShards();
+
+        log.info("Starting erasure coded BACKUP for {} with {}+{} fragments", filename, dataFragments, parityFragments);
+
+        File file = new File(filename);
+        Path[] fragmentFiles = new Path[total];
+        try {
+            BasicFileAttributes attributes = Files.getFileAttributeView(file.toPath(), BasicFileAttributeView.class).readAttributes();
+            long size = attributes.size();
+            String fileId = Utils.generateHashForFile(filename, attributes);
+
+            PeerFile previous = this.internalState.getSentFilesMap().get(filename);
+            PeerFile peerFile = previous;
+            if (peerFile == null || !peerFile.getId().equals(fileId)
+                    || peerFile.getDataFragments() != dataFragments || peerFile.getParityFragments() != parityFragments) {
+                peerFile = new PeerFile(-1, fileId, this.getReference(), size, total, dataFragments, parityFragments);
+            }
+
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < total; i++) {
+                if (!peerFile.getFragments().containsKey(i)) missing.add(i);
+            }
+
+            // every fragment goes to a different peer, otherwise losing one peer loses more than one fragment
+            List<ChordReference> holders = new ArrayList<>();
+            for (int key : peerFile.getFragments().values()) {
+                holders.add(this.findSuccessor(key));
+            }
+            List<Integer> targetKeys = new ArrayList<>();
+            List<ChordReference> targetPeers = findTargets(fileId, missing.size(), holders, targetKeys);
+            if (targetPeers.size() < missing.size()) {
+                sendNotification(String.format("Could not find %d distinct Peers to store the fragments (found %d)", missing.size(), targetPeers.size()));
+                return;
+            }
+
+            Path directory = this.fragmentsDirectory();
+            for (int i = 0; i < total; i++) {
+                fragmentFiles[i] = directory.resolve(peerFile.getFragmentId(i));
+            }
+            Fragments.encode(file.toPath(), codec, fragmentFiles);
+            long fragmentSize = Fragments.fragmentSize(size, dataFragments);
+
+            log.info("Sending fragments {} to: {} with keys: {}", missing, targetPeers, targetKeys);
+            List<Future<String>> tasks = new ArrayList<>();
+            for (int i = 0; i < missing.size(); i++) {
+                int index = missing.get(i);
+                tasks.add(PROTOCOL_EXECUTOR.submit(this.backupFragment(peerFile, index, fragmentFiles[index].toFile(), fragmentSize, targetPeers.get(i), targetKeys.get(i))));
+            }
+
+            StringBuilder result = new StringBuilder("----------------------------------------------------------------\n");
+            result.append(String.format("Result for %s with %d+%d fragments of %s\n", filename, dataFragments, parityFragments, Utils.prettySize(fragmentSize)));
+            for (Future<String> task : tasks) {
+                result.append(task.get()).append("\n");
+            }
+            result.append(String.format("%d of %d fragments stored\n", peerFile.getFragments().size(), total));
+            result.append("----------------------------------------------------------------");
+
+            this.registerBackup(filename, previous, peerFile);
+
+            sendNotification(result.toString());
+        } catch (IOException e) {
+            sendNotification("Failed to BACKUP file: " + e.getMessage());
+        } catch (ExecutionException e) {
+            sendNotification("Failed to BACKUP fragment on one Peer: " + e.getMessage());
+        } catch (InterruptedException e) {
+            sendNotification("Interrupted Exception");
+        } finally {
+            this.deleteFragmentFiles(fragmentFiles);
+        }
+    }
+
+    /**
+     * Method to build the backup operation for one fragment of an erasure coded file
+     *
+     * @param peerFile     Erasure coded File
+     * @param index        Fragment's Index
+     * @param fragment     Fragment's content
+     * @param fragmentSize Fragment's Size
+     * @param target       Target Peer
+     * @param key          Key associated with the target peer
+     * @return the backup operation
+     * @throws IOException on error reading the fragment
+     */
+    private Callable<String> backupFragment(PeerFile peerFile, int index, File fragment, long fragmentSize, ChordReference target, int key) throws IOException {
+        Manifest manifest;
+        try (FileChannel channel = FileChannel.open(fragment.toPath())) {
+            manifest = Chunker.chunk(channel);
+        }
+
+        String body = String.join("::",
+                Arrays.asList(peerFile.getFragmentId(index),
+                        String.valueOf(fragmentSize),
+                        this.getReference().toString(),
+                        String.valueOf(key),
+                        String.valueOf(peerFile.getReplicationDegree()),
+                        String.valueOf(manifest.encodedSize()),
+                        Compression.propose(fragment.toPath())
+                ));
+        Backup message = new Backup(this.getReference(), body.getBytes(StandardCharsets.UTF_8));
+        return () -> backup(target, fragment, message, peerFile, manifest, index);
+    }
+
+    /**
+     * Method to start a backup for a file to a peer
+     *
+     * @param target   Target Peer
+     * @param file     Target File
+     * @param message  Backup Message
+     * @param peerFile Peer File
+     * @param manifest File's Manifest
+     * @return result of this operation
+     * @see #backup(ChordReference, File, Backup, PeerFile, Manifest, int)
+     */
+    public String backup(ChordReference target, File file, Backup message, PeerFile peerFile, Manifest manifest) {
+        return this.backup(target, file, message, peerFile, manifest, -1);
+    }
+
+    /**
+     * Method to start a backup for a file to a peer, reading the file on its own
+     *
+     * @param target   Target Peer
+     * @param file     Target File
+     * @param message  Backup Message
+     * @param peerFile Peer File
+     * @param manifest File's Manifest
+     * @param fragment Index of the fragment being sent, or -1 if it is a full replica
+     * @return result of this operation
+     * @see #backup(ChordReference, File, Backup, PeerFile, Manifest, int, FanOutReader)
+     */
+    public String backup(ChordReference target, File file, Backup message, PeerFile peerFile, Manifest manifest, int fragment) {
+        return this.backup(target, file, message, peerFile, manifest, fragment, null);
+    }
+
     /**
      * Method to start a backup for a file to a peer. This method sends a BACKUP message, waits for an Acknowledgement
-     * from the remote peer, and then proceeds to send the file, after sending the file it waits for another ACK
+     * from the remote peer, and then sends the file's manifest. The remote peer answers with a bitmap of the chunks
+     * it does not have, and only those chunks are sent. After sending the chunks it waits for another ACK
      * message so it can close the connection.
      *
      * @param target   Target Peer
      * @param file     Target File
      * @param message  Backup Message
      * @param peerFile Peer File
+     * @param manifest File's Manifest
+     * @param fragment Index of the fragment being sent, or -1 if it is a full replica
+     * @param reader   Reader shared with the other targets of the file, or null to read the file on its own
      * @return result of this operation
      */
-    public String backup(ChordReference target, File file, Backup message, PeerFile peerFile) {
+    public String backup(ChordReference target, File file, Backup message, PeerFile peerFile, Manifest manifest, int fragment, FanOutReader reader) {
+        long sent;
+        boolean subscribed = false;
         try {
             log.info("Starting backup for {} on Peer: {}", file.getName(), target);
+            // small files travel inside the BACKUP message, the ACK finishes the exchange
+            boolean inline = manifest.size() <= Constants.INLINE_THRESHOLD;
+            if (inline) message = message.inline(Files.readAllBytes(file.toPath()));
             SSLConnection connection = this.connectToPeer(target.getAddress());
             this.send(connection, message);
             log.info("Waiting ACK from Peer: {}...", target);
             Message reply = this.receiveBlocking(connection, 100);
 
-            if (reply instanceof Ack) {
+            if (reply instanceof Ack && inline) {
+                this.closeConnection(connection);
+                this.registerStored(peerFile, message.getKey(), fragment);
+                return String.format("Backup Successful on Peer %s (inline, %s)", target, Utils.prettySize(manifest.size()));
+            } else if (reply instanceof Ack) {
                 // continue
             } else if (reply instanceof Nack) {
                 this.closeConnection(connection);
                 if (((Nack) reply).getMessage().equals("NOSPACE")) {
                     return String.format("Peer %s has no space to store the file", target);
                 } else if (((Nack) reply).getMessage().equals("HAVEFILE")) {
-                    peerFile.addKey(message.getKey());
+                    this.registerStored(peerFile, message.getKey(), fragment);
                     return String.format("Peer %s already has the file", target);
+                } else if (((Nack) reply).getMessage().equals("BUSY")) {
+                    return String.format("Peer %s is already receiving the file", target);
                 } else {
                     return String.format("Received unexpected message from Peer: %s", target);
                 }
@@ -264,9 +608,29 @@ public class Peer extends ChordPeer implements RemotePeer {
                 return String.format("Received unexpected message from Peer: %s", target);
             }
 
-            FileChannel fileChannel = FileChannel.open(file.toPath());
-            log.info("Sending file to Peer {}...", target);
-            this.sendFile(connection, fileChannel);
+            // the receiver answers with the codec it accepts, peers that do not compress answer with nothing
+            String codec = ((Ack) reply).getMessage().equals(message.getCodec()) ? message.getCodec() : Compression.NONE;
+            log.info("Sending manifest to Peer {}...", target);
+            this.sendBytes(connection, manifest.encode());
+
+            connection.setPeerNetData(ByteBuffer.allocate(Constants.TLS_CHUNK_SIZE));
+            connection.getSocketChannel().configureBlocking(true);
+            boolean[] needed = Manifest.fromBitmap(this.receiveBytes(connection, (manifest.count() + 7) / 8), manifest.count());
+            sent = manifest.length(needed);
+
+            log.info("Sending {} to Peer {}...", Utils.prettySize(sent), target);
+            if (sent > 0 && reader != null) {
+                subscribed = true;
+                try (ReadableByteChannel channel = encode(reader.subscribe(needed), codec)) {
+                    this.sendFile(connection, channel);
+                }
+            } else if (sent > 0) {
+                try (FileChannel fileChannel = FileChannel.open(file.toPath());
+                     ReadableByteChannel channel = encode(manifest.reader(fileChannel, needed), codec)) {
+                    this.sendFile(connection, channel);
+                }
+            }
+            connection.getSocketChannel().configureBlocking(false);
             log.info("File sent to Peer {}!", target);
 
             log.info("Waiting ACK from Peer: {}...", target);
@@ -275,37 +639,209 @@ public class Peer extends ChordPeer implements RemotePeer {
             log.info("Received ACK from Peer {}!", target);
             this.closeConnection(connection);
 
-            peerFile.addKey(message.getKey());
+            this.registerStored(peerFile, message.getKey(), fragment);
         } catch (IOException | MessageTimeoutException e) {
             e.printStackTrace();
             return "Failed to Backup file on Peer " + target;
+        } finally {
+            // the other targets do not wait for one that is not going to read the file
+            if (reader != null && !subscribed) reader.withdraw();
         }
 
-        return "Backup Successful on Peer " + target;
+        return String.format("Backup Successful on Peer %s (sent %s of %s)", target, Utils.prettySize(sent), Utils.prettySize(manifest.size()));
+    }
+
+    /**
+     * @param channel Channel with the data to be sent
+     * @param codec   Codec negotiated for the transfer
+     * @return a channel reading the data with the codec
+     */
+    public static ReadableByteChannel encode(ReadableByteChannel channel, String codec) {
+        return Compression.DEFLATE.equals(codec) ? Compression.compress(channel) : channel;
     }
 
     /**
-     * Method to receive a file, the receiving procedure starts by sending a GET message, and then waiting for
-     * an acknowledgement signaling if the remote peer has the file and can send it or not, then another GET
+     * Method to backup a file with chain replication. The file is sent once, to the first peer of the chain, each
+     * peer stores the chunks it does not have while forwarding the ones the rest of the chain needs to the next
+     * peer, and the result of every peer travels back up the chain on the ACKs.
+     *
+     * @param targets           Peers of the chain, in order
+     * @param keys              Key associated with each peer
+     * @param file              File to be backed up
+     * @param fileId            File's ID
+     * @param size              File's size
+     * @param replicationDegree Desired replication degree
+     * @param manifest          File's Manifest
+     * @param peerFile          Peer File
+     * @return result of this operation
+     */
+    private String backupChain(List<ChordReference> targets, List<Integer> keys, File file, String fileId, long size, int replicationDegree, Manifest manifest, PeerFile peerFile) {
+        log.info("Sending file along the chain: {} with keys: {}", targets, keys);
+        Map<Integer, String> results = new LinkedHashMap<>();
+        long sent = 0;
+        SSLConnection connection = this.openChain(targets, keys, fileId, size, this.getReference(), replicationDegree, manifest, results);
+        if (connection != null) {
+            try {
+                connection.setPeerNetData(ByteBuffer.allocate(Constants.TLS_CHUNK_SIZE));
+                connection.getSocketChannel().configureBlocking(true);
+                boolean[] needed = Manifest.fromBitmap(this.receiveBytes(connection, (manifest.count() + 7) / 8), manifest.count());
+                sent = manifest.length(needed);
+
+                log.info("Sending {} to the chain...", Utils.prettySize(sent));
+                if (sent > 0) {
+                    try (FileChannel fileChannel = FileChannel.open(file.toPath())) {
+                        this.sendFile(connection, manifest.reader(fileChannel, needed));
+                    }
+                }
+                connection.getSocketChannel().configureBlocking(false);
+
+                log.info("Waiting ACK from the chain...");
+                Message reply = this.receiveBlocking(connection, Constants.CHAIN_ACK_TIMEOUT * targets.size());
+                if (reply instanceof Ack) results.putAll(parseChainResults(((Ack) reply).getMessage()));
+                this.closeConnection(connection);
+            } catch (IOException | MessageTimeoutException e) {
+                log.error("Chained backup of {} failed: {}", fileId, e.getMessage());
+            }
+        }
+
+        StringBuilder result = new StringBuilder("----------------------------------------------------------------\n");
+        result.append(String.format("Result for %s with replication degree %d (chain, sent %s of %s)\n", file.getName(),
+                replicationDegree, Utils.prettySize(sent), Utils.prettySize(manifest.size())));
+        for (int i = 0; i < targets.size(); i++) {
+            String status = results.getOrDefault(keys.get(i), "FAILED");
+            if (status.equals("STORED") || status.equals("HAVEFILE")) this.internalState.addKey(peerFile, keys.get(i));
+            switch (status) {
+                case "STORED":
+                    result.append(String.format("Backup Successful on Peer %s", targets.get(i)));
+                    break;
+                case "HAVEFILE":
+                    result.append(String.format("Peer %s already has the file", targets.get(i)));
+                    break;
+                case "NOSPACE":
+                    result.append(String.format("Peer %s has no space to store the file", targets.get(i)));
+                    break;
+                case "BUSY":
+                    result.append(String.format("Peer %s is already receiving the file", targets.get(i)));
+                    break;
+                default:
+                    result.append("Failed to Backup file on Peer ").append(targets.get(i));
+            }
+            result.append("\n");
+        }
+        result.append("----------------------------------------------------------------");
+        return result.toString();
+    }
+
+    /**
+     * Method to start a chained backup on the first peer of the chain that answers, the peers that do not are
+     * reported as failed and skipped. The manifest is sent to the peer, so it is ready to answer with the bitmap
+     * of the chunks the chain needs.
+     *
+     * @param chain             Peers of the chain, in order
+     * @param keys              Key associated with each peer
+     * @param fileId            File's ID
+     * @param size              File's size
+     * @param owner             File's owner
+     * @param replicationDegree Desired replication degree
+     * @param manifest          File's Manifest
+     * @param results           Map to put the result of the skipped peers on
+     * @return the connection to the first peer that answered, or null if none did
+     */
+    public SSLConnection openChain(List<ChordReference> chain, List<Integer> keys, String fileId, long size, ChordReference owner,
+                                   int replicationDegree, Manifest manifest, Map<Integer, String> results) {
+        for (int i = 0; i < chain.size(); i++) {
+            ChordReference target = chain.get(i);
+            String body = String.join("::",
+                    Arrays.asList(fileId,
+                            String.valueOf(size),
+                            owner.toString(),
+                            keys.get(i).toString(),
+                            String.valueOf(replicationDegree),
+                            String.valueOf(manifest.encodedSize()),
+                            Compression.NONE,
+                            Backup.encodeChain(chain.subList(i + 1, chain.size()), keys.subList(i + 1, keys.size()))
+                    ));
+            SSLConnection connection = this.connectToPeer(target.getAddress());
+            try {
+                if (connection == null) throw new IOException("Could not connect");
+                this.send(connection, new Backup(this.getReference(), body.getBytes(StandardCharsets.UTF_8)));
+                Message reply = this.receiveBlocking(connection, 100);
+                if (!(reply instanceof Ack)) throw new IOException("Unexpected reply " + reply);
+                this.sendBytes(connection, manifest.encode());
+                return connection;
+            } catch (IOException | MessageTimeoutException e) {
+                log.error("Skipping Peer {} on the chain: {}", target, e.getMessage());
+                if (connection != null) this.closeConnection(connection);
+                results.put(keys.get(i), "FAILED");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param body Body of the ACK of a chained backup, <code>&lt;key&gt;:&lt;status&gt;</code> entries separated by "::"
+     * @return the status reported for each key
+     */
+    public static Map<Integer, String> parseChainResults(String body) {
+        Map<Integer, String> results = new LinkedHashMap<>();
+        for (String entry : body.split("::")) {
+            String[] fields = entry.split(":");
+            if (fields.length == 2) results.put(Integer.parseInt(fields[0]), fields[1]);
+        }
+        return results;
+    }
+
+    private void registerStored(PeerFile peerFile, int key, int fragment) {
+        if (fragment < 0) {
+            this.internalState.addKey(peerFile, key);
+        } else {
+            this.internalState.addFragment(peerFile, fragment, key);
+        }
+    }
+
+    /**
+     * Method to request a file from a peer, the receiving procedure starts by sending a GET message, and then waiting
+     * for an acknowledgement signaling if the remote peer has the file and can send it or not, then another GET
      * is sent and this peer starts waiting for the file bytes. After the bytes are received this peer closes
      * the connection to the remote peer.
      *
      * @param connection Connection to be used
      * @param peerFile   Peer File associated
-     * @param filename   Filename
-     * @return true if the file was successfully received
+     * @param path       Path to write the file to
+     * @return the number of bytes received, or -1 if the file could not be received
      */
-    public boolean receiveFile(SSLConnection connection, PeerFile peerFile, String filename) {
+    private long fetchFile(SSLConnection connection, PeerFile peerFile, Path path) {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return this.fetchFile(connection, peerFile, fileChannel, 0, peerFile.getSize());
+        } catch (IOException e) {
+            log.error("Error receiving file: {}", e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Method to request a range of a file from a peer, with the same exchange used to request the whole file
+     *
+     * @param connection Connection to be used
+     * @param peerFile   Peer File associated
+     * @param output     Channel to write the bytes to
+     * @param offset     First byte of the range
+     * @param length     Number of bytes of the range
+     * @return the number of bytes received, or -1 if the range could not be received
+     */
+    public long fetchFile(SSLConnection connection, PeerFile peerFile, WritableByteChannel output, long offset, long length) {
         log.info("Starting GET...");
 
-        String fileId = peerFile.getId();
-        ChordReference owner = peerFile.getOwner();
-        long size = peerFile.getSize();
-        int key = peerFile.getKey();
-        int replicationDegree = peerFile.getReplicationDegree();
+        String body = peerFile.getId();
+        if (Constants.WIRE_COMPRESSION) {
+            // the codec needs the range to be explicit
+            body = String.join("::", Arrays.asList(peerFile.getId(), String.valueOf(offset), String.valueOf(length), Compression.DEFLATE));
+        } else if (offset != 0 || length != peerFile.getSize()) {
+            body = String.join("::", Arrays.asList(peerFile.getId(), String.valueOf(offset), String.valueOf(length)));
+        }
 
         // send GET message for fileID
-        this.send(connection, new Get(this.getReference(), peerFile.getId().getBytes(StandardCharsets.UTF_8)));
+        this.send(connection, new Get(this.getReference(), body.getBytes(StandardCharsets.UTF_8)));
         log.info("GET sent!");
 
         // receive Acknowledgement
@@ -314,38 +850,239 @@ public class Peer extends ChordPeer implements RemotePeer {
             ack = this.receiveBlocking(connection, 500);
         } catch (MessageTimeoutException e) {
             log.error("Could not receive ACK for GET message on for {}", peerFile);
-            return false;
+            return -1;
         }
-        if (ack instanceof Ack) {
+        if (ack instanceof Ack && length <= Constants.INLINE_THRESHOLD) {
+            // small files come inside the ACK
+            byte[] content = ((Ack) ack).getBody();
+            try {
+                if (content.length != length) throw new IOException(String.format("Expected %d bytes but received %d", length, content.length));
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                this.closeConnection(connection);
+                return content.length;
+            } catch (IOException e) {
+                log.error("Error receiving file: {}", e.getMessage());
+                return -1;
+            }
+        } else if (ack instanceof Ack) {
             // proceed
         } else if (ack instanceof Nack) {
             log.error("Not found: {}", peerFile);
-            return false;
+            return -1;
         }
+        String codec = ack instanceof Ack ? ((Ack) ack).getMessage() : Compression.NONE;
 
         // send new GET message, remote peer will start to write file to socket
-        this.send(connection, new Get(this.getReference(), peerFile.getId().getBytes(StandardCharsets.UTF_8)));
+        this.send(connection, new Get(this.getReference(), body.getBytes(StandardCharsets.UTF_8)));
 
         log.info("Getting file: {}", peerFile);
 
         try {
-            FileOutputStream outputStream = new FileOutputStream(this.getFileLocation(filename));
-            FileChannel fileChannel = outputStream.getChannel();
             log.info("Ready to receive file...");
             connection.setPeerNetData(ByteBuffer.allocate(Constants.TLS_CHUNK_SIZE));
             connection.getSocketChannel().configureBlocking(true);
-            this.receiveFile(connection, fileChannel, size);
-            fileChannel.close();
+            long received = this.receiveFile(connection, output, length, codec);
             log.info("Received file!");
 
             this.closeConnection(connection);
-
-            this.addSavedFile(key, fileId, owner, size, replicationDegree);
-            return true;
+            return received;
         } catch (IOException e) {
             log.error("Error receiving file: {}", e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Method to receive a file that this peer must serve, the file is added to the chunk store and saved
+     *
+     * @param connection  Connection to be used
+     * @param peerFile    Peer File associated
+     * @param reservation Reservation the file is received under
+     * @return true if the file was successfully received and stored
+     */
+    public boolean receiveReplica(SSLConnection connection, PeerFile peerFile, PeerInternalState.Reservation reservation) {
+        Path temporary = Path.of(this.getFileLocation(peerFile.getId() + ".part"));
+        long received = this.fetchFile(connection, peerFile, temporary);
+        if (received != peerFile.getSize()) {
+            this.deleteTemporary(temporary);
+            return false;
+        }
+        return this.storeReplica(peerFile, temporary, reservation);
+    }
+
+    /**
+     * Method to store a replica that was received to a temporary file, the temporary file is deleted
+     *
+     * @param peerFile    Peer File associated
+     * @param temporary   File the replica was received to
+     * @param reservation Reservation the replica was received under
+     * @return true if the replica matches its checksum and was stored
+     */
+    private boolean storeReplica(PeerFile peerFile, Path temporary, PeerInternalState.Reservation reservation) {
+        try {
+            Manifest manifest = this.internalState.getChunkStore().ingest(peerFile.getId(), temporary, reservation);
+            // the content was hashed while it was stored, it must be the content that was backed up
+            if (peerFile.getChecksum() != null && !peerFile.getChecksum().equals(manifest.checksum())) {
+                log.error("Received replica of {} does not match its checksum", peerFile.getId());
+                this.internalState.getChunkStore().delete(peerFile.getId());
+                return false;
+            }
+            PeerFile saved = new PeerFile(peerFile.getKey(), peerFile.getId(), peerFile.getOwner(), peerFile.getSize(), peerFile.getReplicationDegree());
+            saved.setChecksum(manifest.checksum());
+            saved.setSoft(peerFile.isSoft());
+            this.internalState.addSavedFile(saved);
             return true;
+        } catch (IOException e) {
+            log.error("Could not store file {}: {}", peerFile.getId(), e.getMessage());
+            return false;
+        } finally {
+            this.deleteTemporary(temporary);
+        }
+    }
+
+    private void deleteTemporary(Path temporary) {
+        try {
+            Files.deleteIfExists(temporary);
+        } catch (IOException e) {
+            log.error("Could not delete temporary file: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Method to receive many replicas from a single peer, as a new peer does when it takes over its arc. The
+     * files are split in up to {@link Constants#COPY_STREAMS} groups with about the same number of bytes, and
+     * each group is streamed on its own connection, one file after the other, so the transfer takes one
+     * exchange per group instead of two per file.
+     *
+     * @param source Peer holding the files
+     * @param files  Files to be received, with this peer's key
+     * @return the number of files received and stored
+     */
+    public int receiveReplicas(ChordReference source, List<PeerFile> files) {
+        List<PeerFile> wanted = new ArrayList<>();
+        for (PeerFile file : files) {
+            if (this.getSavedFile(file.getId()) == null) wanted.add(file);
+        }
+        wanted.sort(Comparator.comparingLong(PeerFile::getSize).reversed());
+
+        // largest files first, each to the group with the fewest bytes
+        int streams = Math.min(Constants.COPY_STREAMS, wanted.size());
+        List<List<PeerFile>> groups = new ArrayList<>();
+        long[] bytes = new long[streams];
+        for (int i = 0; i < streams; i++) groups.add(new ArrayList<>());
+        for (PeerFile file : wanted) {
+            int smallest = 0;
+            for (int i = 1; i < streams; i++) {
+                if (bytes[i] < bytes[smallest]) smallest = i;
+            }
+            groups.get(smallest).add(file);
+            bytes[smallest] += file.getSize();
+        }
+
+        List<Future<Integer>> transfers = new ArrayList<>();
+        for (List<PeerFile> group : groups) {
+            transfers.add(PROTOCOL_EXECUTOR.submit(() -> {
+                int stored = 0;
+                for (int from = 0; from < group.size(); from += Constants.BATCH_SIZE) {
+                    stored += this.fetchStream(source, group.subList(from, Math.min(group.size(), from + Constants.BATCH_SIZE)));
+                }
+                return stored;
+            }));
+        }
+
+        int stored = 0;
+        for (Future<Integer> transfer : transfers) {
+            try {
+                stored += transfer.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                log.error("Error receiving replicas from {}: {}", source, e.getMessage());
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Method to receive files from a peer on a single connection: the IDs are sent with a FETCH, the peer
+     * acknowledges with the ones it has, and after this peer's ACK they are streamed in order
+     *
+     * @param source Peer holding the files
+     * @param files  Files to be received, at most {@link Constants#BATCH_SIZE}
+     * @return the number of files received and stored
+     */
+    private int fetchStream(ChordReference source, List<PeerFile> files) {
+        List<PeerFile> requested = new ArrayList<>();
+        List<PeerInternalState.Reservation> reservations = new ArrayList<>();
+        for (PeerFile file : files) {
+            if (!this.internalState.claim(file.getId())) continue;
+            PeerInternalState.Reservation reservation = null;
+            if (this.getSavedFile(file.getId()) == null && (reservation = this.reserve(file.getSize())) == null) {
+                log.info("Not enough space to receive {}", file.getId());
+            }
+            if (reservation == null) {
+                this.internalState.unclaim(file.getId());
+                continue;
+            }
+            requested.add(file);
+            reservations.add(reservation);
+        }
+        if (requested.isEmpty()) return 0;
+
+        List<String> ids = new ArrayList<>();
+        for (PeerFile file : requested) ids.add(file.getId());
+
+        int stored = 0;
+        SSLConnection connection = this.connectToPeer(source.getAddress());
+        if (connection == null) {
+            reservations.forEach(PeerInternalState.Reservation::release);
+            ids.forEach(this.internalState::unclaim);
+            return 0;
         }
+        try {
+            Fetch fetch = new Fetch(this.getReference(), ids);
+            if (!this.send(connection, fetch)) return 0;
+            if (!fetch.isInline()) {
+                if (!(this.receiveBlocking(connection, 100) instanceof Ack)) return 0;
+                this.sendBytes(connection, BatchMessage.encodeList(ids));
+            }
+            Message reply = this.receiveBlocking(connection, 2000);
+            if (!(reply instanceof Ack)) return 0;
+            boolean[] present = Manifest.fromBitmap(((Ack) reply).getBody(), ids.size());
+
+            connection.setPeerNetData(ByteBuffer.allocate(Constants.TLS_CHUNK_SIZE));
+            connection.getSocketChannel().configureBlocking(true);
+            this.send(connection, new Ack(this.getReference()));
+
+            for (int i = 0; i < requested.size(); i++) {
+                if (!present[i]) continue;
+                PeerFile file = requested.get(i);
+                Path temporary = Path.of(this.getFileLocation(file.getId() + ".part"));
+                long received;
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    received = this.receiveFile(connection, channel, file.getSize());
+                }
+                if (received != file.getSize()) {
+                    // the files after it can not be told apart on the stream anymore
+                    this.deleteTemporary(temporary);
+                    throw new IOException(String.format("Stream of %s ended after %d of %d bytes", file.getId(), received, file.getSize()));
+                }
+                if (this.storeReplica(file, temporary, reservations.get(i))) stored++;
+                reservations.get(i).release();
+            }
+        } catch (MessageTimeoutException | IOException e) {
+            log.error("Stream from {} failed: {}", source, e.getMessage());
+        } finally {
+            this.closeConnection(connection);
+            reservations.forEach(PeerInternalState.Reservation::release);
+            ids.forEach(this.internalState::unclaim);
+        }
+        log.info("Received {} of {} files from {}", stored, requested.size(), source);
+        return stored;
     }
 
     /**
@@ -356,43 +1093,269 @@ public class Peer extends ChordPeer implements RemotePeer {
      */
     @Override
     public void restore(String filename) throws RemoteException {
-        clientRequests.submit(() -> _restore(filename));
+        clientRequests.submit(() -> _restore(filename, 0, -1));
+    }
+
+    /**
+     * Method to restore a byte range of a file, this method is called by the RMI client
+     *
+     * @param filename Filename for the file to be restored
+     * @param offset   First byte of the range
+     * @param length   Number of bytes of the range
+     * @throws RemoteException on error with RMI
+     */
+    @Override
+    public void restore(String filename, long offset, long length) throws RemoteException {
+        clientRequests.submit(() -> _restore(filename, offset, length));
     }
 
     /**
-     * Method to get the file, this method loops the file associated keys, and tries to receive
-     * the target file from the peers which are serving it.
+     * Method to get the file, or a range of it, from the peers which are serving it. If a previous restore of
+     * the same range was interrupted it is resumed.
      *
      * @param filename Target file's filename
+     * @param offset   First byte to be restored
+     * @param length   Number of bytes to be restored, -1 for the whole file
      */
-    private void _restore(String filename) {
+    private void _restore(String filename, long offset, long length) {
         log.info("Starting RESTORE protocol for: {}", filename);
 
-        PeerFile peerFile = this.internalState.getSentFilesMap().get(filename);
+        String resolved = this.internalState.resolveSentFile(filename);
+        PeerFile peerFile = resolved == null ? null : this.internalState.getSentFile(resolved);
         if (peerFile == null) {
             sendNotification("File was not backed up: " + filename);
             return;
         }
+        filename = resolved;
 
-        String newFilename = "restored_" + new File(filename).getName();
+        boolean ranged = length >= 0;
+        if (offset < 0 || offset > peerFile.getSize()) {
+            sendNotification(String.format("Invalid range for %s with %d bytes", filename, peerFile.getSize()));
+            return;
+        }
+        length = ranged ? Math.min(length, peerFile.getSize() - offset) : peerFile.getSize();
 
-        // send get for each peer, if a nack is received abort and go to the next one
-        for (Integer key : peerFile.getKeys()) {
-            ChordReference reference = this.findSuccessor(key);
-            SSLConnection connection = this.connectToPeer(reference.getAddress());
-            if (connection == null) continue;
+        String newFilename = "restored_" + new File(filename).getName();
+        if (ranged) newFilename += String.format(".%d-%d", offset, offset + length);
 
-            boolean result = this.receiveFile(connection, peerFile, newFilename);
-            if (result) {
-                log.info("Restored file: {} under: {}", filename, newFilename);
-                sendNotification("File: " + filename + " restored successfully!");
+        if (peerFile.isErasureCoded()) {
+            if (ranged) {
+                sendNotification("Ranged RESTORE is not available for erasure coded files");
                 return;
             }
+            this.restoreErasure(filename, peerFile, newFilename);
+            return;
+        }
+
+        Set<ChordReference> replicas = new LinkedHashSet<>(this.locateReplicas(peerFile).values());
+
+        if (!replicas.isEmpty() && this.restoreRange(peerFile, new ArrayList<>(replicas), newFilename, offset, length)) {
+            log.info("Restored file: {} under: {}", filename, newFilename);
+            sendNotification("File: " + filename + " restored successfully under " + newFilename + "!");
+            return;
         }
 
         sendNotification("File: " + filename + " could not be restored!");
     }
 
+    /**
+     * Method to restore a range of a file from the replicas at the same time. The range is split into stripes
+     * that are fetched from every replica at once, see {@link StripedFetch}.
+     * <p>
+     * Every stripe received is recorded on a {@link PartialTransfer}, if the restore fails the partial file is
+     * kept and the next restore of the same range only fetches the stripes that are missing.
+     *
+     * @param peerFile    File to be restored
+     * @param replicas    Peers serving the file
+     * @param newFilename Filename to restore the file under
+     * @param offset      First byte of the range
+     * @param length      Number of bytes of the range
+     * @return true if every stripe was received
+     */
+    private boolean restoreRange(PeerFile peerFile, List<ChordReference> replicas, String newFilename, long offset, long length) {
+        Path target = Path.of(this.getFileLocation(newFilename));
+        try (PartialTransfer transfer = PartialTransfer.open(target, peerFile.getId(), offset, length, Constants.RESTORE_STRIPE_SIZE)) {
+            if (!stripedFetch.fetch(peerFile, transfer, replicas)) return false;
+
+            long previous = Files.exists(target) ? Files.size(target) : 0;
+            transfer.finish(target);
+            this.internalState.releaseOccupation(previous);
+            this.internalState.addOccupation(length);
+            return true;
+        } catch (IOException e) {
+            log.error("Error on striped restore: {}", e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Method to restore an erasure coded file, any <code>k</code> fragments are downloaded in parallel and the
+     * missing data fragments are rebuilt from them.
+     *
+     * @param filename    Target file's filename
+     * @param peerFile    Erasure coded File
+     * @param newFilename Filename to restore the file under
+     */
+    private void restoreErasure(String filename, PeerFile peerFile, String newFilename) {
+        ReedSolomon codec = new ReedSolomon(peerFile.getDataFragments(), peerFile.getParityFragments());
+        int k = codec.getDataShards();
+        Path[] fragments = new Path[codec.getTotalShards()];
+        Path[] rebuilt = new Path[codec.getTotalShards()];
+        try {
+            if (this.fetchFragments(peerFile, fragments, -1) < k) {
+                sendNotification(String.format("File: %s could not be restored, less than %d fragments available!", filename, k));
+                return;
+            }
+
+            Path[] data = new Path[k];
+            boolean complete = true;
+            for (int i = 0; i < k; i++) {
+                if (fragments[i] == null) {
+                    rebuilt[i] = this.fragmentsDirectory().resolve(peerFile.getFragmentId(i) + ".rebuilt");
+                    complete = false;
+                }
+                data[i] = fragments[i] != null ? fragments[i] : rebuilt[i];
+            }
+            if (!complete) {
+                log.info("Rebuilding missing data fragments of {}", peerFile.getId());
+                Fragments.reconstruct(codec, Fragments.fragmentSize(peerFile.getSize(), k), fragments, rebuilt);
+            }
+
+            Path target = Path.of(this.getFileLocation(newFilename));
+            long previous = Files.exists(target) ? Files.size(target) : 0;
+            Fragments.join(data, peerFile.getSize(), target);
+            this.internalState.releaseOccupation(previous);
+            this.internalState.addOccupation(peerFile.getSize());
+
+            log.info("Restored file: {} under: {}", filename, newFilename);
+            sendNotification("File: " + filename + " restored successfully!");
+        } catch (IOException e) {
+            log.error("Could not rebuild {}: {}", filename, e.getMessage());
+            sendNotification("File: " + filename + " could not be restored!");
+        } finally {
+            this.deleteFragmentFiles(fragments);
+            this.deleteFragmentFiles(rebuilt);
+        }
+    }
+
+    /**
+     * Method to download <code>k</code> fragments of an erasure coded file. Data fragments are tried first, as
+     * they do not need to be decoded, and every failed download is replaced by one of the remaining fragments.
+     * Downloads run in parallel.
+     *
+     * @param peerFile  Erasure coded File
+     * @param fragments Array to put the path of each downloaded fragment on
+     * @param skip      Index of a fragment that must not be downloaded, -1 for none
+     * @return the number of fragments downloaded
+     */
+    private int fetchFragments(PeerFile peerFile, Path[] fragments, int skip) throws IOException {
+        int k = peerFile.getDataFragments();
+        long fragmentSize = Fragments.fragmentSize(peerFile.getSize(), k);
+        Path directory = this.fragmentsDirectory();
+
+        Deque<Map.Entry<Integer, Integer>> candidates = new ArrayDeque<>(new TreeMap<>(peerFile.getFragments()).entrySet());
+        candidates.removeIf(entry -> entry.getKey() == skip);
+
+        CompletionService<Integer> downloads = new ExecutorCompletionService<>(PROTOCOL_EXECUTOR);
+        int running = 0;
+        int fetched = 0;
+        while (fetched < k) {
+            while (running < k - fetched && !candidates.isEmpty()) {
+                Map.Entry<Integer, Integer> candidate = candidates.poll();
+                int index = candidate.getKey();
+                PeerFile fragment = new PeerFile(candidate.getValue(), peerFile.getFragmentId(index), peerFile.getOwner(), fragmentSize, peerFile.getReplicationDegree());
+                Path path = directory.resolve(fragment.getId());
+                downloads.submit(() -> {
+                    ChordReference reference = this.findSuccessor(fragment.getKey());
+                    SSLConnection connection = reference == null ? null : this.connectToPeer(reference.getAddress());
+                    if (connection == null || this.fetchFile(connection, fragment, path) != fragmentSize) {
+                        Files.deleteIfExists(path);
+                        return -1;
+                    }
+                    fragments[index] = path;
+                    return index;
+                });
+                running++;
+            }
+            if (running == 0) break;
+
+            try {
+                int index = downloads.take().get();
+                running--;
+                if (index >= 0) fetched++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                running--;
+                log.error("Could not download fragment: {}", e.getMessage());
+            }
+        }
+        log.info("Downloaded {} of {} needed fragments of {}", fetched, k, peerFile.getId());
+        return fetched;
+    }
+
+    /**
+     * Method to repair a lost fragment of an erasure coded file, the fragment is rebuilt from <code>k</code>
+     * surviving fragments and sent to a peer that is not serving any other fragment of the file.
+     *
+     * @param peerFile Erasure coded File
+     * @param index    Index of the lost fragment
+     * @return result of this operation
+     */
+    public String repairFragment(PeerFile peerFile, int index) {
+        ReedSolomon codec = new ReedSolomon(peerFile.getDataFragments(), peerFile.getParityFragments());
+        Path[] fragments = new Path[codec.getTotalShards()];
+        Path[] rebuilt = new Path[codec.getTotalShards()];
+        try {
+            List<ChordReference> holders = new ArrayList<>();
+            for (int key : peerFile.getFragments().values()) {
+                holders.add(this.findSuccessor(key));
+            }
+            List<Integer> targetKeys = new ArrayList<>();
+            List<ChordReference> targets = this.findTargets(peerFile.getId(), 1, holders, targetKeys);
+            if (targets.isEmpty()) return String.format("Could not find a Peer to store fragment %d of %s", index, peerFile.getId());
+
+            if (this.fetchFragments(peerFile, fragments, index) < codec.getDataShards()) {
+                return String.format("Could not repair fragment %d of %s, not enough fragments available", index, peerFile.getId());
+            }
+
+            long fragmentSize = Fragments.fragmentSize(peerFile.getSize(), codec.getDataShards());
+            rebuilt[index] = this.fragmentsDirectory().resolve(peerFile.getFragmentId(index) + ".rebuilt");
+            Fragments.reconstruct(codec, fragmentSize, fragments, rebuilt);
+
+            return this.backupFragment(peerFile, index, rebuilt[index].toFile(), fragmentSize, targets.get(0), targetKeys.get(0)).call();
+        } catch (Exception e) {
+            log.error("Could not repair fragment {} of {}: {}", index, peerFile.getId(), e.getMessage());
+            return String.format("Could not repair fragment %d of %s", index, peerFile.getId());
+        } finally {
+            this.deleteFragmentFiles(fragments);
+            this.deleteFragmentFiles(rebuilt);
+        }
+    }
+
+    /**
+     * @return the directory used to hold fragments while they are being coded
+     * @throws IOException if the directory can not be created
+     */
+    private Path fragmentsDirectory() throws IOException {
+        return Files.createDirectories(Path.of(String.format(PeerInternalState.FILES_PATH, this.guid, "fragments")));
+    }
+
+    private void deleteFragmentFiles(Path[] paths) {
+        for (Path path : paths) {
+            if (path == null) continue;
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.error("Could not delete temporary fragment {}: {}", path, e.getMessage());
+            }
+        }
+    }
+
     /**
      * Method to delete a File, requested by the client
      *
@@ -405,48 +1368,264 @@ public class Peer extends ChordPeer implements RemotePeer {
     }
 
     /**
-     * Method to delete a File, this method finds the successor for each associated key
-     * with the peer file, and sends a DELETE message for each one.
+     * Method to delete a File, this method finds the successor for each associated key with the peer file, and
+     * sends a single DELETE to each peer with every ID it stores. If the filename is a directory every backed up
+     * file under it is deleted.
      *
      * @param filename Target's File Filename to be deleted
      */
     private void _delete(String filename) {
         log.info("Starting DELETE client request for {}", filename);
 
-        PeerFile file = this.internalState.getSentFilesMap().get(filename);
+        List<String> filenames = new ArrayList<>();
+        String resolved = this.internalState.resolveSentFile(filename);
+        if (resolved != null) {
+            filenames.add(resolved);
+        } else {
+            String directory = filename.endsWith(File.separator) ? filename : filename + File.separator;
+            for (String sent : this.internalState.getSentFilesMap().keySet()) {
+                if (sent.startsWith(directory)) filenames.add(sent);
+            }
+        }
 
-        if (file == null) {
+        if (filenames.isEmpty()) {
             log.error("File {} is not backed up", filename);
             sendNotification(String.format("File %s was not backed up!", filename));
             return;
         }
 
-        Set<ChordReference> targetPeers = new HashSet<>();
+        Map<ChordReference, List<StoredCopy>> targets = new HashMap<>();
+        for (String name : filenames) {
+            PeerFile file = this.internalState.getSentFile(name);
+            if (file == null) continue;
+            file.beingDeleted = true;
+            this.collectCopies(name, file, targets);
+        }
 
-        for (Integer key : file.getKeys()) {
-            ChordReference reference = this.findSuccessor(key);
-            if (reference == null) continue;
-            targetPeers.add(reference);
-            Runnable executable = () -> sendDelete(file, reference);
-            PROTOCOL_EXECUTOR.submit(executable);
+        for (Map.Entry<ChordReference, List<StoredCopy>> target : targets.entrySet()) {
+            PROTOCOL_EXECUTOR.submit(() -> sendDelete(target.getKey(), target.getValue()));
         }
 
         log.info("All DELETE requests processed!");
-        sendNotification(String.format("DELETE for %s was sent to:\n%s", filename, targetPeers));
+        sendNotification(String.format("DELETE for %s (%d files) was sent to:\n%s", filename, filenames.size(), targets.keySet()));
+    }
+
+    /**
+     * Method to find the copies of a sent file stored by other peers
+     *
+     * @param filename Sent file's name
+     * @param file     Sent File
+     * @param targets  Map to add the copies to, by the peer storing them
+     */
+    private void collectCopies(String filename, PeerFile file, Map<ChordReference, List<StoredCopy>> targets) {
+        for (Map.Entry<Integer, ChordReference> replica : this.locateReplicas(file).entrySet()) {
+            targets.computeIfAbsent(replica.getValue(), r -> new ArrayList<>()).add(new StoredCopy(filename, file, file.getId(), replica.getKey(), -1));
+        }
+
+        for (Map.Entry<Integer, Integer> fragment : file.getFragments().entrySet()) {
+            ChordReference reference = this.findSuccessor(fragment.getValue());
+            if (reference == null) continue;
+            targets.computeIfAbsent(reference, r -> new ArrayList<>()).add(new StoredCopy(filename, file, file.getFragmentId(fragment.getKey()), fragment.getValue(), fragment.getKey()));
+        }
     }
 
     /**
-     * Method to send a delete Message to a remove peer, related to a peer file
+     * Method to register a file that was backed up. If it replaces a previous version with another ID, the copies
+     * of the previous version are deleted, but only once the new version is stored by at least one peer, until
+     * then the previous version is kept.
+     *
+     * @param filename Sent file's name
+     * @param previous Previous version of the file, or null
+     * @param current  Version of the file that was just backed up
+     */
+    private void registerBackup(String filename, PeerFile previous, PeerFile current) {
+        boolean replaced = previous != null && !previous.getId().equals(current.getId());
+        if (replaced && current.getKeys().isEmpty() && current.getFragments().isEmpty()) {
+            log.error("No peer stored the new version of {}, the previous version is kept", filename);
+            return;
+        }
+        this.internalState.addSentFile(filename, current);
+        if (!replaced) return;
+
+        previous.beingDeleted = true;
+        Map<ChordReference, List<StoredCopy>> targets = new HashMap<>();
+        this.collectCopies(filename, previous, targets);
+        for (Map.Entry<ChordReference, List<StoredCopy>> target : targets.entrySet()) {
+            PROTOCOL_EXECUTOR.submit(() -> sendDelete(target.getKey(), target.getValue()));
+        }
+        log.info("Retiring the previous version of {} from {}", filename, targets.keySet());
+    }
+
+    /**
+     * Copy of a sent file, or of one of its fragments, stored by another peer
+     */
+    private static class StoredCopy {
+        private final String filename;
+        private final PeerFile file;
+        private final String storedId;
+        private final int key;
+        private final int fragment;
+
+        StoredCopy(String filename, PeerFile file, String storedId, int key, int fragment) {
+            this.filename = filename;
+            this.file = file;
+            this.storedId = storedId;
+            this.key = key;
+            this.fragment = fragment;
+        }
+    }
+
+    /**
+     * Method to send the DELETE batches to a remote peer. The peer acknowledges the IDs it no longer stores, those
+     * copies are forgotten, the others are sent again on the next attempt.
      *
-     * @param file      Context File
      * @param reference Target Peer
+     * @param copies    Copies stored by the peer
+     */
+    private void sendDelete(ChordReference reference, List<StoredCopy> copies) {
+        List<StoredCopy> pending = copies;
+        for (int attempt = 0; attempt <= Constants.BATCH_RETRIES && !pending.isEmpty(); attempt++) {
+            if (attempt > 0 && !this.backoff(attempt)) return;
+
+            List<StoredCopy> failed = new ArrayList<>();
+            for (int from = 0; from < pending.size(); from += Constants.BATCH_SIZE) {
+                List<StoredCopy> batch = pending.subList(from, Math.min(pending.size(), from + Constants.BATCH_SIZE));
+                List<String> ids = new ArrayList<>();
+                for (StoredCopy copy : batch) ids.add(copy.storedId);
+
+                Ack reply = this.sendBatch(reference, new Delete(this.getReference(), ids), ids);
+                boolean[] deleted = reply == null || reply.getBody().length < (batch.size() + 7) / 8
+                        ? new boolean[batch.size()]
+                        : Manifest.fromBitmap(reply.getBody(), batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    if (deleted[i]) this.forgetCopy(batch.get(i));
+                    else failed.add(batch.get(i));
+                }
+            }
+            log.info("Sent DELETE to {} for {} files, {} not deleted", reference, pending.size(), failed.size());
+            pending = failed;
+        }
+
+        if (!pending.isEmpty()) log.error("{} files were not deleted by {}", pending.size(), reference);
+    }
+
+    /**
+     * Method to forget a copy that was deleted, the file is forgotten once no peer stores it
+     *
+     * @param copy Deleted copy
+     */
+    private void forgetCopy(StoredCopy copy) {
+        if (this.internalState.forgetCopy(copy.filename, copy.file, copy.key, copy.fragment)) {
+            log.info("File {} is no longer being backed by any peer!", copy.filename);
+        }
+    }
+
+    /**
+     * Method to wait before retrying the failed entries of a batch
+     *
+     * @param attempt Attempt about to be made
+     * @return false if the thread was interrupted
+     */
+    private boolean backoff(int attempt) {
+        try {
+            Thread.sleep(Constants.BATCH_RETRY_DELAY * attempt);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Method to send a batch to a remote peer on a new connection. Lists that were not inline are sent after the
+     * peer's ACK.
+     *
+     * @param target  Target Peer
+     * @param batch   Batch to be sent
+     * @param entries Entries of the batch
+     * @return the peer's ACK, or null if the exchange failed
+     */
+    Ack sendBatch(ChordReference target, BatchMessage batch, List<String> entries) {
+        SSLConnection connection = this.connectToPeer(target.getAddress());
+        if (connection == null) return null;
+        try {
+            if (!this.send(connection, batch)) return null;
+            if (!batch.isInline()) {
+                Message reply = this.receiveBlocking(connection, 100);
+                if (!(reply instanceof Ack)) return null;
+                this.sendBytes(connection, BatchMessage.encodeList(entries));
+            }
+            Message reply = this.receiveBlocking(connection, 2000);
+            return reply instanceof Ack ? (Ack) reply : null;
+        } catch (MessageTimeoutException e) {
+            log.error("No ACK from {} for {}: {}", target, batch, e.getMessage());
+            return null;
+        } finally {
+            this.closeConnection(connection);
+        }
+    }
+
+    /**
+     * Method to notify an owner about every one of its files this peer stopped serving, in batches, the batches
+     * that were not acknowledged are sent again
+     *
+     * @param target Owner of the files
+     * @param files  Files no longer served
      */
-    private void sendDelete(PeerFile file, ChordReference reference) {
-        file.beingDeleted = true;
-        SSLConnection connection = this.connectToPeer(reference.getAddress());
-        if (connection == null) return;
-        this.send(connection, new Delete(this.getReference(), file.getId().getBytes(StandardCharsets.UTF_8)));
-        log.info("Sent DELETE to {} for {}", reference, file.getId());
+    public void sendRemoved(ChordReference target, List<PeerFile> files) {
+        if (!this.notifyOwner(target, files, batch -> new Removed(getReference(), batch))) {
+            log.error("Could not notify {} about the removal of some of {} files", target, files.size());
+        }
+    }
+
+    /**
+     * Method to notify an owner about every one of its files this peer started serving as soft replicas
+     *
+     * @param target Owner of the files
+     * @param files  Soft replicas now served
+     */
+    public void sendAdded(ChordReference target, List<PeerFile> files) {
+        if (!this.notifyOwner(target, files, batch -> new Added(getReference(), batch))) {
+            log.error("Could not notify {} about some of {} soft replicas", target, files.size());
+        }
+    }
+
+    /**
+     * Method to send <code>&lt;fileId&gt;:&lt;key&gt;</code> entries to an owner in batches, the batches that
+     * were not acknowledged are sent again
+     *
+     * @param target  Owner of the files
+     * @param files   Files the entries are about
+     * @param message Message carrying a batch
+     * @return true if every batch was acknowledged
+     */
+    private boolean notifyOwner(ChordReference target, List<PeerFile> files, Function<List<String>, BatchMessage> message) {
+        List<String> pending = new ArrayList<>();
+        for (PeerFile file : files) {
+            pending.add(file.getId() + ":" + file.getKey());
+        }
+
+        for (int attempt = 0; attempt <= Constants.BATCH_RETRIES && !pending.isEmpty(); attempt++) {
+            if (attempt > 0 && !this.backoff(attempt)) return false;
+
+            List<String> failed = new ArrayList<>();
+            for (int from = 0; from < pending.size(); from += Constants.BATCH_SIZE) {
+                List<String> batch = pending.subList(from, Math.min(pending.size(), from + Constants.BATCH_SIZE));
+                if (this.sendBatch(target, message.apply(batch), batch) == null) failed.addAll(batch);
+            }
+            pending = failed;
+        }
+        return pending.isEmpty();
+    }
+
+    /**
+     * Method to send a REMOVED message, signaling this peer is no longer serving a file
+     *
+     * @param target Peer to be notified, usually the file's owner
+     * @param file   File no longer served
+     */
+    public void sendRemoved(ChordReference target, PeerFile file) {
+        this.sendRemoved(target, Collections.singletonList(file));
     }
 
     /**
@@ -505,52 +1684,91 @@ public class Peer extends ChordPeer implements RemotePeer {
      */
     @Override
     public void reclaim(long size) throws RemoteException {
-        clientRequests.submit(() -> _reclaim(size));
+        clientRequests.submit(() -> _reclaim(size, EvictionPolicy.LARGEST_FIRST));
     }
 
     /**
-     * Method to reclaim the storage, this method deletes the necessary files, without a specific order,
-     * and sends a REMOVED message to the file's owner, signaling this peer is no longer serving a file,
-     * and the owner should start another backup operation for the file
+     * Method to reclaim the storage with a specific eviction policy, client request
      *
-     * @param size target size, 0 if the client wishes to remove all files and reset the capacity
+     * @param size   Size to be reclaimed, if 0 it will delete every file and reset the capacity to the default
+     * @param policy Eviction policy's name: largest, lru or replicated
+     * @throws RemoteException on error with RMI
      */
-    private void _reclaim(long size) {
-        for (Map.Entry<String, PeerFile> file : this.internalState.getSavedFilesMap().entrySet()) {
-            String fileId = file.getValue().getId();
-            ChordReference owner = file.getValue().getOwner();
-
-            try {
-                if (Files.deleteIfExists(Path.of(getFileLocation(fileId)))) {
-                    String body = String.join(":", Arrays.asList(fileId, String.valueOf(file.getKey())));
+    @Override
+    public void reclaim(long size, String policy) throws RemoteException {
+        EvictionPolicy evictionPolicy;
+        try {
+            evictionPolicy = EvictionPolicy.parse(policy);
+        } catch (IllegalArgumentException e) {
+            sendNotification("Unknown eviction policy: " + policy);
+            return;
+        }
+        clientRequests.submit(() -> _reclaim(size, evictionPolicy));
+    }
 
-                    SSLConnection connection = this.connectToPeer(owner.getAddress());
-                    assert connection != null;
+    /**
+     * Method to reclaim the storage. The files to evict are chosen in a single pass by the eviction policy, using
+     * the space each file actually frees (chunks shared with other files are not freed), then they are deleted in
+     * parallel and each owner receives a single notification about all of its files this peer stopped serving,
+     * the owner should start another backup operation for them
+     *
+     * @param size   target size, 0 if the client wishes to remove all files and reset the capacity
+     * @param policy order in which the files are evicted
+     */
+    private void _reclaim(long size, EvictionPolicy policy) {
+        // new backups are admitted against the new capacity while the files are being deleted
+        this.internalState.setCapacity(size == 0 ? Constants.DEFAULT_CAPACITY : size);
 
+        int removed = 0;
+        // the exclusive sizes are an estimate, a few more rounds cover files that freed less than planned
+        for (int round = 0; round < 3; round++) {
+            Collection<PeerFile> savedFiles = this.internalState.getSavedFilesMap().values();
+            List<PeerFile> victims = size == 0 ? new ArrayList<>(savedFiles) :
+                    policy.plan(savedFiles, this.internalState.getOccupation() - size,
+                            file -> this.internalState.getChunkStore().exclusiveSize(file.getId()),
+                            this.internalState.getLastAccess());
+            if (victims.isEmpty()) break;
+            log.info("Reclaim round {} with policy {}: evicting {} files", round, policy, victims.size());
+
+            List<Future<PeerFile>> deletions = new ArrayList<>();
+            for (PeerFile file : victims) {
+                deletions.add(PROTOCOL_EXECUTOR.submit(() -> {
+                    try {
+                        if (!this.deleteStoredFile(file.getId())) return null;
+                    } catch (IOException e) {
+                        log.error("Error deleting file: {}: {}", file, e.getMessage());
+                        return null;
+                    }
                     log.info("Removed file: {}", file);
-                    this.getSavedFilesMap().remove(fileId);
-                    this.send(connection, new Removed(getReference(), body.getBytes(StandardCharsets.UTF_8)));
-                }
-            } catch (IOException e) {
-                log.error("Error deleting file: {}: {}", file, e.getMessage());
+                    this.internalState.removeSavedFile(file.getId());
+                    if (!file.isSoft()) this.internalState.tombstone(file.getId());
+                    return file;
+                }));
             }
 
-            try {
-                this.internalState.updateOccupation();
-            } catch (IOException e) {
-                log.error("Error updating occupation!");
+            Map<ChordReference, List<PeerFile>> byOwner = new HashMap<>();
+            for (Future<PeerFile> deletion : deletions) {
+                try {
+                    PeerFile file = deletion.get();
+                    if (file == null) continue;
+                    byOwner.computeIfAbsent(file.getOwner(), owner -> new ArrayList<>()).add(file);
+                    removed++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    log.error("Error deleting file: {}", e.getMessage());
+                }
+            }
+            for (Map.Entry<ChordReference, List<PeerFile>> owner : byOwner.entrySet()) {
+                PROTOCOL_EXECUTOR.submit(() -> this.sendRemoved(owner.getKey(), owner.getValue()));
             }
 
-            // revoke all space allocated to storing files
-            if (size == 0) continue;
-            // reached desired space for storing files
-            if (this.internalState.getOccupation() <= size) break;
-
-            sendNotification("Reclaim Successful");
+            if (size == 0 || this.internalState.getOccupation() <= size) break;
         }
 
-        this.internalState.setCapacity(size == 0 ? Constants.DEFAULT_CAPACITY : size);
-        this.sendNotification("Reclaim Successful!");
+        this.sendNotification(String.format("Reclaim Successful! %d files removed, occupation %d of %d bytes",
+                removed, this.internalState.getOccupation(), this.internalState.getCapacity()));
     }
 
     public String getFileLocation(String fileId) {
@@ -561,11 +1779,123 @@ public class Peer extends ChordPeer implements RemotePeer {
         return this.internalState.hasSpace(size);
     }
 
+    /**
+     * Method to reserve space, soft replicas are dropped if there is not enough free space
+     *
+     * @param size Bytes to be reserved
+     * @return the reservation, or null if there is not enough free space
+     * @see ReplicaMaintenance#reserve(long)
+     */
+    public PeerInternalState.Reservation reserve(long size) {
+        return this.replicas.reserve(size);
+    }
+
+    /**
+     * @see PeerInternalState#claim(String)
+     */
+    public boolean claim(String fileId) {
+        return this.internalState.claim(fileId);
+    }
+
+    public void unclaim(String fileId) {
+        this.internalState.unclaim(fileId);
+    }
+
+    /**
+     * Method to delete a stored file from this peer's directory, releasing the space it occupied
+     *
+     * @param fileId Stored File's ID
+     * @return true if the file existed and was deleted
+     * @throws IOException on error deleting the file
+     */
+    public boolean deleteStoredFile(String fileId) throws IOException {
+        return this.internalState.getChunkStore().delete(fileId);
+    }
+
+    /**
+     * Method to open a stored file for reading
+     *
+     * @param fileId Stored File's ID
+     * @return a channel with the file's content
+     * @throws IOException on error opening the file
+     */
+    public ReadableByteChannel openStoredFile(String fileId) throws IOException {
+        this.internalState.touch(fileId);
+        return this.internalState.getChunkStore().open(fileId);
+    }
+
+    /**
+     * Method to open a range of a stored file for reading
+     *
+     * @param fileId Stored File's ID
+     * @param offset First byte of the range
+     * @param length Number of bytes of the range
+     * @return a channel with the content of the range
+     * @throws IOException on error opening the file
+     */
+    public ReadableByteChannel openStoredFile(String fileId, long offset, long length) throws IOException {
+        this.internalState.touch(fileId);
+        return this.internalState.getChunkStore().open(fileId, offset, length);
+    }
+
+    PeerInternalState getInternalState() {
+        return this.internalState;
+    }
+
+    public ReplicaMaintenance getReplicas() {
+        return this.replicas;
+    }
+
+    public ChunkStore getChunkStore() {
+        return this.internalState.getChunkStore();
+    }
+
     public void addSavedFile(int key, String id, ChordReference owner, long size, int replicationDegree) {
+        this.addSavedFile(key, id, owner, size, replicationDegree, null);
+    }
+
+    public void addSavedFile(int key, String id, ChordReference owner, long size, int replicationDegree, String checksum) {
         PeerFile file = new PeerFile(key, id, owner, size, replicationDegree);
+        file.setChecksum(checksum);
         this.internalState.addSavedFile(file);
     }
 
+    public PeerFile removeSavedFile(String fileId) {
+        return this.internalState.removeSavedFile(fileId);
+    }
+
+    /**
+     * @param fileId ID of a saved file that was removed on purpose
+     * @see PeerInternalState#tombstone(String)
+     */
+    public void tombstone(String fileId) {
+        this.internalState.tombstone(fileId);
+    }
+
+    public PeerFile removeSentFile(String filename) {
+        return this.internalState.removeSentFile(filename);
+    }
+
+    public void addKey(PeerFile file, int key) {
+        this.internalState.addKey(file, key);
+    }
+
+    public void removeKey(PeerFile file, int key) {
+        this.internalState.removeKey(file, key);
+    }
+
+    /**
+     * @param fileId ID of a saved file that was requested
+     * @see PeerInternalState#countRequest(String)
+     */
+    public void countRequest(String fileId) {
+        this.internalState.countRequest(fileId);
+    }
+
+    public void removeFragment(PeerFile file, int index) {
+        this.internalState.removeFragment(file, index);
+    }
+
     public List<PeerFile> getSavedFiles() {
         return new ArrayList<>(this.internalState.getSavedFilesMap().values());
     }
@@ -574,7 +1904,15 @@ public class Peer extends ChordPeer implements RemotePeer {
         return this.internalState.getSentFilesMap();
     }
 
-    public ConcurrentHashMap<String, PeerFile> getSavedFilesMap() {
+    public PeerFile getSentFile(String filename) {
+        return this.internalState.getSentFile(filename);
+    }
+
+    public String getSentFilename(String fileId) {
+        return this.internalState.getSentFilename(fileId);
+    }
+
+    public Map<String, PeerFile> getSavedFilesMap() {
         return this.internalState.getSavedFilesMap();
     }
 
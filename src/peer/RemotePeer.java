@@ -15,12 +15,20 @@ public interface RemotePeer extends Remote {
 
     void backup(String filename, int replicationDegree) throws RemoteException;
 
+    void backup(String filename, int replicationDegree, boolean chained) throws RemoteException;
+
+    void backup(String filename, int dataFragments, int parityFragments) throws RemoteException;
+
     void restore(String filename) throws RemoteException;
 
+    void restore(String filename, long offset, long length) throws RemoteException;
+
     void delete(String filename) throws RemoteException;
 
     void reclaim(long size) throws RemoteException;
 
+    void reclaim(long size, String policy) throws RemoteException;
+
     void register(ClientCallbackInterface callbackInterface) throws RemoteException;
 
     void state() throws RemoteException;
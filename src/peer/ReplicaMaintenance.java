@@ -0,0 +1,406 @@
+package peer;
+
+import messages.application.Ack;
+import messages.application.Sync;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import peer.backend.MerkleTree;
+import peer.backend.PeerFile;
+import peer.backend.PeerInternalState;
+import peer.chord.ChordReference;
+import peer.ssl.SSLConnection;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the saved files of a peer on the peers that should hold them. Anti-entropy rounds with the successors
+ * find, with a {@link MerkleTree} per partner, the files one of them lacks, and the missing replicas are pulled
+ * from the peer that has them.
+ * <p>
+ * Popular files get soft replicas on the peers after their holders. Soft replicas only take free space, they
+ * are dropped when they cool down or when the space is needed for other files.
+ */
+public class ReplicaMaintenance {
+    private static final Logger log = LogManager.getLogger(ReplicaMaintenance.class);
+
+    private final Peer peer;
+    private final AtomicBoolean antiEntropyRunning = new AtomicBoolean();
+    // placement of each ring position, shared by the anti-entropy exchanges until it expires
+    private final Map<Integer, List<ChordReference>> placements = new ConcurrentHashMap<>();
+    private volatile long placementsTime = 0;
+    private final AtomicBoolean balanceRunning = new AtomicBoolean();
+    // last time each hot file was offered to the peers after its holders
+    private final Map<String, Long> hotOffers = new ConcurrentHashMap<>();
+
+    ReplicaMaintenance(Peer peer) {
+        this.peer = peer;
+    }
+
+    private PeerInternalState state() {
+        return peer.getInternalState();
+    }
+
+    /**
+     * Method to run an anti-entropy round with every peer on the successor list. For each one, the saved files
+     * both peers should hold are put on a {@link MerkleTree}, the root and the nodes are exchanged, then the
+     * leaves under the differing nodes, and only the files on the differing leaves are listed, so a round between
+     * peers in sync costs a single message and the repair is proportional to the divergence. Each peer pulls the
+     * files it lacks from the other one.
+     * <p>
+     * Fragments of erasure coded files are not on the trees, they are placed one per peer and repaired by their
+     * owner.
+     */
+    public void antiEntropy() {
+        if (!antiEntropyRunning.compareAndSet(false, true)) return;
+        try {
+            for (ChordReference successor : peer.getSuccessorList()) {
+                if (successor.getGuid() == peer.getGuid()) continue;
+                this.synchronize(successor);
+            }
+        } finally {
+            antiEntropyRunning.set(false);
+        }
+    }
+
+    /**
+     * Method to run anti-entropy with a single peer
+     *
+     * @param partner Peer to be synchronized with
+     */
+    private void synchronize(ChordReference partner) {
+        List<PeerFile> shared = this.sharedWith(partner);
+        MerkleTree tree = new MerkleTree(shared, Peer::ringPosition);
+        List<String> top = tree.encodeTop();
+        Ack reply = peer.sendBatch(partner, new Sync(peer.getReference(), Sync.TREE, top), top);
+        if (reply == null) {
+            log.error("Could not exchange the Merkle tree with {}", partner);
+            return;
+        }
+        if (reply.getMessage().isEmpty()) return;
+
+        /* <node>=<leaf hash>,<leaf hash>...;<node>=... */
+        Set<Integer> leaves = new TreeSet<>();
+        for (String node : reply.getMessage().split(";")) {
+            String[] parts = node.split("=");
+            int index = Integer.parseInt(parts[0]);
+            String[] hashes = parts[1].split(",");
+            for (int leaf = MerkleTree.firstLeaf(index); leaf < MerkleTree.lastLeaf(index); leaf++) {
+                if (tree.getLeaf(leaf) != MerkleTree.parseHash(hashes[leaf - MerkleTree.firstLeaf(index)])) leaves.add(leaf);
+            }
+        }
+        if (leaves.isEmpty()) return;
+        log.info("Anti-entropy with {}: {} of {} leaves differ", partner, leaves.size(), MerkleTree.LEAVES);
+
+        Map<Integer, List<String>> byLeaf = new TreeMap<>();
+        for (int leaf : leaves) byLeaf.put(leaf, new ArrayList<>());
+        for (PeerFile file : shared) {
+            List<String> entries = byLeaf.get(Peer.ringPosition(file.getId()));
+            if (entries != null) entries.add(file.describe());
+        }
+
+        // a leaf is never split between batches, the partner compares whole leaves
+        List<Integer> batchLeaves = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        for (Map.Entry<Integer, List<String>> leaf : byLeaf.entrySet()) {
+            if (!batchLeaves.isEmpty() && batch.size() + leaf.getValue().size() > Constants.BATCH_SIZE) {
+                this.sendFiles(partner, batchLeaves, batch);
+                batchLeaves = new ArrayList<>();
+                batch = new ArrayList<>();
+            }
+            batchLeaves.add(leaf.getKey());
+            batch.addAll(leaf.getValue());
+        }
+        this.sendFiles(partner, batchLeaves, batch);
+    }
+
+    private void sendFiles(ChordReference partner, List<Integer> leaves, List<String> entries) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (int leaf : leaves) joiner.add(String.valueOf(leaf));
+        if (peer.sendBatch(partner, new Sync(peer.getReference(), Sync.FILES, entries, joiner.toString()), entries) == null) {
+            log.error("Could not send the files of {} leaves to {}", leaves.size(), partner);
+        }
+    }
+
+    /**
+     * Method to get the peers that should hold a file, the first <code>replication degree</code> peers of its
+     * placement other than its owner. Placements are cached for half an anti-entropy period, a round looks up
+     * each ring position at most once.
+     *
+     * @param file Saved File
+     * @return the peers that should hold the file
+     */
+    List<ChordReference> holders(PeerFile file) {
+        List<ChordReference> holders = new ArrayList<>();
+        for (ChordReference candidate : this.cachedPlacement(file)) {
+            if (holders.size() == file.getReplicationDegree()) break;
+            if (!candidate.equals(file.getOwner())) holders.add(candidate);
+        }
+        return holders;
+    }
+
+    List<ChordReference> cachedPlacement(PeerFile file) {
+        long now = System.currentTimeMillis();
+        if (now - placementsTime > Constants.ANTI_ENTROPY_PERIOD * 500) {
+            placements.clear();
+            placementsTime = now;
+        }
+        int position = Peer.ringPosition(file.getId());
+        List<ChordReference> peers = placements.get(position);
+        if (peers == null) {
+            peers = peer.placementAt(position, Constants.SUCCESSOR_LIST_SIZE + 1);
+            if (!peers.isEmpty()) placements.put(position, peers);
+        }
+        return peers;
+    }
+
+    /**
+     * @param partner Another peer
+     * @return the saved files this peer and the partner should both hold
+     */
+    private List<PeerFile> sharedWith(ChordReference partner) {
+        List<PeerFile> shared = new ArrayList<>();
+        for (PeerFile file : this.state().getSavedFilesMap().values()) {
+            if (PeerFile.fragmentIndex(file.getId()) >= 0) continue;
+            List<ChordReference> holders = this.holders(file);
+            if (holders.contains(peer.getReference()) && holders.contains(partner)) shared.add(file);
+        }
+        return shared;
+    }
+
+    /**
+     * Method to compare the top of a partner's Merkle tree with this peer's
+     *
+     * @param partner Peer that sent the tree
+     * @param top     Hashes of the root and the nodes of its tree
+     * @return the leaves of the nodes that differ, empty if the roots are the same
+     */
+    public String compareTree(ChordReference partner, List<String> top) {
+        MerkleTree tree = new MerkleTree(this.sharedWith(partner), Peer::ringPosition);
+        if (top.size() != MerkleTree.NODES + 1) return "";
+        if (tree.getRoot() == MerkleTree.parseHash(top.get(0))) return "";
+
+        long[] nodes = new long[MerkleTree.NODES];
+        for (int node = 0; node < MerkleTree.NODES; node++) nodes[node] = MerkleTree.parseHash(top.get(node + 1));
+
+        StringJoiner differing = new StringJoiner(";");
+        for (int node : tree.differingNodes(nodes)) {
+            StringJoiner hashes = new StringJoiner(",");
+            for (int leaf = MerkleTree.firstLeaf(node); leaf < MerkleTree.lastLeaf(node); leaf++) {
+                hashes.add(Long.toHexString(tree.getLeaf(leaf)));
+            }
+            differing.add(node + "=" + hashes);
+        }
+        return differing.toString();
+    }
+
+    /**
+     * Method to reconcile the files on some leaves with a partner. The files this peer lacks are pulled from
+     * the partner and the ones the partner lacks are offered to it.
+     *
+     * @param partner Peer that sent its files
+     * @param leaves  Leaves the files are from
+     * @param entries Partner's files on those leaves
+     */
+    public void reconcile(ChordReference partner, List<Integer> leaves, List<String> entries) {
+        Set<Integer> leafSet = new HashSet<>(leaves);
+        Map<String, PeerFile> extra = new HashMap<>();
+        for (PeerFile file : this.sharedWith(partner)) {
+            if (leafSet.contains(Peer.ringPosition(file.getId()))) extra.put(file.getId(), file);
+        }
+
+        List<PeerFile> missing = new ArrayList<>();
+        for (String entry : entries) {
+            PeerFile file = PeerFile.parse(entry, peer.getGuid());
+            if (file == null || extra.remove(file.getId()) != null) continue;
+            if (this.holders(file).contains(peer.getReference())) missing.add(file);
+        }
+        log.info("Reconciled {} leaves with {}: {} files missing here, {} missing there", leaves.size(), partner, missing.size(), extra.size());
+
+        this.pullReplicas(partner, missing, false);
+
+        List<String> offered = new ArrayList<>();
+        for (PeerFile file : extra.values()) offered.add(file.describe());
+        for (int from = 0; from < offered.size(); from += Constants.BATCH_SIZE) {
+            List<String> batch = offered.subList(from, Math.min(offered.size(), from + Constants.BATCH_SIZE));
+            if (peer.sendBatch(partner, new Sync(peer.getReference(), Sync.OFFER, batch), batch) == null) {
+                log.error("Could not offer {} files to {}", batch.size(), partner);
+            }
+        }
+    }
+
+    /**
+     * Method to pull replicas this peer should hold from a peer that has them. Files that are already saved,
+     * or that were deleted or reclaimed here recently, are skipped, a soft replica of a file this peer should
+     * hold becomes a regular one.
+     * <p>
+     * Soft replicas of popular files are only pulled into free space, they never push other files out, and
+     * their owners are told they are served here too, so restores spread over them.
+     *
+     * @param source Peer holding the files
+     * @param files  Files to be pulled, with this peer's key
+     * @param soft   if true the files are pulled as soft replicas
+     */
+    public void pullReplicas(ChordReference source, List<PeerFile> files, boolean soft) {
+        List<PeerFile> pulled = new ArrayList<>();
+        for (PeerFile file : files) {
+            PeerFile saved = peer.getSavedFile(file.getId());
+            if (saved != null) {
+                if (!soft && saved.isSoft()) this.state().setSoft(saved, false);
+                continue;
+            }
+            if (this.state().isTombstoned(file.getId())) continue;
+            if (!this.state().claim(file.getId())) continue;
+            try {
+                // checked again after the claim, a backup of the file may have finished in between
+                if (peer.getSavedFile(file.getId()) != null) continue;
+                PeerInternalState.Reservation reservation = soft ? this.state().reserve(file.getSize()) : this.reserve(file.getSize());
+                if (reservation == null) {
+                    log.info("Not enough space to pull {} from {}", file.getId(), source);
+                    continue;
+                }
+                try {
+                    SSLConnection connection = peer.connectToPeer(source.getAddress());
+                    if (connection == null) break;
+                    file.setSoft(soft);
+                    if (peer.receiveReplica(connection, file, reservation)) pulled.add(file);
+                } finally {
+                    reservation.release();
+                }
+            } finally {
+                this.state().unclaim(file.getId());
+            }
+        }
+        if (pulled.isEmpty()) return;
+        log.info("Pulled {} {}replicas from {}", pulled.size(), soft ? "soft " : "", source);
+
+        if (!soft) return;
+        Map<ChordReference, List<PeerFile>> byOwner = new HashMap<>();
+        for (PeerFile file : pulled) byOwner.computeIfAbsent(file.getOwner(), owner -> new ArrayList<>()).add(file);
+        byOwner.forEach(peer::sendAdded);
+    }
+
+    /**
+     * Method to reserve space, soft replicas are dropped, least popular first, if there is not enough free space
+     *
+     * @param size Bytes to be reserved
+     * @return the reservation, or null if there is not enough free space
+     * @see PeerInternalState#reserve(long)
+     */
+    public PeerInternalState.Reservation reserve(long size) {
+        PeerInternalState.Reservation reservation = this.state().reserve(size);
+        if (reservation != null) return reservation;
+
+        List<PeerFile> soft = new ArrayList<>();
+        for (PeerFile file : this.state().getSavedFilesMap().values()) {
+            if (file.isSoft()) soft.add(file);
+        }
+        if (soft.isEmpty()) return null;
+        soft.sort(Comparator.comparingDouble(file -> this.state().getPopularity(file.getId())));
+        long missing = size - (this.state().getCapacity() - this.state().getOccupation() - this.state().getReserved());
+        if (this.dropSoftReplicas(soft, missing + 1) == 0) return null;
+        return this.state().reserve(size);
+    }
+
+    /**
+     * @param file Saved File
+     * @return the peers that should keep soft replicas of the file while it is popular, the first
+     * {@link Constants#HOT_EXTRA_REPLICAS} peers of its placement after its holders, other than its owner
+     */
+    private List<ChordReference> softHolders(PeerFile file) {
+        List<ChordReference> holders = this.holders(file);
+        List<ChordReference> extra = new ArrayList<>();
+        for (ChordReference candidate : this.cachedPlacement(file)) {
+            if (extra.size() == Constants.HOT_EXTRA_REPLICAS) break;
+            if (holders.contains(candidate) || candidate.equals(file.getOwner()) || candidate.getGuid() == peer.getGuid()) continue;
+            extra.add(candidate);
+        }
+        return extra;
+    }
+
+    /**
+     * Method to check the popularity of the saved files. Files requested more than {@link Constants#HOT_THRESHOLD}
+     * times, on a count that fades by half every {@link Constants#POPULARITY_HALF_LIFE} seconds, are offered to
+     * the peers after their holders, which keep soft replicas of them. Soft replicas that cooled down below
+     * {@link Constants#COLD_THRESHOLD} are dropped, and the ones this peer became a holder of are kept for good.
+     */
+    public void balanceReplicas() {
+        if (!balanceRunning.compareAndSet(false, true)) return;
+        try {
+            long now = System.currentTimeMillis();
+            long halfLife = Constants.POPULARITY_HALF_LIFE * 1000;
+            hotOffers.values().removeIf(offered -> now - offered >= halfLife);
+
+            Map<ChordReference, List<String>> offers = new HashMap<>();
+            List<PeerFile> cold = new ArrayList<>();
+            for (PeerFile file : this.state().getSavedFilesMap().values()) {
+                if (PeerFile.fragmentIndex(file.getId()) >= 0) continue;
+                double popularity = this.state().getPopularity(file.getId());
+                if (file.isSoft()) {
+                    if (this.holders(file).contains(peer.getReference())) {
+                        this.state().setSoft(file, false);
+                    } else if (popularity < Constants.COLD_THRESHOLD
+                            && now - this.state().getLastAccess().getOrDefault(file.getId(), 0L) > halfLife) {
+                        cold.add(file);
+                    }
+                    continue;
+                }
+                // the peers after the holders skip the files they already have, offers are not repeated too often
+                if (popularity < Constants.HOT_THRESHOLD || hotOffers.putIfAbsent(file.getId(), now) != null) continue;
+                for (ChordReference target : this.softHolders(file)) {
+                    offers.computeIfAbsent(target, holder -> new ArrayList<>()).add(file.describe());
+                }
+            }
+
+            for (Map.Entry<ChordReference, List<String>> offer : offers.entrySet()) {
+                List<String> entries = offer.getValue();
+                log.info("Offering {} hot files to {}", entries.size(), offer.getKey());
+                for (int from = 0; from < entries.size(); from += Constants.BATCH_SIZE) {
+                    List<String> batch = entries.subList(from, Math.min(entries.size(), from + Constants.BATCH_SIZE));
+                    if (peer.sendBatch(offer.getKey(), new Sync(peer.getReference(), Sync.HOT, batch), batch) == null) {
+                        log.error("Could not offer {} hot files to {}", batch.size(), offer.getKey());
+                    }
+                }
+            }
+
+            if (!cold.isEmpty()) {
+                log.info("Dropping {} soft replicas that cooled down", cold.size());
+                this.dropSoftReplicas(cold, Long.MAX_VALUE);
+            }
+        } finally {
+            balanceRunning.set(false);
+        }
+    }
+
+    /**
+     * Method to delete soft replicas until enough space is freed, their owners are told with a REMOVED. Soft
+     * replicas are not tombstoned, the peer may keep them again if they become popular again.
+     *
+     * @param files  Soft replicas, in the order they are dropped
+     * @param needed Bytes to be freed
+     * @return the bytes freed
+     */
+    private long dropSoftReplicas(List<PeerFile> files, long needed) {
+        long freed = 0;
+        Map<ChordReference, List<PeerFile>> byOwner = new HashMap<>();
+        for (PeerFile file : files) {
+            if (freed >= needed) break;
+            long bytes = this.state().getChunkStore().exclusiveSize(file.getId());
+            try {
+                if (!peer.deleteStoredFile(file.getId())) continue;
+            } catch (IOException e) {
+                log.error("Error deleting soft replica {}: {}", file.getId(), e.getMessage());
+                continue;
+            }
+            this.state().removeSavedFile(file.getId());
+            byOwner.computeIfAbsent(file.getOwner(), owner -> new ArrayList<>()).add(file);
+            freed += bytes;
+        }
+        for (Map.Entry<ChordReference, List<PeerFile>> owner : byOwner.entrySet()) {
+            peer.PROTOCOL_EXECUTOR.submit(() -> peer.sendRemoved(owner.getKey(), owner.getValue()));
+        }
+        return freed;
+    }
+}
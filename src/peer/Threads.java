@@ -0,0 +1,112 @@
+package peer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executors used by the peer to run operations and requests, either bounded pools of platform threads or, on
+ * the virtual thread mode, a new virtual thread for every task. Operations block on sockets and on sleeps, so
+ * with virtual threads a few long transfers no longer hold every thread a short request could run on.
+ * <p>
+ * Virtual threads need JDK 21, they are found by reflection so the peer still builds and runs on older JDKs,
+ * where the virtual thread mode falls back to the pools. The mode must be selected before the peer is created.
+ */
+public class Threads {
+    private static final Logger log = LogManager.getLogger(Threads.class);
+    private static final Method VIRTUAL_EXECUTOR = find(Executors.class, "newVirtualThreadPerTaskExecutor");
+    private static final Method VIRTUAL_BUILDER = find(Thread.class, "ofVirtual");
+    private static final Method BUILDER_FACTORY = find("java.lang.Thread$Builder", "factory");
+    private static volatile boolean virtual = false;
+
+    private static Method find(Class<?> type, String name) {
+        try {
+            return type.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Method find(String type, String name) {
+        try {
+            return find(Class.forName(type), name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this JDK has virtual threads
+     */
+    public static boolean isAvailable() {
+        return VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Method to select the thread mode, it only applies to the executors created after it
+     *
+     * @param enabled if true the tasks run on virtual threads
+     * @return true if the selected mode is in use, false if virtual threads are not available
+     */
+    public static boolean useVirtual(boolean enabled) {
+        if (enabled && !isAvailable()) {
+            log.warn("Virtual threads need JDK 21, running on {} with platform thread pools", System.getProperty("java.version"));
+            virtual = false;
+            return false;
+        }
+        virtual = enabled;
+        return true;
+    }
+
+    /**
+     * @return true if the tasks run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @param threads Size of the pool on the platform thread mode
+     * @return an executor on the selected mode
+     */
+    public static ExecutorService pool(int threads) {
+        return pool(threads, virtual);
+    }
+
+    /**
+     * @param threads Size of the pool if the tasks run on platform threads
+     * @param virtual if true and available, every task runs on a new virtual thread
+     * @return the executor
+     */
+    public static ExecutorService pool(int threads, boolean virtual) {
+        if (virtual && isAvailable()) {
+            try {
+                return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.error("Could not create a virtual thread executor: {}", e.getMessage());
+            }
+        }
+        return threads == 1 ? Executors.newSingleThreadExecutor() : Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Method to create an executor running its tasks one at a time, in order
+     *
+     * @return a single thread executor, on the virtual thread mode its thread is a virtual one
+     */
+    public static ExecutorService single() {
+        if (virtual && VIRTUAL_BUILDER != null && BUILDER_FACTORY != null) {
+            try {
+                ThreadFactory factory = (ThreadFactory) BUILDER_FACTORY.invoke(VIRTUAL_BUILDER.invoke(null));
+                return Executors.newSingleThreadExecutor(factory);
+            } catch (ReflectiveOperationException e) {
+                log.error("Could not create a virtual thread factory: {}", e.getMessage());
+            }
+        }
+        return Executors.newSingleThreadExecutor();
+    }
+}
@@ -62,7 +62,7 @@ public class Utils {
      * @param bytes Byte array to be converted to String on a Hexadecimal Representation
      * @return The byte array converted to a Hexadecimal String
      */
-    private static String bytesToHex(byte[] bytes) {
+    public static String bytesToHex(byte[] bytes) {
         char[] HEX_ARRAY = "0123456789abcdef".toCharArray();
 
         char[] hexChars = new char[bytes.length * 2];
@@ -0,0 +1,195 @@
+package peer.backend;
+
+import peer.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of chunk contents, kept off-heap on direct buffers. Chunks are named by their hash and never
+ * change, so an entry only has to be dropped when its chunk is deleted.
+ * <p>
+ * Eviction is W-TinyLFU, weighted by size: a chunk enters a small LRU window the second time it is read (the
+ * first read only counts it, so files read once do not flush the cache), and a chunk leaving the window only
+ * enters the main LRU if it was read more often, according to a frequency sketch, than every chunk it would
+ * evict from there.
+ */
+public class ChunkCache {
+    private final long capacity;
+    private final long windowCapacity;
+    private final LinkedHashMap<String, ByteBuffer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, ByteBuffer> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long windowSize = 0;
+    private long mainSize = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long rejections = 0;
+
+    /**
+     * @param capacity    Bytes of chunk content the cache holds
+     * @param windowRatio Part of the capacity used by the window
+     * @param averageSize Expected size of a chunk, used to size the frequency sketch
+     */
+    public ChunkCache(long capacity, double windowRatio, int averageSize) {
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, (long) (capacity * windowRatio));
+        this.sketch = new FrequencySketch((int) Math.max(64, capacity / averageSize));
+    }
+
+    /**
+     * Method to get a chunk, the read is counted either way
+     *
+     * @param hex Chunk's hash
+     * @return a read-only view of the chunk's content, or null if it is not cached
+     */
+    public synchronized ByteBuffer get(String hex) {
+        sketch.increment(hex);
+        ByteBuffer content = window.get(hex);
+        if (content == null) content = main.get(hex);
+        if (content == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return content.duplicate();
+    }
+
+    /**
+     * @param hex  Chunk's hash, after a {@link #get(String)} that missed
+     * @param size Chunk's size
+     * @return true if the chunk was read before and should be added
+     */
+    public synchronized boolean wants(String hex, int size) {
+        return capacity > 0 && size <= windowCapacity && sketch.frequency(hex) > 1;
+    }
+
+    /**
+     * Method to add a chunk to the window, chunks pushed out of the window compete for the main space
+     *
+     * @param hex     Chunk's hash
+     * @param content Chunk's content
+     */
+    public synchronized void put(String hex, byte[] content) {
+        if (window.containsKey(hex) || main.containsKey(hex) || content.length > windowCapacity) return;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content).flip();
+        window.put(hex, buffer.asReadOnlyBuffer());
+        windowSize += content.length;
+
+        Iterator<Map.Entry<String, ByteBuffer>> oldest = window.entrySet().iterator();
+        while (windowSize > windowCapacity) {
+            Map.Entry<String, ByteBuffer> candidate = oldest.next();
+            oldest.remove();
+            windowSize -= candidate.getValue().capacity();
+            this.admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    private void admit(String hex, ByteBuffer content) {
+        long mainCapacity = capacity - windowCapacity;
+        if (content.capacity() > mainCapacity) {
+            rejections++;
+            return;
+        }
+        int frequency = sketch.frequency(hex);
+        // the candidate must be more popular than every chunk it displaces, otherwise it is the one dropped
+        long freed = 0;
+        int needed = 0;
+        for (Map.Entry<String, ByteBuffer> victim : main.entrySet()) {
+            if (mainSize - freed + content.capacity() <= mainCapacity) break;
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                rejections++;
+                return;
+            }
+            freed += victim.getValue().capacity();
+            needed++;
+        }
+
+        Iterator<Map.Entry<String, ByteBuffer>> victims = main.entrySet().iterator();
+        for (int i = 0; i < needed; i++) {
+            mainSize -= victims.next().getValue().capacity();
+            victims.remove();
+            evictions++;
+        }
+        main.put(hex, content);
+        mainSize += content.capacity();
+    }
+
+    /**
+     * Method to drop a chunk, called when it is deleted or found to be corrupted
+     *
+     * @param hex Chunk's hash
+     */
+    public synchronized void invalidate(String hex) {
+        ByteBuffer content = window.remove(hex);
+        if (content != null) windowSize -= content.capacity();
+        content = main.remove(hex);
+        if (content != null) mainSize -= content.capacity();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long reads = hits + misses;
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d chunks (%s of %s), %d evicted, %d not admitted",
+                hits, misses, reads == 0 ? 0.0 : 100.0 * hits / reads, window.size() + main.size(),
+                Utils.prettySize(windowSize + mainSize), Utils.prettySize(capacity), evictions, rejections);
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, halved after every <code>10 * width</code> increments so old
+     * popularity fades
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97cb3127, 0x2c1b3c6d, 0x5a2f6b91, 0x7fb5d329};
+        private final byte[][] counters;
+        private final int mask;
+        private final int resetAt;
+        private int additions = 0;
+
+        FrequencySketch(int expected) {
+            int width = Integer.highestOneBit(Math.max(16, expected - 1)) << 1;
+            this.counters = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.resetAt = 10 * width;
+        }
+
+        private int index(String key, int row) {
+            int hash = key.hashCode() * SEEDS[row];
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        int frequency(String key) {
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[row][index(key, row)]);
+            }
+            return frequency;
+        }
+
+        void increment(String key) {
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(key, row);
+                if (counters[row][i] < 15) counters[row][i]++;
+            }
+            if (++additions >= resetAt) {
+                for (byte[] row : counters) {
+                    for (int i = 0; i < row.length; i++) row[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+    }
+}
@@ -0,0 +1,831 @@
+package peer.backend;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import peer.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
+
+/**
+ * Deduplicating, reference-counted store of chunks. A stored file is kept as its {@link Manifest} on the
+ * peer's directory (<code>peer%d/&lt;fileId&gt;</code>), and its chunks are kept once, named by their SHA-256,
+ * under <code>peer%d/chunks/</code>, no matter how many stored files (of any owner) contain them.
+ * <p>
+ * Manifests and chunks up to {@link Constants#PACK_THRESHOLD} bytes are kept on a {@link PackStore}
+ * (<code>peer%d/packs/</code>) instead, so small files do not cost an inode and an open per object.
+ * With {@link Constants#COMPRESS_AT_REST} the larger chunks that compress are kept compressed, on a file with
+ * the <code>.z</code> suffix, and are read whole.
+ * <p>
+ * Each chunk counts the stored files referencing it, and is deleted when the last one is released. A chunk
+ * is referenced as soon as a transfer is planned, so it cannot be deleted while the transfer is running.
+ */
+public class ChunkStore {
+    private static final Logger log = LogManager.getLogger(ChunkStore.class);
+    private static final String COMPRESSED = ".z"; // suffix of the chunk files kept compressed
+
+    private final Path root;
+    private final Path manifests;
+    private final PeerInternalState state;
+    private final PackStore packs;
+    private final ConcurrentHashMap<String, Integer> references = new ConcurrentHashMap<>();
+    // interrupted transfers keep their chunks referenced for a while, so a retry only needs the rest
+    private final ConcurrentHashMap<String, Parked> parked = new ConcurrentHashMap<>();
+    // hot chunks are served from memory, the large chunk files read recently are kept open
+    private final ChunkCache cache = new ChunkCache(Constants.CHUNK_CACHE_SIZE, Constants.CHUNK_CACHE_WINDOW, 1 << Constants.CDC_AVG_BITS);
+    private final FileHandleCache handles = new FileHandleCache(Constants.CHUNK_HANDLE_CACHE_SIZE);
+
+    ChunkStore(Path root, Path manifests, PeerInternalState state) throws IOException {
+        this.root = root;
+        this.manifests = manifests;
+        this.state = state;
+        Files.createDirectories(root);
+        this.packs = new PackStore(manifests.resolve("packs"), state);
+    }
+
+    private Path chunkPath(String hex) {
+        return root.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    private Path compressedPath(String hex) {
+        return root.resolve(hex.substring(0, 2)).resolve(hex + COMPRESSED);
+    }
+
+    private Path manifestPath(String fileId) {
+        return manifests.resolve(fileId);
+    }
+
+    private static String chunkKey(String hex) {
+        return "c/" + hex;
+    }
+
+    private static String manifestKey(String fileId) {
+        return "m/" + fileId;
+    }
+
+    private boolean hasChunk(String hex) {
+        return packs.contains(chunkKey(hex)) || Files.exists(chunkPath(hex)) || Files.exists(compressedPath(hex));
+    }
+
+    /**
+     * Method to add a chunk that was checked against its hash. Concurrent writers of the same chunk may both
+     * get here, the chunk is only created by one of them, and only that one adds it to the occupation.
+     */
+    private void putChunk(String hex, byte[] content, PeerInternalState.Reservation reservation) throws IOException {
+        if (content.length <= Constants.PACK_THRESHOLD) {
+            packs.putIfAbsent(chunkKey(hex), content, reservation);
+            return;
+        }
+        // chunks that compress are kept compressed, when enabled, the others as they are
+        byte[] compressed = Constants.COMPRESS_AT_REST ? Compression.encode(content) : null;
+        Path path = compressed != null ? compressedPath(hex) : chunkPath(hex);
+        byte[] stored = compressed != null ? compressed : content;
+        Files.createDirectories(path.getParent());
+        if (!this.createAtomically(path, stored)) return;
+        this.charge(reservation, stored.length);
+        // a damaged chunk kept on the other form is replaced
+        Path other = compressed != null ? chunkPath(hex) : compressedPath(hex);
+        if (Files.exists(other)) {
+            handles.invalidate(other);
+            long size = Files.size(other);
+            if (Files.deleteIfExists(other)) state.releaseOccupation(size);
+        }
+    }
+
+    private void charge(PeerInternalState.Reservation reservation, long bytes) {
+        if (reservation != null) reservation.commit(bytes);
+        else state.addOccupation(bytes);
+    }
+
+    private byte[] readChunk(String hex) throws IOException {
+        byte[] content = packs.read(chunkKey(hex));
+        return content != null ? content : readChunkFile(hex);
+    }
+
+    private byte[] readChunkFile(String hex) throws IOException {
+        try {
+            return Files.readAllBytes(chunkPath(hex));
+        } catch (NoSuchFileException e) {
+            return Compression.decode(Files.readAllBytes(compressedPath(hex)));
+        }
+    }
+
+    /**
+     * Method to open a chunk, from the cache if it is there. A chunk that missed is added to the cache when it
+     * is read often enough, otherwise it is read from its pack or on a shared channel to its file.
+     */
+    private ReadableByteChannel openChunk(String hex, int length, long position) throws IOException {
+        ByteBuffer cached = cache.get(hex);
+        if (cached != null) {
+            cached.position((int) position);
+            return channel(cached);
+        }
+
+        byte[] content = packs.read(chunkKey(hex));
+        boolean wanted = cache.wants(hex, length);
+        if (content == null && wanted) content = readChunkFile(hex);
+        if (content == null) {
+            try {
+                return handles.open(chunkPath(hex), position);
+            } catch (NoSuchFileException e) {
+                // a compressed chunk is read whole
+                content = Compression.decode(Files.readAllBytes(compressedPath(hex)));
+            }
+        }
+        if (wanted) cache.put(hex, content);
+        return Channels.newChannel(new ByteArrayInputStream(content, (int) position, content.length - (int) position));
+    }
+
+    private static ReadableByteChannel channel(ByteBuffer content) {
+        return new ReadableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (!content.hasRemaining()) return -1;
+                int bytes = Math.min(dst.remaining(), content.remaining());
+                ByteBuffer slice = content.duplicate();
+                slice.limit(slice.position() + bytes);
+                dst.put(slice);
+                content.position(content.position() + bytes);
+                return bytes;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    /**
+     * @return the hit and miss counts of the chunk cache and the state of the open chunk files
+     */
+    public String cacheStatistics() {
+        return String.format("Chunk cache: %s\nChunk files: %s", cache, handles);
+    }
+
+    /**
+     * Method to reference every chunk of a manifest, this is done before receiving a file so its chunks
+     * cannot be deleted in the meantime
+     *
+     * @param manifest Manifest of the file to be stored
+     * @return the chunks that are not on this store and must be transferred, each at most once
+     */
+    public boolean[] reference(Manifest manifest) {
+        boolean[] needed = new boolean[manifest.count()];
+        Set<String> requested = new HashSet<>();
+        for (int i = 0; i < manifest.count(); i++) {
+            String hex = manifest.hex(i);
+            references.merge(hex, 1, Integer::sum);
+            if (!hasChunk(hex) && requested.add(hex)) needed[i] = true;
+        }
+        return needed;
+    }
+
+    /**
+     * Method to release every chunk of a manifest, chunks no longer referenced are deleted
+     *
+     * @param manifest Manifest of the file no longer stored
+     */
+    public void release(Manifest manifest) {
+        for (int i = 0; i < manifest.count(); i++) {
+            references.computeIfPresent(manifest.hex(i), (hex, count) -> {
+                if (count > 1) return count - 1;
+                this.deleteChunk(hex);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Method to keep the chunks of an interrupted transfer, the chunks already received stay on the store
+     * until the transfer is retried or {@link Constants#PARTIAL_TRANSFER_TTL} passes
+     *
+     * @param fileId   ID of the file being transferred
+     * @param manifest Manifest of the file, its chunks stay referenced
+     */
+    public void park(String fileId, Manifest manifest) {
+        Parked previous = parked.put(fileId, new Parked(manifest));
+        if (previous != null) this.release(previous.manifest);
+    }
+
+    /**
+     * Method to drop the references of an interrupted transfer, called once a retry has referenced its own chunks
+     *
+     * @param fileId ID of the file being transferred
+     * @return true if there was an interrupted transfer for the file
+     */
+    public boolean unpark(String fileId) {
+        Parked previous = parked.remove(fileId);
+        if (previous == null) return false;
+        this.release(previous.manifest);
+        return true;
+    }
+
+    /**
+     * Method to release the chunks of interrupted transfers that were not retried in time
+     */
+    public void expireParked() {
+        long limit = System.currentTimeMillis() - Constants.PARTIAL_TRANSFER_TTL * 1000;
+        parked.forEach((fileId, transfer) -> {
+            if (transfer.since < limit && parked.remove(fileId, transfer)) {
+                log.info("Interrupted transfer of {} was not resumed, releasing its chunks", fileId);
+                this.release(transfer.manifest);
+            }
+        });
+    }
+
+    private static class Parked {
+        private final Manifest manifest;
+        private final long since = System.currentTimeMillis();
+
+        Parked(Manifest manifest) {
+            this.manifest = manifest;
+        }
+    }
+
+    private void deleteChunk(String hex) {
+        cache.invalidate(hex);
+        try {
+            // the space of a packed chunk is freed when its segment is compacted
+            if (packs.delete(chunkKey(hex)) >= 0) return;
+        } catch (IOException e) {
+            log.error("Could not delete chunk {}: {}", hex, e.getMessage());
+            return;
+        }
+        for (Path path : Arrays.asList(chunkPath(hex), compressedPath(hex))) {
+            handles.invalidate(path);
+            try {
+                long size = Files.size(path);
+                if (Files.deleteIfExists(path)) state.releaseOccupation(size);
+            } catch (NoSuchFileException e) {
+                // never arrived, already gone or kept on the other form
+            } catch (IOException e) {
+                log.error("Could not delete chunk {}: {}", hex, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Method to get a channel where the selected chunks of a manifest are written, in order, as one stream.
+     * Each chunk is checked against its hash before being added to the store.
+     *
+     * @param manifest Manifest being received
+     * @param needed   Chunks that are going to be written
+     * @return the channel
+     */
+    public ChunkWriter writer(Manifest manifest, boolean[] needed) {
+        return new ChunkWriter(manifest, needed, null);
+    }
+
+    /**
+     * Method to get a channel where the selected chunks of a manifest are written, the chunks are committed to
+     * the reservation the file is received under instead of being added to the occupation
+     *
+     * @param manifest    Manifest being received
+     * @param needed      Chunks that are going to be written
+     * @param reservation Reservation the file is received under
+     * @return the channel
+     */
+    public ChunkWriter writer(Manifest manifest, boolean[] needed, PeerInternalState.Reservation reservation) {
+        return new ChunkWriter(manifest, needed, reservation);
+    }
+
+    /**
+     * Method to store the manifest of a file whose chunks are all on the store
+     *
+     * @param fileId   File's ID
+     * @param manifest File's Manifest
+     * @throws IOException on error writing the manifest
+     */
+    public void commit(String fileId, Manifest manifest) throws IOException {
+        this.commit(fileId, manifest, null);
+    }
+
+    /**
+     * Method to store the manifest of a file received under a reservation, the manifest is committed to it
+     *
+     * @param fileId      File's ID
+     * @param manifest    File's Manifest
+     * @param reservation Reservation the file was received under, or null to add the manifest to the occupation
+     * @throws IOException on error writing the manifest
+     */
+    public void commit(String fileId, Manifest manifest, PeerInternalState.Reservation reservation) throws IOException {
+        for (int i = 0; i < manifest.count(); i++) {
+            if (!hasChunk(manifest.hex(i))) throw new IOException("Missing chunk " + manifest.hex(i));
+        }
+        byte[] encoded = manifest.encode();
+        if (encoded.length <= Constants.PACK_THRESHOLD) {
+            packs.put(manifestKey(fileId), encoded, reservation);
+        } else {
+            this.writeAtomically(manifestPath(fileId), encoded);
+            this.charge(reservation, encoded.length);
+        }
+    }
+
+    /**
+     * Method to read the manifest of a stored file
+     *
+     * @param fileId File's ID
+     * @return the file's manifest
+     * @throws IOException on error reading the manifest, or if the file is not stored
+     */
+    public Manifest manifest(String fileId) throws IOException {
+        byte[] encoded = packs.read(manifestKey(fileId));
+        return Manifest.decode(encoded != null ? encoded : Files.readAllBytes(manifestPath(fileId)));
+    }
+
+    /**
+     * @param fileId File's ID
+     * @return true if the file is stored
+     */
+    public boolean contains(String fileId) {
+        return packs.contains(manifestKey(fileId)) || Files.exists(manifestPath(fileId));
+    }
+
+    /**
+     * Method to open a stored file, the chunks are read in order as a single stream
+     *
+     * @param fileId File's ID
+     * @return a channel with the file's content
+     * @throws IOException on error reading the manifest
+     */
+    public ReadableByteChannel open(String fileId) throws IOException {
+        return this.open(fileId, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Method to open a range of a stored file, only the chunks overlapping the range are read
+     *
+     * @param fileId File's ID
+     * @param offset First byte of the range
+     * @param length Number of bytes of the range, the range ends at the end of the file if it is longer
+     * @return a channel with the content of the range
+     * @throws IOException on error reading the manifest
+     */
+    public ReadableByteChannel open(String fileId, long offset, long length) throws IOException {
+        Manifest manifest = this.manifest(fileId);
+        long end = length > manifest.size() - offset ? manifest.size() : offset + length;
+        return new ReadableByteChannel() {
+            private int chunk = manifest.chunkAt(offset);
+            private long position = offset;
+            private ReadableByteChannel current;
+            // chunks read from their first byte are hashed as they are sent
+            private final MessageDigest digest = sha256();
+            private boolean hashing;
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int total = 0;
+                // fill the buffer completely, the transport relies on full records except for the last one
+                while (dst.hasRemaining() && position < end) {
+                    if (current == null) {
+                        current = openChunk(manifest.hex(chunk), manifest.length(chunk), position - manifest.offset(chunk));
+                        hashing = position == manifest.offset(chunk);
+                        digest.reset();
+                    }
+                    long chunkEnd = Math.min(end, manifest.offset(chunk) + manifest.length(chunk));
+                    int limit = dst.limit();
+                    int start = dst.position();
+                    dst.limit(dst.position() + (int) Math.min(dst.remaining(), chunkEnd - position));
+                    int bytes = current.read(dst);
+                    dst.limit(limit);
+                    if (bytes < 0) throw new IOException("Chunk " + manifest.hex(chunk) + " is shorter than expected");
+                    if (hashing) {
+                        ByteBuffer read = dst.duplicate();
+                        read.limit(start + bytes).position(start);
+                        digest.update(read);
+                    }
+                    total += bytes;
+                    position += bytes;
+                    if (position == manifest.offset(chunk) + manifest.length(chunk)) {
+                        current.close();
+                        current = null;
+                        if (hashing && !Arrays.equals(digest.digest(), manifest.hash(chunk))) {
+                            // the chunk is not sent again, the transfer is cut short and the file checked
+                            log.error("Chunk {} of {} is corrupted", manifest.hex(chunk), fileId);
+                            cache.invalidate(manifest.hex(chunk));
+                            state.damaged(fileId);
+                            throw new IOException("Chunk " + manifest.hex(chunk) + " is corrupted");
+                        }
+                        chunk++;
+                    }
+                }
+                return total == 0 && position >= end ? -1 : total;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() throws IOException {
+                open = false;
+                if (current != null) current.close();
+            }
+        };
+    }
+
+    /**
+     * Method to delete a stored file, releasing its chunks
+     *
+     * @param fileId File's ID
+     * @return true if the file was stored
+     * @throws IOException on error deleting the manifest
+     */
+    public boolean delete(String fileId) throws IOException {
+        Manifest manifest;
+        try {
+            manifest = this.manifest(fileId);
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            // unreadable manifest, the file is gone anyway, orphaned chunks are removed on the next startup
+            manifest = null;
+        }
+
+        if (!this.forget(fileId)) return false;
+        if (manifest != null) this.release(manifest);
+        return true;
+    }
+
+    /**
+     * Method to delete the manifest of a stored file without releasing its chunks, used for files whose chunks
+     * were never referenced
+     *
+     * @param fileId File's ID
+     * @return true if there was a manifest
+     * @throws IOException on error deleting the manifest
+     */
+    public boolean forget(String fileId) throws IOException {
+        if (packs.delete(manifestKey(fileId)) >= 0) return true;
+        Path path = manifestPath(fileId);
+        if (!Files.exists(path)) return false;
+        long size = Files.size(path);
+        if (!Files.deleteIfExists(path)) return false;
+        state.releaseOccupation(size);
+        return true;
+    }
+
+    /**
+     * Method to compact the pack segments, reclaiming the space of deleted objects
+     */
+    public void compact() {
+        packs.compact();
+    }
+
+    /**
+     * Method to add a local file to the store, used when a whole file is received instead of chunks
+     *
+     * @param fileId File's ID
+     * @param file   Local file, it is not deleted
+     * @return the manifest of the stored file
+     * @throws IOException on error reading the file or writing the chunks
+     */
+    public Manifest ingest(String fileId, Path file) throws IOException {
+        return this.ingest(fileId, file, null);
+    }
+
+    /**
+     * Method to add a local file that was received under a reservation to the store
+     *
+     * @param fileId      File's ID
+     * @param file        Local file, it is not deleted
+     * @param reservation Reservation the file was received under, or null to add it to the occupation
+     * @return the manifest of the stored file
+     * @throws IOException on error reading the file or writing the chunks
+     */
+    public Manifest ingest(String fileId, Path file, PeerInternalState.Reservation reservation) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            Manifest manifest = Chunker.chunk(channel);
+            boolean[] needed = this.reference(manifest);
+            try (ChunkWriter writer = this.writer(manifest, needed, reservation)) {
+                ReadableByteChannel reader = manifest.reader(channel, needed);
+                ByteBuffer buffer = ByteBuffer.allocate(Constants.CHUNK_SIZE);
+                while (reader.read(buffer.clear()) > 0) {
+                    writer.write(buffer.flip());
+                }
+                this.commit(fileId, manifest, reservation);
+            } catch (IOException e) {
+                this.release(manifest);
+                throw e;
+            }
+            return manifest;
+        }
+    }
+
+    /**
+     * Method to add a file received inline to the store
+     *
+     * @param fileId      File's ID
+     * @param content     File's content
+     * @param reservation Reservation the file was received under
+     * @return the manifest of the stored file
+     * @throws IOException on error writing the chunks
+     */
+    public Manifest ingest(String fileId, byte[] content, PeerInternalState.Reservation reservation) throws IOException {
+        Manifest manifest = Chunker.chunk(Channels.newChannel(new ByteArrayInputStream(content)));
+        boolean[] needed = this.reference(manifest);
+        try (ChunkWriter writer = this.writer(manifest, needed, reservation)) {
+            for (int i = 0; i < manifest.count(); i++) {
+                if (needed[i]) writer.write(ByteBuffer.wrap(content, (int) manifest.offset(i), manifest.length(i)));
+            }
+            this.commit(fileId, manifest, reservation);
+        } catch (IOException e) {
+            this.release(manifest);
+            throw e;
+        }
+        return manifest;
+    }
+
+    /**
+     * @param fileId File's ID
+     * @return the bytes that deleting a stored file would free, the chunks it shares with other files are not counted
+     */
+    public long exclusiveSize(String fileId) {
+        try {
+            Manifest manifest = this.manifest(fileId);
+            long size = 0;
+            for (int i = 0; i < manifest.count(); i++) {
+                if (references.getOrDefault(manifest.hex(i), 0) <= 1) size += manifest.length(i);
+            }
+            return size;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param fileId File's ID
+     * @return the checksum of a stored file's manifest, or null if it can not be read
+     */
+    public String checksum(String fileId) {
+        try {
+            return this.manifest(fileId).checksum();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Method to read every chunk of a stored file and check it against its hash. Corrupted chunks are deleted,
+     * so the next transfer of a file containing them sends them again.
+     *
+     * @param fileId File's ID
+     * @return true if every chunk of the file is intact
+     */
+    public boolean verify(String fileId) {
+        Manifest manifest;
+        try {
+            manifest = this.manifest(fileId);
+        } catch (IOException e) {
+            return false;
+        }
+
+        MessageDigest digest = sha256();
+        boolean intact = true;
+        for (int i = 0; i < manifest.count(); i++) {
+            String hex = manifest.hex(i);
+            try {
+                byte[] content = readChunk(hex);
+                if (content.length == manifest.length(i) && Arrays.equals(digest.digest(content), manifest.hash(i)))
+                    continue;
+                log.error("Chunk {} is corrupted", hex);
+                this.deleteChunk(hex);
+            } catch (ZipException e) {
+                log.error("Chunk {} is corrupted: {}", hex, e.getMessage());
+                this.deleteChunk(hex);
+            } catch (IOException e) {
+                log.error("Could not read chunk {}: {}", hex, e.getMessage());
+            }
+            intact = false;
+        }
+        return intact;
+    }
+
+    /**
+     * Method to rebuild the reference counts from the manifests of the saved files, used on startup. Saved files
+     * with a missing or unreadable manifest, with a different size, or with missing chunks are reported as broken
+     * and not referenced. Chunks that end up without references are deleted, unless the saved files may be
+     * incomplete, then they are kept and counted.
+     *
+     * @param saved  Saved Files
+     * @param broken List where the broken saved files are added
+     * @param sweep  if false the chunks and manifests of files that are not saved are kept
+     * @return the bytes used by the chunks kept on the store
+     * @throws IOException on error listing the chunks
+     */
+    long rebuild(Map<String, PeerFile> saved, List<PeerFile> broken, boolean sweep) throws IOException {
+        references.clear();
+
+        ConcurrentHashMap<String, Long> chunks = new ConcurrentHashMap<>();
+        // content sizes of the chunks kept compressed, the others are as large as their files
+        ConcurrentHashMap<String, Long> lengths = new ConcurrentHashMap<>();
+        List<Path> directories = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            stream.forEach(directories::add);
+        }
+        directories.parallelStream().forEach(directory -> {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path chunk : stream) {
+                    String name = chunk.getFileName().toString();
+                    if (name.endsWith(COMPRESSED)) {
+                        name = name.substring(0, name.length() - COMPRESSED.length());
+                        lengths.put(name, (long) Compression.length(chunk));
+                    }
+                    chunks.put(name, Files.size(chunk));
+                }
+            } catch (IOException e) {
+                log.error("Could not list chunks on {}: {}", directory, e.getMessage());
+            }
+        });
+        for (String key : packs.keys()) {
+            if (key.startsWith("c/")) chunks.put(key.substring(2), (long) packs.size(key));
+        }
+
+        saved.values().parallelStream().forEach(file -> {
+            Manifest manifest;
+            try {
+                manifest = this.manifest(file.getId());
+            } catch (IOException e) {
+                broken.add(file);
+                return;
+            }
+            if (manifest.size() != file.getSize()) {
+                broken.add(file);
+                return;
+            }
+            for (int i = 0; i < manifest.count(); i++) {
+                Long size = lengths.getOrDefault(manifest.hex(i), chunks.get(manifest.hex(i)));
+                if (size == null || size != manifest.length(i)) {
+                    broken.add(file);
+                    return;
+                }
+            }
+            for (int i = 0; i < manifest.count(); i++) {
+                references.merge(manifest.hex(i), 1, Integer::sum);
+            }
+        });
+
+        // packed manifests of files that are not saved cannot be served
+        if (sweep) {
+            for (String key : new ArrayList<>(packs.keys())) {
+                if (key.startsWith("m/") && !saved.containsKey(key.substring(2))) packs.delete(key);
+            }
+        }
+
+        AtomicLong total = new AtomicLong();
+        chunks.forEach(1024, (hex, size) -> {
+            try {
+                if (packs.contains(chunkKey(hex))) {
+                    if (sweep && !references.containsKey(hex)) packs.delete(chunkKey(hex));
+                } else if (!sweep || references.containsKey(hex)) {
+                    total.addAndGet(size);
+                } else {
+                    Files.deleteIfExists(chunkPath(hex));
+                    Files.deleteIfExists(compressedPath(hex));
+                }
+            } catch (IOException e) {
+                log.error("Could not delete orphaned chunk {}: {}", hex, e.getMessage());
+            }
+        });
+        // packed objects occupy their segments, deleted ones included until the segment is compacted
+        return total.get() + packs.diskSize();
+    }
+
+    private void writeAtomically(Path path, byte[] content) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp" + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+        try {
+            Files.write(temporary, content);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Method to create a file with its whole content, or to leave it as it is if it already exists. The content
+     * is written to a temporary file which is then linked to the target, the link fails if the target exists.
+     *
+     * @return true if the file was created
+     */
+    private boolean createAtomically(Path path, byte[] content) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp" + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+        try {
+            Files.write(temporary, content);
+            try {
+                Files.createLink(path, temporary);
+            } catch (UnsupportedOperationException e) {
+                // without hard links a move that does not replace is the closest, the check and the move may race
+                Files.move(temporary, path);
+            }
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Channel receiving the selected chunks of a manifest as one stream. Every chunk is buffered, checked against
+     * its hash and only then moved to its place on the store.
+     */
+    public class ChunkWriter implements WritableByteChannel {
+        private final Manifest manifest;
+        private final boolean[] needed;
+        private final PeerInternalState.Reservation reservation;
+        private final MessageDigest digest = sha256();
+        private int chunk;
+        private ByteBuffer current;
+        private boolean open = true;
+
+        private ChunkWriter(Manifest manifest, boolean[] needed, PeerInternalState.Reservation reservation) {
+            this.manifest = manifest;
+            this.needed = needed;
+            this.reservation = reservation;
+            this.chunk = next(0);
+        }
+
+        private int next(int from) {
+            while (from < needed.length && !needed[from]) from++;
+            if (from < needed.length) current = ByteBuffer.allocate(manifest.length(from));
+            return from;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = 0;
+            while (src.hasRemaining()) {
+                if (chunk >= needed.length) throw new IOException("Received more data than expected");
+
+                int length = Math.min(src.remaining(), current.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + length);
+                current.put(slice);
+                src.position(src.position() + length);
+                written += length;
+
+                if (!current.hasRemaining()) {
+                    this.store();
+                    chunk = next(chunk + 1);
+                }
+            }
+            return written;
+        }
+
+        private void store() throws IOException {
+            byte[] content = current.array();
+            if (!Arrays.equals(digest.digest(content), manifest.hash(chunk))) {
+                throw new IOException("Chunk " + manifest.hex(chunk) + " does not match its hash");
+            }
+            putChunk(manifest.hex(chunk), content, reservation);
+        }
+
+        /**
+         * @return true if every selected chunk was received
+         */
+        public boolean isComplete() {
+            return chunk >= needed.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package peer.backend;
+
+import peer.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Content-Defined Chunking based on FastCDC (https://www.usenix.org/conference/atc16/technical-sessions/presentation/xia).
+ * A gear rolling hash is computed over the bytes and a chunk boundary is declared where the hash matches a mask,
+ * so the boundaries depend on the content and an edit only changes the chunks around it. Normalized chunking is
+ * used: a stricter mask before the average size and a looser one after, keeping the chunk sizes close to the average.
+ * <p>
+ * Every peer must cut the same content in the same place, so the gear table is generated from a fixed seed.
+ */
+public class Chunker {
+    private static final long[] GEAR = new long[256];
+    private static final long MASK_S = mask(Constants.CDC_AVG_BITS + 2);
+    private static final long MASK_L = mask(Constants.CDC_AVG_BITS - 2);
+
+    static {
+        Random random = new Random(0x5D15L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * The gear hash shifts left, so the highest bits carry the most history, the mask uses those bits
+     */
+    private static long mask(int bits) {
+        return ((1L << bits) - 1) << (Long.SIZE - bits);
+    }
+
+    /**
+     * Method to split the content of a channel into chunks, reading it only once
+     *
+     * @param channel Channel to read the content from
+     * @return the manifest with the hash and length of each chunk
+     * @throws IOException on error reading the channel
+     */
+    public static Manifest chunk(ReadableByteChannel channel) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        int average = 1 << Constants.CDC_AVG_BITS;
+        Manifest.Builder manifest = new Manifest.Builder();
+        ByteBuffer buffer = ByteBuffer.allocate(Constants.CDC_MAX_CHUNK);
+        byte[] data = buffer.array();
+
+        long fingerprint = 0;
+        int length = 0;
+        int bytes;
+        while ((bytes = channel.read(buffer)) != -1) {
+            int end = buffer.position();
+            int start = end - bytes;
+            for (int i = start; i < end; i++) {
+                fingerprint = (fingerprint << 1) + GEAR[data[i] & 0xFF];
+                length++;
+
+                boolean cut;
+                if (length < Constants.CDC_MIN_CHUNK) {
+                    cut = false;
+                } else if (length < average) {
+                    cut = (fingerprint & MASK_S) == 0;
+                } else {
+                    cut = (fingerprint & MASK_L) == 0 || length >= Constants.CDC_MAX_CHUNK;
+                }
+
+                if (cut) {
+                    digest.update(data, i + 1 - length, length);
+                    manifest.add(digest.digest(), length);
+                    fingerprint = 0;
+                    length = 0;
+                }
+            }
+
+            // keep the bytes of the current chunk at the start of the buffer
+            buffer.limit(end).position(end - length);
+            buffer.compact();
+        }
+
+        if (length > 0) {
+            digest.update(data, 0, length);
+            manifest.add(digest.digest(), length);
+        }
+
+        return manifest.build();
+    }
+}
@@ -0,0 +1,366 @@
+package peer.backend;
+
+import peer.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Codecs a transfer can use, negotiated on the BACKUP and GET exchanges, and the format of the chunks kept
+ * compressed at rest. The only codec is Deflater at a low level, which needs no dependency.
+ * <p>
+ * A compressed transfer is a sequence of frames, each one block of the file: <code>[raw length][stored
+ * length][bytes]</code>, where a block that did not compress is stored as it is, with both lengths equal. A frame
+ * with a raw length of 0 ends the stream, which is padded with zeros to a full record so the receiver, that does
+ * not know the compressed size, never waits for a short one.
+ */
+public class Compression {
+    public static final String NONE = "none";
+    public static final String DEFLATE = "deflate";
+    private static final int HEADER = 8; // raw and stored length of a frame
+
+    /**
+     * Method to choose the codec to propose for a file, from a sample of its first bytes
+     *
+     * @param file File to be sent
+     * @return {@link #DEFLATE} if compression is enabled and the sample compresses, {@link #NONE} otherwise
+     */
+    public static String propose(Path file) {
+        if (!Constants.WIRE_COMPRESSION) return NONE;
+        try (FileChannel channel = FileChannel.open(file)) {
+            return propose(channel);
+        } catch (IOException e) {
+            return NONE;
+        }
+    }
+
+    /**
+     * @param channel Channel positioned on the first bytes of the data to be sent, it is not closed
+     * @return {@link #DEFLATE} if compression is enabled and a sample of the data compresses, {@link #NONE}
+     * otherwise
+     * @throws IOException on error reading the sample
+     */
+    public static String propose(ReadableByteChannel channel) throws IOException {
+        if (!Constants.WIRE_COMPRESSION) return NONE;
+        ByteBuffer sample = ByteBuffer.allocate(Constants.COMPRESSION_SAMPLE);
+        while (sample.hasRemaining()) {
+            if (channel.read(sample) < 0) break;
+        }
+        return compresses(sample.array(), sample.position()) ? DEFLATE : NONE;
+    }
+
+    /**
+     * @param proposed Codec proposed by the other peer
+     * @return the codec this peer accepts to use, {@link #NONE} if it does not know the proposed one or
+     * compression is disabled
+     */
+    public static String accept(String proposed) {
+        return Constants.WIRE_COMPRESSION && DEFLATE.equals(proposed) ? DEFLATE : NONE;
+    }
+
+    private static boolean compresses(byte[] sample, int length) {
+        if (length == 0) return false;
+        Deflater deflater = new Deflater(Constants.COMPRESSION_LEVEL);
+        try {
+            return deflate(deflater, sample, length, new byte[length]) >= 0;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Method to compress a block
+     *
+     * @return the compressed size, or -1 if the block did not shrink below {@link Constants#COMPRESSION_RATIO}
+     * of its size
+     */
+    private static int deflate(Deflater deflater, byte[] block, int length, byte[] output) {
+        int limit = (int) (length * Constants.COMPRESSION_RATIO);
+        deflater.reset();
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < limit) {
+            size += deflater.deflate(output, size, limit - size);
+        }
+        return deflater.finished() && size < limit ? size : -1;
+    }
+
+    private static void inflate(Inflater inflater, byte[] input, int offset, int length, byte[] output, int size) throws IOException {
+        inflater.reset();
+        inflater.setInput(input, offset, length);
+        try {
+            int inflated = 0;
+            while (inflated < size && !inflater.finished()) {
+                int bytes = inflater.inflate(output, inflated, size - inflated);
+                if (bytes == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += bytes;
+            }
+            if (inflated != size || !inflater.finished()) throw new ZipException("Compressed block does not match its size");
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+
+    /**
+     * Method to compress a chunk to be kept at rest, prefixed by its size
+     *
+     * @param content Chunk's content
+     * @return the compressed chunk, or null if it does not compress
+     */
+    public static byte[] encode(byte[] content) {
+        Deflater deflater = new Deflater(Constants.COMPRESSION_LEVEL);
+        try {
+            byte[] compressed = new byte[content.length];
+            int size = deflate(deflater, content, content.length, compressed);
+            if (size < 0) return null;
+            return ByteBuffer.allocate(Integer.BYTES + size).putInt(content.length).put(compressed, 0, size).array();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Method to decompress a chunk kept at rest
+     *
+     * @param stored Compressed chunk, as returned by {@link #encode(byte[])}
+     * @return the chunk's content
+     * @throws ZipException if the chunk is corrupted
+     */
+    public static byte[] decode(byte[] stored) throws IOException {
+        if (stored.length < Integer.BYTES) throw new ZipException("Compressed chunk is truncated");
+        int size = ByteBuffer.wrap(stored).getInt();
+        if (size < 0 || size > Constants.CDC_MAX_CHUNK) throw new ZipException("Compressed chunk has an invalid size");
+        byte[] content = new byte[size];
+        Inflater inflater = new Inflater();
+        try {
+            inflate(inflater, stored, Integer.BYTES, stored.length - Integer.BYTES, content, size);
+        } finally {
+            inflater.end();
+        }
+        return content;
+    }
+
+    /**
+     * @param path Compressed chunk
+     * @return the size of the chunk's content, or -1 if it can not be read
+     */
+    public static int length(Path path) {
+        try (FileChannel channel = FileChannel.open(path)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) return -1;
+            }
+            return header.flip().getInt();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param source Channel with the data to be sent, it is closed with the returned channel
+     * @return a channel reading the data compressed, in frames, filling the buffer on every read
+     */
+    public static ReadableByteChannel compress(ReadableByteChannel source) {
+        return new Compressor(source);
+    }
+
+    /**
+     * @param output Channel the decompressed data is written to, it is not closed
+     * @return a channel where the frames are written as they arrive
+     */
+    public static Decompressor decompress(WritableByteChannel output) {
+        return new Decompressor(output);
+    }
+
+    /**
+     * Channel producing the frames of the data read from a source. Each block is compressed on its own, a
+     * block that does not compress is stored, and the next {@link Constants#COMPRESSION_BACKOFF} blocks are
+     * stored without trying, so data that stopped compressing costs little.
+     */
+    private static class Compressor implements ReadableByteChannel {
+        private final ReadableByteChannel source;
+        private final Deflater deflater = new Deflater(Constants.COMPRESSION_LEVEL);
+        private final byte[] block = new byte[Constants.COMPRESSION_BLOCK];
+        private final byte[] compressed = new byte[Constants.COMPRESSION_BLOCK];
+        private ByteBuffer pending = ByteBuffer.allocate(0);
+        private long produced = 0;
+        private int skip = 0;
+        private boolean ended = false;
+        private boolean padded = false;
+        private boolean open = true;
+
+        Compressor(ReadableByteChannel source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int total = 0;
+            while (dst.hasRemaining()) {
+                if (!pending.hasRemaining() && !this.next()) break;
+                int bytes = Math.min(dst.remaining(), pending.remaining());
+                dst.put(pending.array(), pending.position(), bytes);
+                pending.position(pending.position() + bytes);
+                total += bytes;
+                produced += bytes;
+            }
+            return total == 0 ? -1 : total;
+        }
+
+        /**
+         * Method to prepare the next frame, or the padding after the last one
+         *
+         * @return false if the stream is over
+         */
+        private boolean next() throws IOException {
+            if (padded) return false;
+            if (ended) {
+                padded = true;
+                pending = ByteBuffer.allocate((int) ((Constants.CHUNK_SIZE - produced % Constants.CHUNK_SIZE) % Constants.CHUNK_SIZE));
+                return pending.hasRemaining();
+            }
+
+            int length = 0;
+            while (length < block.length) {
+                int bytes = source.read(ByteBuffer.wrap(block, length, block.length - length));
+                if (bytes < 0) break;
+                length += bytes;
+            }
+            if (length == 0) {
+                ended = true;
+                pending = ByteBuffer.allocate(HEADER).putInt(0).putInt(0).flip();
+                return true;
+            }
+
+            int size = -1;
+            if (skip > 0) {
+                skip--;
+            } else {
+                size = deflate(deflater, block, length, compressed);
+                if (size < 0) skip = Constants.COMPRESSION_BACKOFF;
+            }
+            if (size < 0) {
+                pending = ByteBuffer.allocate(HEADER + length).putInt(length).putInt(length).put(block, 0, length).flip();
+            } else {
+                pending = ByteBuffer.allocate(HEADER + size).putInt(length).putInt(size).put(compressed, 0, size).flip();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) return;
+            open = false;
+            deflater.end();
+            source.close();
+        }
+    }
+
+    /**
+     * Channel decoding the frames written to it, the padding after the end frame is discarded
+     */
+    public static class Decompressor implements WritableByteChannel {
+        private final WritableByteChannel output;
+        private final Inflater inflater = new Inflater();
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER);
+        private final byte[] raw = new byte[Constants.COMPRESSION_BLOCK];
+        private byte[] frame = new byte[0];
+        private int rawLength = 0;
+        private int filled = 0;
+        private long produced = 0;
+        private boolean finished = false;
+        private boolean open = true;
+
+        Decompressor(WritableByteChannel output) {
+            this.output = output;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int consumed = src.remaining();
+            while (src.hasRemaining() && !finished) {
+                if (header.hasRemaining()) {
+                    while (header.hasRemaining() && src.hasRemaining()) header.put(src.get());
+                    if (header.hasRemaining()) break;
+                    this.start();
+                    continue;
+                }
+                int bytes = Math.min(src.remaining(), frame.length - filled);
+                src.get(frame, filled, bytes);
+                filled += bytes;
+                if (filled == frame.length) this.emit();
+            }
+            src.position(src.limit());
+            return consumed;
+        }
+
+        private void start() throws IOException {
+            header.flip();
+            rawLength = header.getInt();
+            int storedLength = header.getInt();
+            if (rawLength == 0) {
+                finished = true;
+                return;
+            }
+            if (rawLength < 0 || rawLength > raw.length || storedLength <= 0 || storedLength > rawLength)
+                throw new ZipException("Corrupted compressed stream");
+            if (frame.length != storedLength) frame = new byte[storedLength];
+            filled = 0;
+        }
+
+        private void emit() throws IOException {
+            ByteBuffer block;
+            if (frame.length == rawLength) {
+                block = ByteBuffer.wrap(frame);
+            } else {
+                inflate(inflater, frame, 0, frame.length, raw, rawLength);
+                block = ByteBuffer.wrap(raw, 0, rawLength);
+            }
+            while (block.hasRemaining()) {
+                output.write(block);
+            }
+            produced += rawLength;
+            header.clear();
+        }
+
+        /**
+         * @return true once the end frame was received
+         */
+        public boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return the decompressed bytes written to the output
+         */
+        public long getProduced() {
+            return produced;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if (!open) return;
+            open = false;
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package peer.backend;
+
+/**
+ * Conversions between SHA-256 digests in hexadecimal and their 32 bytes, kept as four longs
+ */
+final class Digest {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    static final int HEX_LENGTH = 64;
+
+    private Digest() {
+    }
+
+    /**
+     * @param text Text containing the digest
+     * @param from First character of the digest
+     * @param to   Character after the last one of the digest
+     * @return the four longs of the digest, or null if the range is not a lowercase hexadecimal digest
+     */
+    static long[] parse(String text, int from, int to) {
+        if (to - from != HEX_LENGTH) return null;
+        long[] digest = new long[4];
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            char c = text.charAt(from + i);
+            int value;
+            if (c >= '0' && c <= '9') value = c - '0';
+            else if (c >= 'a' && c <= 'f') value = c - 'a' + 10;
+            else return null;
+            digest[i / 16] = (digest[i / 16] << 4) | value;
+        }
+        return digest;
+    }
+
+    /**
+     * @return the digest in hexadecimal
+     */
+    static String format(long d0, long d1, long d2, long d3) {
+        char[] text = new char[HEX_LENGTH];
+        long[] digest = {d0, d1, d2, d3};
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            text[i] = HEX[(int) (digest[i / 16] >>> (60 - (i % 16) * 4)) & 0xF];
+        }
+        return new String(text);
+    }
+
+    /**
+     * @return the hash of a digest and a fragment index
+     */
+    static int hash(long d0, long d1, long d2, long d3, int fragment) {
+        // the digest is already uniformly distributed
+        long hash = d0 ^ d1 * 31 ^ d2 * 961 ^ d3 * 29791 ^ fragment;
+        return (int) (hash ^ hash >>> 32);
+    }
+}
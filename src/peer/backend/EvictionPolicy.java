@@ -0,0 +1,111 @@
+package peer.backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Order in which saved files are evicted when the storage is reclaimed
+ */
+public enum EvictionPolicy {
+    /**
+     * Largest files first, the fewest files are removed
+     */
+    LARGEST_FIRST,
+    /**
+     * Files that were not requested for the longest time first
+     */
+    LEAST_RECENTLY_ACCESSED,
+    /**
+     * Files with the highest replication degree first, losing one of their replicas matters the least
+     */
+    MOST_REPLICATED;
+
+    /**
+     * @param name Policy's name, or one of its short names: largest, lru, replicated
+     * @return the policy
+     * @throws IllegalArgumentException if there is no such policy
+     */
+    public static EvictionPolicy parse(String name) {
+        switch (name.toLowerCase()) {
+            case "largest":
+                return LARGEST_FIRST;
+            case "lru":
+                return LEAST_RECENTLY_ACCESSED;
+            case "replicated":
+                return MOST_REPLICATED;
+            default:
+                return EvictionPolicy.valueOf(name.toUpperCase());
+        }
+    }
+
+    private Comparator<PeerFile> order(Map<String, Long> freed, Map<String, Long> lastAccess) {
+        Comparator<PeerFile> bySize = Comparator.comparingLong((PeerFile file) -> freed.get(file.getId())).reversed();
+        switch (this) {
+            case LEAST_RECENTLY_ACCESSED:
+                return Comparator.comparingLong((PeerFile file) -> lastAccess.getOrDefault(file.getId(), 0L)).thenComparing(bySize);
+            case MOST_REPLICATED:
+                return Comparator.comparingInt(PeerFile::getReplicationDegree).reversed().thenComparing(bySize);
+            default:
+                return bySize;
+        }
+    }
+
+    /**
+     * Method to choose the files to evict in a single pass. Files are taken in the policy's order until enough
+     * space would be freed, then the chosen files that are not needed to reach the target are given back,
+     * smallest first, so the set is as small as the order allows. Soft replicas are chosen from before any other
+     * file, only what they can not free is taken from the rest.
+     *
+     * @param files      Saved files
+     * @param target     Bytes to be freed
+     * @param size       Bytes freed by evicting each file
+     * @param lastAccess Last time each file was requested
+     * @return the files to evict
+     */
+    public List<PeerFile> plan(Collection<PeerFile> files, long target, ToLongFunction<PeerFile> size, Map<String, Long> lastAccess) {
+        List<PeerFile> victims = new ArrayList<>();
+        if (target <= 0) return victims;
+
+        Map<String, Long> freed = new HashMap<>();
+        List<PeerFile> soft = new ArrayList<>();
+        List<PeerFile> others = new ArrayList<>();
+        for (PeerFile file : files) {
+            freed.put(file.getId(), size.applyAsLong(file));
+            (file.isSoft() ? soft : others).add(file);
+        }
+
+        long total = this.choose(soft, target, freed, lastAccess, victims);
+        if (total < target) this.choose(others, target - total, freed, lastAccess, victims);
+        return victims;
+    }
+
+    private long choose(List<PeerFile> candidates, long target, Map<String, Long> freed, Map<String, Long> lastAccess, List<PeerFile> victims) {
+        candidates.sort(this.order(freed, lastAccess));
+
+        List<PeerFile> chosen = new ArrayList<>();
+        long total = 0;
+        for (PeerFile file : candidates) {
+            if (total >= target) break;
+            chosen.add(file);
+            total += freed.get(file.getId());
+        }
+
+        chosen.sort(Comparator.comparingLong(file -> freed.get(file.getId())));
+        for (int i = 0; i < chosen.size(); ) {
+            long bytes = freed.get(chosen.get(i).getId());
+            if (total - bytes >= target) {
+                total -= bytes;
+                chosen.remove(i);
+            } else {
+                i++;
+            }
+        }
+        victims.addAll(chosen);
+        return total;
+    }
+}
@@ -0,0 +1,335 @@
+package peer.backend;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import peer.Constants;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads a file once for every replica it is being sent to. Each chunk of the file's {@link Manifest} is read from
+ * disk by the first replica that needs it into a buffer shared with the other replicas that also need it, and the
+ * buffer is dropped once all of them consumed it.
+ * <p>
+ * At most {@link Constants#FANOUT_WINDOW} chunks are kept in memory. When a replica needs a chunk that is not
+ * loaded and the window is full, the replicas that are holding the window back (the ones still behind it) are
+ * detached and read the rest of the file on their own channel, so a slow replica never stalls the others.
+ * <p>
+ * Reading only starts when every expected replica subscribed or withdrew, or after {@link Constants#FANOUT_WAIT}
+ * milliseconds, a replica that subscribes after that reads the file on its own.
+ * <p>
+ * Replicas wait on a lock instead of the reader's monitor, so a replica sent from a virtual thread does not pin
+ * its carrier while it waits for the others.
+ */
+public class FanOutReader implements Closeable {
+    private static final Logger log = LogManager.getLogger(FanOutReader.class);
+
+    private final Path path;
+    private final Manifest manifest;
+    private final FileChannel file;
+    private final Map<Integer, Block> blocks = new HashMap<>();
+    private final Set<Integer> loading = new HashSet<>();
+    private final List<Tap> taps = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int pending;
+    private boolean started = false;
+    private long diskReads = 0;
+
+    /**
+     * Chunk shared by the replicas that need it
+     */
+    private static class Block {
+        private final ByteBuffer data;
+        private int references;
+
+        Block(ByteBuffer data, int references) {
+            this.data = data;
+            this.references = references;
+        }
+    }
+
+    /**
+     * @param path     File to be read
+     * @param manifest File's Manifest
+     * @param replicas Number of replicas expected to subscribe or withdraw
+     * @throws IOException on error opening the file
+     */
+    public FanOutReader(Path path, Manifest manifest, int replicas) throws IOException {
+        this.path = path;
+        this.manifest = manifest;
+        this.pending = replicas;
+        this.file = FileChannel.open(path);
+    }
+
+    /**
+     * Method to subscribe a replica
+     *
+     * @param needed Chunks the replica needs
+     * @return the channel the replica reads the chunks it needs from, in order
+     * @throws IOException on error opening the file for a late replica
+     */
+    public ReadableByteChannel subscribe(boolean[] needed) throws IOException {
+        Tap tap = new Tap(needed);
+        lock.lock();
+        try {
+            if (started) {
+                tap.detach();
+            } else {
+                taps.add(tap);
+                this.arrive();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return tap;
+    }
+
+    /**
+     * Method for an expected replica that is not going to subscribe, so the others do not wait for it
+     */
+    public void withdraw() {
+        lock.lock();
+        try {
+            if (!started) this.arrive();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void arrive() {
+        if (--pending <= 0) {
+            started = true;
+            changed.signalAll();
+        }
+    }
+
+    private void awaitStart() throws IOException {
+        long deadline = System.currentTimeMillis() + Constants.FANOUT_WAIT;
+        while (!started) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                log.info("Starting fan-out of {} with {} replicas missing", path.getFileName(), pending);
+                started = true;
+                changed.signalAll();
+                break;
+            }
+            try {
+                changed.await(left, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the other replicas");
+            }
+        }
+    }
+
+    /**
+     * Method to get a chunk for a tap, loading it if no other tap did
+     */
+    private ByteBuffer take(Tap tap, int chunk) throws IOException {
+        lock.lock();
+        try {
+            this.awaitStart();
+            while (true) {
+                if (tap.detached) return null;
+                Block block = blocks.get(chunk);
+                if (block != null) return block.data.duplicate();
+                if (!loading.contains(chunk)) break;
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a chunk");
+                }
+            }
+
+            if (blocks.size() + loading.size() >= Constants.FANOUT_WINDOW) {
+                // the replicas still behind this chunk are holding the window, they continue on their own
+                for (Tap other : taps) {
+                    if (other != tap && !other.detached && other.chunk < chunk) other.detach();
+                }
+                if (blocks.size() + loading.size() >= Constants.FANOUT_WINDOW) {
+                    tap.detach();
+                    return null;
+                }
+            }
+            loading.add(chunk);
+        } finally {
+            lock.unlock();
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(manifest.length(chunk));
+        try {
+            readFully(file, data, manifest.offset(chunk));
+        } finally {
+            lock.lock();
+            try {
+                loading.remove(chunk);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        data.flip();
+
+        lock.lock();
+        try {
+            diskReads++;
+            // every attached tap that did not go past it reads it, the one that loaded it included
+            int references = 0;
+            for (Tap other : taps) {
+                if (!other.detached && other.chunk <= chunk && other.needed[chunk]) references++;
+            }
+            if (references > 0) blocks.put(chunk, new Block(data, references));
+            return data.duplicate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method to drop a tap's reference on a chunk
+     */
+    private void release(Tap tap, int chunk) {
+        lock.lock();
+        try {
+            // a detached tap already dropped its references
+            if (tap.detached) return;
+            Block block = blocks.get(chunk);
+            if (block != null && --block.references == 0) blocks.remove(chunk);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytes = channel.read(buffer, position + buffer.position());
+            if (bytes < 0) throw new IOException("Unexpected end of file");
+        }
+    }
+
+    /**
+     * @return the number of chunks read from disk for the shared replicas
+     */
+    public long getDiskReads() {
+        lock.lock();
+        try {
+            return diskReads;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            for (Tap tap : taps) tap.detached = true;
+            blocks.clear();
+        } finally {
+            lock.unlock();
+        }
+        file.close();
+    }
+
+    /**
+     * Channel of a single replica, reads the chunks it needs in order, from the shared blocks while attached and
+     * from its own channel after being detached
+     */
+    private class Tap implements ReadableByteChannel {
+        private final boolean[] needed;
+        private volatile int chunk = -1;
+        private ByteBuffer current;
+        private volatile boolean detached = false;
+        private FileChannel own;
+        private boolean open = true;
+
+        Tap(boolean[] needed) {
+            this.needed = needed;
+        }
+
+        /**
+         * Called while holding the reader's lock, the references on the loaded chunks this tap is reading or would
+         * read are dropped, the chunk being read stays valid on its own buffer
+         */
+        private void detach() {
+            if (detached) return;
+            detached = true;
+            for (Map.Entry<Integer, Block> entry : new ArrayList<>(blocks.entrySet())) {
+                int index = entry.getKey();
+                if (index >= chunk && needed[index] && --entry.getValue().references == 0) blocks.remove(index);
+            }
+        }
+
+        private boolean advance() throws IOException {
+            int next = chunk + 1;
+            while (next < manifest.count() && !needed[next]) next++;
+            if (chunk >= 0) release(this, chunk);
+            chunk = next;
+            if (chunk >= manifest.count()) return false;
+
+            current = detached ? null : take(this, chunk);
+            if (current == null) {
+                if (own == null) own = FileChannel.open(path);
+                current = ByteBuffer.allocate(manifest.length(chunk));
+                readFully(own, current, manifest.offset(chunk));
+                current.flip();
+            }
+            return true;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            int total = 0;
+            // fill the buffer completely, the transport relies on full records except for the last one
+            while (dst.hasRemaining()) {
+                if (current == null || !current.hasRemaining()) {
+                    if (!advance()) break;
+                    continue;
+                }
+                int bytes = Math.min(dst.remaining(), current.remaining());
+                ByteBuffer slice = current.duplicate();
+                slice.limit(slice.position() + bytes);
+                dst.put(slice);
+                current.position(current.position() + bytes);
+                total += bytes;
+            }
+            return total == 0 && chunk >= manifest.count() ? -1 : total;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) return;
+            open = false;
+            lock.lock();
+            try {
+                this.detach();
+            } finally {
+                lock.unlock();
+            }
+            if (own != null) own.close();
+        }
+    }
+}
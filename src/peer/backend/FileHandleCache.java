@@ -0,0 +1,168 @@
+package peer.backend;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded set of open channels to the chunk files that are read the most recently, so reading a large chunk
+ * does not cost an open and a close every time. Reads are positional, any number of readers share a channel,
+ * and a channel pushed out of the set is only closed when its last reader finishes.
+ * <p>
+ * Channels are opened and closed while the set is locked, with a lock instead of a monitor so a virtual thread
+ * waiting on the disk does not hold its carrier.
+ */
+public class FileHandleCache {
+    private static final Logger log = LogManager.getLogger(FileHandleCache.class);
+
+    private final int capacity;
+    private final LinkedHashMap<Path, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long opened = 0;
+    private long reused = 0;
+
+    private static class Handle {
+        private final FileChannel channel;
+        private int readers = 0;
+        private boolean dropped = false;
+
+        Handle(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * @param capacity Number of channels kept open
+     */
+    public FileHandleCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Method to open a file for reading, on a channel shared with the other readers
+     *
+     * @param path     File to be read
+     * @param position First byte to be read
+     * @return the channel, it must be closed
+     * @throws IOException on error opening the file
+     */
+    public ReadableByteChannel open(Path path, long position) throws IOException {
+        Handle handle;
+        lock.lock();
+        try {
+            handle = handles.get(path);
+            if (handle == null) {
+                handle = new Handle(FileChannel.open(path));
+                handles.put(path, handle);
+                opened++;
+                this.trim();
+            } else {
+                reused++;
+            }
+            handle.readers++;
+        } finally {
+            lock.unlock();
+        }
+        return new Reader(handle, position);
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Path, Handle>> oldest = handles.entrySet().iterator();
+        while (handles.size() > capacity) {
+            Handle handle = oldest.next().getValue();
+            oldest.remove();
+            this.drop(handle);
+        }
+    }
+
+    private void drop(Handle handle) {
+        handle.dropped = true;
+        if (handle.readers == 0) close(handle);
+    }
+
+    private static void close(Handle handle) {
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            log.error("Could not close a cached channel: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Method to stop keeping a file open, called before it is deleted or replaced
+     *
+     * @param path File's path
+     */
+    public void invalidate(Path path) {
+        lock.lock();
+        try {
+            Handle handle = handles.remove(path);
+            if (handle != null) this.drop(handle);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Handle handle) {
+        lock.lock();
+        try {
+            if (--handle.readers == 0 && handle.dropped) close(handle);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("%d open (%d opened, %d reused)", handles.size(), opened, reused);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reader of a shared channel, with its own position
+     */
+    private class Reader implements ReadableByteChannel {
+        private final Handle handle;
+        private long position;
+        private boolean open = true;
+
+        Reader(Handle handle, long position) {
+            this.handle = handle;
+            this.position = position;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            int bytes = handle.channel.read(dst, position);
+            if (bytes > 0) position += bytes;
+            return bytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if (!open) return;
+            open = false;
+            release(handle);
+        }
+    }
+}
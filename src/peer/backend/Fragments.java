@@ -0,0 +1,161 @@
+package peer.backend;
+
+import peer.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Splits files into erasure coded fragments and joins them back. A file of <code>size</code> bytes is cut into
+ * <code>k</code> data fragments of <code>ceil(size / k)</code> bytes, the last one padded with zeros, and
+ * <code>m</code> parity fragments of the same size are computed with {@link ReedSolomon}.
+ * <p>
+ * Fragments are processed block by block, so memory use does not depend on the size of the file.
+ */
+public class Fragments {
+    /**
+     * @param size          File's size
+     * @param dataFragments Number of data fragments
+     * @return the size of every fragment of the file
+     */
+    public static long fragmentSize(long size, int dataFragments) {
+        return (size + dataFragments - 1) / dataFragments;
+    }
+
+    /**
+     * Method to write every fragment of a file
+     *
+     * @param source  File to be split
+     * @param codec   Codec to be used
+     * @param targets Paths to write the fragments to, one per fragment
+     * @throws IOException on error reading the file or writing the fragments
+     */
+    public static void encode(Path source, ReedSolomon codec, Path[] targets) throws IOException {
+        int k = codec.getDataShards();
+        int total = codec.getTotalShards();
+        FileChannel[] outputs = new FileChannel[total];
+        try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = input.size();
+            long fragmentSize = fragmentSize(size, k);
+            for (int i = 0; i < total; i++) {
+                outputs[i] = open(targets[i]);
+            }
+
+            byte[][] shards = new byte[total][Constants.ERASURE_BLOCK];
+            for (long offset = 0; offset < fragmentSize; offset += Constants.ERASURE_BLOCK) {
+                int length = (int) Math.min(Constants.ERASURE_BLOCK, fragmentSize - offset);
+                for (int i = 0; i < k; i++) {
+                    // data fragment i is the range [i * fragmentSize, (i + 1) * fragmentSize) of the file
+                    long start = i * fragmentSize + offset;
+                    int available = (int) Math.max(0, Math.min(length, size - start));
+                    readFully(input, shards[i], available, start);
+                    Arrays.fill(shards[i], available, length, (byte) 0);
+                }
+                codec.encodeParity(shards, 0, length);
+                for (int i = 0; i < total; i++) {
+                    writeFully(outputs[i], shards[i], length);
+                }
+            }
+        } finally {
+            close(outputs);
+        }
+    }
+
+    /**
+     * Method to rebuild fragments from the present ones, at least k fragments must be present
+     *
+     * @param codec        Codec to be used
+     * @param fragmentSize Size of every fragment
+     * @param present      Paths of the present fragments, null for the missing ones
+     * @param targets      Paths to write the rebuilt fragments to, null for the ones that are not wanted
+     * @throws IOException on error reading or writing the fragments
+     */
+    public static void reconstruct(ReedSolomon codec, long fragmentSize, Path[] present, Path[] targets) throws IOException {
+        int total = codec.getTotalShards();
+        boolean[] available = new boolean[total];
+        FileChannel[] inputs = new FileChannel[total];
+        FileChannel[] outputs = new FileChannel[total];
+        try {
+            for (int i = 0; i < total; i++) {
+                if (present[i] != null) {
+                    inputs[i] = FileChannel.open(present[i], StandardOpenOption.READ);
+                    available[i] = true;
+                } else if (targets[i] != null) {
+                    outputs[i] = open(targets[i]);
+                }
+            }
+
+            byte[][] shards = new byte[total][Constants.ERASURE_BLOCK];
+            for (long offset = 0; offset < fragmentSize; offset += Constants.ERASURE_BLOCK) {
+                int length = (int) Math.min(Constants.ERASURE_BLOCK, fragmentSize - offset);
+                for (int i = 0; i < total; i++) {
+                    if (available[i]) readFully(inputs[i], shards[i], length, offset);
+                }
+                codec.reconstruct(shards, available, 0, length);
+                for (int i = 0; i < total; i++) {
+                    if (outputs[i] != null) writeFully(outputs[i], shards[i], length);
+                }
+            }
+        } finally {
+            close(inputs);
+            close(outputs);
+        }
+    }
+
+    /**
+     * Method to join the data fragments back into the original file
+     *
+     * @param data   Paths of the data fragments, in order
+     * @param size   Original file's size
+     * @param target Path to write the file to
+     * @throws IOException on error reading the fragments or writing the file
+     */
+    public static void join(Path[] data, long size, Path target) throws IOException {
+        long fragmentSize = fragmentSize(size, data.length);
+        try (FileChannel output = open(target)) {
+            long written = 0;
+            for (Path fragment : data) {
+                try (FileChannel input = FileChannel.open(fragment, StandardOpenOption.READ)) {
+                    // the padding of the last fragment is not part of the file
+                    long length = Math.min(fragmentSize, size - written);
+                    long transferred = 0;
+                    while (transferred < length) {
+                        long bytes = input.transferTo(transferred, length - transferred, output);
+                        if (bytes <= 0) throw new IOException("Fragment is shorter than expected: " + fragment);
+                        transferred += bytes;
+                    }
+                    written += length;
+                }
+            }
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static void readFully(FileChannel channel, byte[] buffer, int length, long position) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            int bytes = channel.read(target, position + target.position());
+            if (bytes < 0) throw new IOException("Unexpected end of file");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] buffer, int length) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(buffer, 0, length);
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    private static void close(FileChannel[] channels) throws IOException {
+        for (FileChannel channel : channels) {
+            if (channel != null) channel.close();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package peer.backend;
+
+import peer.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A Manifest describes a file as the ordered list of its chunks, each chunk is identified by its SHA-256
+ * and has a known length. The file is the concatenation of the chunks.
+ *
+ * @see Chunker
+ * @see ChunkStore
+ */
+public class Manifest {
+    public static final int HASH_SIZE = 32;
+    private static final int ENTRY_SIZE = HASH_SIZE + 4;
+
+    private final byte[][] hashes;
+    private final int[] lengths;
+    private final long[] offsets;
+    private final long size;
+
+    private Manifest(byte[][] hashes, int[] lengths) {
+        this.hashes = hashes;
+        this.lengths = lengths;
+        this.offsets = new long[lengths.length];
+        long offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i] = offset;
+            offset += lengths[i];
+        }
+        this.size = offset;
+    }
+
+    /**
+     * @return the number of chunks
+     */
+    public int count() {
+        return hashes.length;
+    }
+
+    /**
+     * @return the size of the described file, in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    public byte[] hash(int chunk) {
+        return hashes[chunk];
+    }
+
+    public String hex(int chunk) {
+        return Utils.bytesToHex(hashes[chunk]);
+    }
+
+    public int length(int chunk) {
+        return lengths[chunk];
+    }
+
+    public long offset(int chunk) {
+        return offsets[chunk];
+    }
+
+    /**
+     * @param position Position on the file
+     * @return the index of the chunk holding the byte at position, or the number of chunks if it is past the end
+     */
+    public int chunkAt(long position) {
+        if (position >= size) return hashes.length;
+        int index = Arrays.binarySearch(offsets, position);
+        // when the position is not the start of a chunk, it is inside the chunk before the insertion point
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * @return the size of this manifest when encoded, in bytes
+     */
+    public int encodedSize() {
+        return 4 + hashes.length * ENTRY_SIZE;
+    }
+
+    /**
+     * Method to encode the manifest, <code>[count][hash][length]...</code>
+     *
+     * @return the encoded manifest
+     */
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+        buffer.putInt(hashes.length);
+        for (int i = 0; i < hashes.length; i++) {
+            buffer.put(hashes[i]).putInt(lengths[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return the checksum of the file's content, the SHA-256 of the encoded manifest, the hash of every chunk
+     * is computed while the file is chunked or received so no extra pass over the data is needed
+     */
+    public String checksum() {
+        try {
+            return Utils.bytesToHex(MessageDigest.getInstance("SHA-256").digest(this.encode()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Method to decode a manifest
+     *
+     * @param bytes Encoded manifest
+     * @return the decoded manifest
+     * @throws IOException if the manifest is malformed
+     */
+    public static Manifest decode(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.remaining() < 4) throw new IOException("Manifest is too short");
+        int count = buffer.getInt();
+        if (count < 0 || buffer.remaining() != (long) count * ENTRY_SIZE) throw new IOException("Malformed manifest");
+
+        byte[][] hashes = new byte[count][HASH_SIZE];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            buffer.get(hashes[i]);
+            lengths[i] = buffer.getInt();
+        }
+        return new Manifest(hashes, lengths);
+    }
+
+    /**
+     * Method to encode a selection of chunks as a bitmap, one bit per chunk
+     *
+     * @param selected selected chunks
+     * @return the bitmap
+     */
+    public static byte[] toBitmap(boolean[] selected) {
+        byte[] bitmap = new byte[(selected.length + 7) / 8];
+        for (int i = 0; i < selected.length; i++) {
+            if (selected[i]) bitmap[i / 8] |= (byte) (1 << (i % 8));
+        }
+        return bitmap;
+    }
+
+    public static boolean[] fromBitmap(byte[] bitmap, int count) {
+        boolean[] selected = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            selected[i] = (bitmap[i / 8] & (1 << (i % 8))) != 0;
+        }
+        return selected;
+    }
+
+    /**
+     * Method to sum the length of the selected chunks
+     *
+     * @param selected selected chunks
+     * @return the total length, in bytes
+     */
+    public long length(boolean[] selected) {
+        long total = 0;
+        for (int i = 0; i < selected.length; i++) {
+            if (selected[i]) total += lengths[i];
+        }
+        return total;
+    }
+
+    /**
+     * Method to read the selected chunks of a file as a single stream, reading only their byte ranges
+     *
+     * @param file     File described by this manifest
+     * @param selected chunks to be read
+     * @return a channel with the selected chunks, in order
+     */
+    public ReadableByteChannel reader(FileChannel file, boolean[] selected) {
+        return new ReadableByteChannel() {
+            private int chunk = next(0);
+            private long position = chunk < lengths.length ? offsets[chunk] : 0;
+            private boolean open = true;
+
+            private int next(int from) {
+                while (from < selected.length && !selected[from]) from++;
+                return from;
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (chunk >= lengths.length) return -1;
+                int total = 0;
+                // fill the buffer completely, the transport relies on full records except for the last one
+                while (dst.hasRemaining() && chunk < lengths.length) {
+                    long end = offsets[chunk] + lengths[chunk];
+                    int limit = dst.limit();
+                    dst.limit(dst.position() + (int) Math.min(dst.remaining(), end - position));
+                    int bytes = file.read(dst, position);
+                    dst.limit(limit);
+                    if (bytes < 0) throw new IOException("File is shorter than its manifest");
+                    position += bytes;
+                    total += bytes;
+                    if (position == end) {
+                        chunk = next(chunk + 1);
+                        if (chunk < lengths.length) position = offsets[chunk];
+                    }
+                }
+                return total;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "Manifest{" +
+                "chunks=" + hashes.length +
+                ", size=" + size +
+                '}';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Manifest manifest = (Manifest) o;
+        return Arrays.deepEquals(hashes, manifest.hashes) && Arrays.equals(lengths, manifest.lengths);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.deepHashCode(hashes);
+    }
+
+    /**
+     * Builder used while the chunks are being found
+     */
+    static class Builder {
+        private final List<byte[]> hashes = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+
+        void add(byte[] hash, int length) {
+            hashes.add(hash);
+            lengths.add(length);
+        }
+
+        Manifest build() {
+            int[] lengths = new int[this.lengths.size()];
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] = this.lengths.get(i);
+            }
+            return new Manifest(hashes.toArray(new byte[0][]), lengths);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package peer.backend;
+
+import peer.Constants;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Merkle tree over a set of saved files, used to find where two peers that should hold the same files diverge.
+ * <p>
+ * Files are bucketed by their position on the ring, each position is a leaf, and the leaves are grouped under
+ * {@link Constants#MERKLE_BRANCHES} nodes by consecutive ranges, under a single root. A leaf's hash is the sum of
+ * the hashes of its files, so it does not depend on the order they are visited in, and a node's hash is the
+ * SHA-256 of its children. Hashes are truncated to 64 bits, they only have to tell replicas apart.
+ */
+public class MerkleTree {
+    public static final int LEAVES = Constants.CHORD_MAX_PEERS;
+    public static final int NODES = (LEAVES + Constants.MERKLE_BRANCHES - 1) / Constants.MERKLE_BRANCHES;
+
+    private final long[] leaves = new long[LEAVES];
+    private final long[] nodes = new long[NODES];
+    private final long root;
+
+    /**
+     * @param files  Files on the tree
+     * @param bucket Leaf of each file's ID
+     */
+    public MerkleTree(Collection<PeerFile> files, ToIntFunction<String> bucket) {
+        for (PeerFile file : files) {
+            leaves[bucket.applyAsInt(file.getId())] += fileHash(file);
+        }
+        for (int node = 0; node < NODES; node++) {
+            int from = node * Constants.MERKLE_BRANCHES;
+            nodes[node] = hash(leaves, from, Math.min(LEAVES, from + Constants.MERKLE_BRANCHES));
+        }
+        root = hash(nodes, 0, NODES);
+    }
+
+    /**
+     * @param file File on the tree
+     * @return the hash of the file's ID, size and checksum
+     */
+    public static long fileHash(PeerFile file) {
+        String description = file.getId() + "|" + file.getSize() + "|" + file.getChecksum();
+        return ByteBuffer.wrap(sha256().digest(description.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+
+    private static long hash(long[] children, int from, int to) {
+        ByteBuffer buffer = ByteBuffer.allocate((to - from) * Long.BYTES);
+        for (int i = from; i < to; i++) buffer.putLong(children[i]);
+        return ByteBuffer.wrap(sha256().digest(buffer.array())).getLong();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getRoot() {
+        return root;
+    }
+
+    public long getNode(int node) {
+        return nodes[node];
+    }
+
+    public long getLeaf(int leaf) {
+        return leaves[leaf];
+    }
+
+    /**
+     * @param node Node's index
+     * @return the first leaf under the node
+     */
+    public static int firstLeaf(int node) {
+        return node * Constants.MERKLE_BRANCHES;
+    }
+
+    /**
+     * @param node Node's index
+     * @return the leaf after the last one under the node
+     */
+    public static int lastLeaf(int node) {
+        return Math.min(LEAVES, (node + 1) * Constants.MERKLE_BRANCHES);
+    }
+
+    /**
+     * @param others Hashes of the nodes of another tree
+     * @return the nodes whose hash differs from the other tree's
+     */
+    public List<Integer> differingNodes(long[] others) {
+        List<Integer> differing = new ArrayList<>();
+        for (int node = 0; node < NODES; node++) {
+            if (nodes[node] != others[node]) differing.add(node);
+        }
+        return differing;
+    }
+
+    /**
+     * @return the root followed by the nodes, in hexadecimal
+     */
+    public List<String> encodeTop() {
+        List<String> top = new ArrayList<>(NODES + 1);
+        top.add(Long.toHexString(root));
+        for (long node : nodes) top.add(Long.toHexString(node));
+        return top;
+    }
+
+    /**
+     * @param value Hash in hexadecimal
+     * @return the hash
+     */
+    public static long parseHash(String value) {
+        return Long.parseUnsignedLong(value, 16);
+    }
+}
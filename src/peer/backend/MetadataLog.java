@@ -0,0 +1,549 @@
+package peer.backend;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import peer.chord.ChordReference;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log for the Peer's metadata. Every change to the internal state is written as a small binary
+ * record, so the cost of persisting the metadata depends on the rate of change and not on the size of the state.
+ * <p>
+ * Records are buffered and written in groups (group commit): every record appended during a flush window is
+ * written with a single write and, if configured, a single fsync. Each record is framed as
+ * <code>[length][crc32][payload]</code>, a torn or corrupted record at the tail of the log ends the replay.
+ * <p>
+ * The payload starts with the format it was written with, <code>[0][format][type]...</code>, so records of
+ * older formats are still decoded. Records written before the format was recorded start with their type, only
+ * the layout of their Peer Files changed, and they are decoded with the one format that reads them whole.
+ */
+public class MetadataLog {
+    private static final Logger log = LogManager.getLogger(MetadataLog.class);
+
+    static final byte ADD_SENT = 1;
+    static final byte REMOVE_SENT = 2;
+    static final byte ADD_SAVED = 3;
+    static final byte REMOVE_SAVED = 4;
+    static final byte ADD_KEY = 5;
+    static final byte REMOVE_KEY = 6;
+    static final byte CAPACITY = 7;
+    static final byte ADD_FRAGMENT = 8;
+    static final byte REMOVE_FRAGMENT = 9;
+    private static final byte VERSIONED = 0; // first byte of the records carrying their format, no type is 0
+    static final int FORMAT = MetadataSnapshot.VERSION; // layout of the Peer Files, numbered as the snapshots
+
+    /**
+     * Handler used to replay the records of a log
+     */
+    interface Handler {
+        void addSent(String filename, PeerFile file);
+
+        void removeSent(String filename);
+
+        void addSaved(PeerFile file);
+
+        void removeSaved(String fileId);
+
+        void addKey(String fileId, int key);
+
+        void removeKey(String fileId, int key);
+
+        void capacity(long capacity);
+
+        void addFragment(String fileId, int index, int key);
+
+        void removeFragment(String fileId, int index);
+
+        /**
+         * Called for every record written with an older format
+         *
+         * @param format Format the record was written with
+         */
+        void outdated(int format);
+    }
+
+    private final Path path;
+    private final boolean fsync;
+    private FileChannel channel;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long size;
+    // flushes write and force the log while holding it, a lock does not pin the carrier of a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Opens (or creates) the log on path, the log is positioned after its last valid record
+     *
+     * @param path  Log's path
+     * @param fsync if true every group of records is forced to the disk
+     * @throws IOException on error opening the log
+     */
+    public MetadataLog(Path path, boolean fsync) throws IOException {
+        this.path = path;
+        this.fsync = fsync;
+        this.open();
+    }
+
+    private void open() throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = validLength(path);
+        // drop a torn record left by a crash, so new records are not appended after garbage
+        this.channel.truncate(this.size);
+        this.channel.position(this.size);
+    }
+
+    /**
+     * Method to append a record, the record is only written to the disk on the next flush
+     *
+     * @param record Encoded record
+     */
+    public void append(byte[] record) {
+        lock.lock();
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(record.length).putInt((int) crc.getValue());
+            pending.write(header.array(), 0, 8);
+            pending.write(record, 0, record.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method to write every pending record to the log (group commit)
+     *
+     * @throws IOException on error writing to the log
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (pending.size() == 0) return;
+            ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+            pending = new ByteArrayOutputStream();
+            while (buffer.hasRemaining()) {
+                size += channel.write(buffer);
+            }
+            if (fsync) channel.force(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of the log on disk, in bytes
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if there are no records on this log, written or pending
+     */
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return size == 0 && pending.size() == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method to rotate the log, the current records are flushed and appended to <code>rotated</code>, and the
+     * log starts over empty. The rotated log must only be deleted once a snapshot covering it is written, if
+     * a previous snapshot failed the rotated log still exists and the new records are appended after the old ones.
+     *
+     * @param rotated Path of the rotated log
+     * @throws IOException on error rotating the log
+     */
+    public void rotate(Path rotated) throws IOException {
+        lock.lock();
+        try {
+            this.flush();
+            try (FileChannel target = FileChannel.open(rotated, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long transferred = 0;
+                while (transferred < size) {
+                    transferred += channel.transferTo(transferred, size - transferred, target);
+                }
+                target.force(false);
+            }
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(false);
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            this.flush();
+            this.channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method to replay a log, calling the handler for each valid record. A record that cannot be decoded is
+     * skipped and the replay goes on with the next ones.
+     *
+     * @param path    Log's path
+     * @param handler Handler for the records
+     * @return number of records replayed
+     * @throws IOException on error reading the log, or if any record could not be decoded
+     */
+    static int replay(Path path, Handler handler) throws IOException {
+        if (!Files.exists(path)) return 0;
+
+        int records = 0;
+        int skipped = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] record;
+            while ((record = readRecord(in)) != null) {
+                try {
+                    int format = apply(record, handler);
+                    if (format < FORMAT) handler.outdated(format);
+                    records++;
+                } catch (IOException e) {
+                    log.error("Could not decode record {} of the metadata log: {}", records + skipped, e.getMessage());
+                    skipped++;
+                }
+            }
+        }
+        if (skipped > 0) throw new IOException(String.format("%d of %d records could not be decoded", skipped, records + skipped));
+        return records;
+    }
+
+    /**
+     * Method to find the length of the valid prefix of a log
+     */
+    private static long validLength(Path path) throws IOException {
+        long length = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] record;
+            while ((record = readRecord(in)) != null) {
+                length += 8 + record.length;
+            }
+        }
+        return length;
+    }
+
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        int checksum;
+        try {
+            length = in.readInt();
+            checksum = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > (1 << 20)) return null;
+
+        byte[] record = new byte[length];
+        try {
+            in.readFully(record);
+        } catch (EOFException e) {
+            log.info("Found torn record at the end of the metadata log");
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != checksum) {
+            log.info("Found corrupted record on the metadata log, ignoring the rest of the log");
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * @return the format the record was written with
+     */
+    private static int apply(byte[] record, Handler handler) throws IOException {
+        if (record[0] == VERSIONED) {
+            if (record.length < 2) throw new IOException("Record is too short");
+            int format = record[1];
+            if (format < 1 || format > FORMAT) throw new IOException("Unsupported record format: " + format);
+            decode(record, 2, format).accept(handler);
+            return format;
+        }
+        // every format reads more of a record than the ones before it, only the one it was written with ends on it
+        for (int format = FORMAT; format >= 1; format--) {
+            Consumer<Handler> change;
+            try {
+                change = decode(record, 0, format);
+            } catch (IOException e) {
+                continue;
+            }
+            change.accept(handler);
+            return format;
+        }
+        throw new IOException("Record does not match any format");
+    }
+
+    /**
+     * Method to decode a record without applying it
+     *
+     * @return the change the record describes
+     * @throws IOException if the record is not a valid one of the format, or has bytes left after it
+     */
+    private static Consumer<Handler> decode(byte[] record, int offset, int format) throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(record, offset, record.length - offset);
+        DataInputStream in = new DataInputStream(bytes);
+        Consumer<Handler> change;
+        byte type = in.readByte();
+        switch (type) {
+            case ADD_SENT: {
+                String filename = in.readUTF();
+                PeerFile file = readPeerFile(in, format);
+                change = handler -> handler.addSent(filename, file);
+                break;
+            }
+            case REMOVE_SENT: {
+                String filename = in.readUTF();
+                change = handler -> handler.removeSent(filename);
+                break;
+            }
+            case ADD_SAVED: {
+                PeerFile file = readPeerFile(in, format);
+                change = handler -> handler.addSaved(file);
+                break;
+            }
+            case REMOVE_SAVED: {
+                String fileId = in.readUTF();
+                change = handler -> handler.removeSaved(fileId);
+                break;
+            }
+            case ADD_KEY: {
+                String fileId = in.readUTF();
+                int key = in.readInt();
+                change = handler -> handler.addKey(fileId, key);
+                break;
+            }
+            case REMOVE_KEY: {
+                String fileId = in.readUTF();
+                int key = in.readInt();
+                change = handler -> handler.removeKey(fileId, key);
+                break;
+            }
+            case CAPACITY: {
+                long capacity = in.readLong();
+                change = handler -> handler.capacity(capacity);
+                break;
+            }
+            case ADD_FRAGMENT: {
+                String fileId = in.readUTF();
+                int index = in.readInt();
+                int key = in.readInt();
+                change = handler -> handler.addFragment(fileId, index, key);
+                break;
+            }
+            case REMOVE_FRAGMENT: {
+                String fileId = in.readUTF();
+                int index = in.readInt();
+                change = handler -> handler.removeFragment(fileId, index);
+                break;
+            }
+            default:
+                throw new IOException("Unknown record type: " + type);
+        }
+        if (bytes.available() > 0) throw new IOException("Record is longer than its type");
+        return change;
+    }
+
+    static byte[] addSent(String filename, PeerFile file) {
+        return encode(out -> {
+            out.writeByte(ADD_SENT);
+            out.writeUTF(filename);
+            writePeerFile(out, file);
+        });
+    }
+
+    static byte[] removeSent(String filename) {
+        return encode(out -> {
+            out.writeByte(REMOVE_SENT);
+            out.writeUTF(filename);
+        });
+    }
+
+    static byte[] addSaved(PeerFile file) {
+        return encode(out -> {
+            out.writeByte(ADD_SAVED);
+            writePeerFile(out, file);
+        });
+    }
+
+    static byte[] removeSaved(String fileId) {
+        return encode(out -> {
+            out.writeByte(REMOVE_SAVED);
+            out.writeUTF(fileId);
+        });
+    }
+
+    static byte[] addKey(String fileId, int key) {
+        return encode(out -> {
+            out.writeByte(ADD_KEY);
+            out.writeUTF(fileId);
+            out.writeInt(key);
+        });
+    }
+
+    static byte[] removeKey(String fileId, int key) {
+        return encode(out -> {
+            out.writeByte(REMOVE_KEY);
+            out.writeUTF(fileId);
+            out.writeInt(key);
+        });
+    }
+
+    static byte[] capacity(long capacity) {
+        return encode(out -> {
+            out.writeByte(CAPACITY);
+            out.writeLong(capacity);
+        });
+    }
+
+    static byte[] addFragment(String fileId, int index, int key) {
+        return encode(out -> {
+            out.writeByte(ADD_FRAGMENT);
+            out.writeUTF(fileId);
+            out.writeInt(index);
+            out.writeInt(key);
+        });
+    }
+
+    static byte[] removeFragment(String fileId, int index) {
+        return encode(out -> {
+            out.writeByte(REMOVE_FRAGMENT);
+            out.writeUTF(fileId);
+            out.writeInt(index);
+        });
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(RecordWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSIONED);
+            out.writeByte(FORMAT);
+            writer.write(out);
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Method to write a Peer File on its binary representation
+     *
+     * @param out  Output Stream
+     * @param file Peer File to be written
+     * @throws IOException on error writing
+     */
+    static void writePeerFile(DataOutput out, PeerFile file) throws IOException {
+        out.writeInt(file.getKey());
+        out.writeUTF(file.getId());
+        writeReference(out, file.getOwner());
+        out.writeLong(file.getSize());
+        out.writeInt(file.getReplicationDegree());
+        Integer[] keys = file.getKeys().toArray(new Integer[0]);
+        out.writeInt(keys.length);
+        for (Integer key : keys) {
+            out.writeInt(key);
+        }
+        out.writeByte(file.getDataFragments());
+        out.writeByte(file.getParityFragments());
+        Map<Integer, Integer> fragments = new HashMap<>(file.getFragments());
+        out.writeShort(fragments.size());
+        for (Map.Entry<Integer, Integer> fragment : fragments.entrySet()) {
+            out.writeShort(fragment.getKey());
+            out.writeInt(fragment.getValue());
+        }
+        out.writeUTF(file.getChecksum() == null ? "" : file.getChecksum());
+        out.writeBoolean(file.isSoft());
+    }
+
+    /**
+     * Method to read a Peer File written by an older version, the fields it did not have get their defaults:
+     * no fragments before 2, no checksum before 3 and not soft before 4
+     *
+     * @param in      Input Stream
+     * @param version Snapshot version or record format the Peer File was written with
+     * @return the Peer File read
+     * @throws IOException on error reading
+     */
+    static PeerFile readPeerFile(DataInput in, int version) throws IOException {
+        int key = in.readInt();
+        String id = in.readUTF();
+        ChordReference owner = readReference(in);
+        long size = in.readLong();
+        int replicationDegree = in.readInt();
+        int[] keys = new int[in.readInt()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = in.readInt();
+        }
+        int dataFragments = version >= 2 ? in.readUnsignedByte() : 0;
+        int parityFragments = version >= 2 ? in.readUnsignedByte() : 0;
+        PeerFile file = new PeerFile(key, id, owner, size, replicationDegree, dataFragments, parityFragments);
+        for (int k : keys) {
+            file.addKey(k);
+        }
+        if (version >= 2) {
+            int fragments = in.readUnsignedShort();
+            for (int i = 0; i < fragments; i++) {
+                file.getFragments().put(in.readUnsignedShort(), in.readInt());
+            }
+        }
+        if (version >= 3) {
+            String checksum = in.readUTF();
+            if (!checksum.isEmpty()) file.setChecksum(checksum);
+        }
+        if (version >= 4) file.setSoft(in.readBoolean());
+        return file;
+    }
+
+    private static void writeReference(DataOutput out, ChordReference reference) throws IOException {
+        if (reference == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        out.writeInt(reference.getGuid());
+        out.writeUTF(reference.getAddress().getAddress().getHostAddress());
+        out.writeInt(reference.getAddress().getPort());
+    }
+
+    private static ChordReference readReference(DataInput in) throws IOException {
+        if (!in.readBoolean()) return null;
+        int guid = in.readInt();
+        // the address is always an IP literal, so no name resolution happens here
+        InetAddress address = InetAddress.getByName(in.readUTF());
+        int port = in.readInt();
+        return new ChordReference(new InetSocketAddress(address, port), guid);
+    }
+}
@@ -0,0 +1,204 @@
+package peer.backend;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Versioned binary snapshot of the Peer's metadata. The snapshot is read through a memory mapping and its
+ * entries are decoded in parallel, straight from the mapping, using the offset table written at the end.
+ * <p>
+ * Layout:
+ * <pre>
+ * [magic][version][capacity][sent count][saved count]
+ * [sent entries: filename + peer file]...[saved entries: peer file]...
+ * [offset table: one long per entry]
+ * [offset table position][crc32 of everything before the crc]
+ * </pre>
+ * Snapshots of older versions are still read, the fields they lack get their defaults.
+ */
+public class MetadataSnapshot {
+    private static final int MAGIC = 0x53444953; // SDIS
+    static final int VERSION = 4; // 2: erasure coded fragments, 3: content checksums, 4: soft replicas
+    private static final int HEADER_SIZE = 24;
+    private static final int FOOTER_SIZE = 12;
+    private static final int DECODE_BATCH = 4096;
+
+    /**
+     * Method to write a snapshot
+     *
+     * @param path     Snapshot's path
+     * @param capacity Peer's capacity
+     * @param sent     Sent files, by filename
+     * @param saved    Saved files, by file ID
+     * @throws IOException on error writing the snapshot
+     */
+    static void write(Path path, long capacity, Map<String, PeerFile> sent, Map<String, PeerFile> saved) throws IOException {
+        long[] offsets = new long[sent.size() + saved.size()];
+        int entry = 0;
+
+        try (FileOutputStream fileOut = new FileOutputStream(path.toFile())) {
+            CRC32 crc = new CRC32();
+            CountingOutputStream counter = new CountingOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut), crc));
+            DataOutputStream out = new DataOutputStream(counter);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(capacity);
+            out.writeInt(sent.size());
+            out.writeInt(saved.size());
+
+            for (Map.Entry<String, PeerFile> file : sent.entrySet()) {
+                offsets[entry++] = counter.count;
+                out.writeUTF(file.getKey());
+                MetadataLog.writePeerFile(out, file.getValue());
+            }
+            for (PeerFile file : saved.values()) {
+                offsets[entry++] = counter.count;
+                MetadataLog.writePeerFile(out, file);
+            }
+
+            long table = counter.count;
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            out.writeLong(table);
+            out.flush();
+
+            // the checksum itself is not covered by the checksum
+            DataOutputStream trailer = new DataOutputStream(fileOut);
+            trailer.writeInt((int) crc.getValue());
+            trailer.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    /**
+     * @param path Snapshot's path
+     * @return the version the snapshot was written with
+     * @throws IOException on error reading, or if it is not a snapshot
+     */
+    static int version(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path.toFile()))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a snapshot file");
+            return in.readInt();
+        }
+    }
+
+    /**
+     * Method to read a snapshot into the maps
+     *
+     * @param path  Snapshot's path
+     * @param sent  Map to put the sent files on
+     * @param saved Map to put the saved files on
+     * @return the capacity stored on the snapshot
+     * @throws IOException on error reading, or if the snapshot is not valid
+     */
+    static long read(Path path, Map<String, PeerFile> sent, Map<String, PeerFile> saved) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + FOOTER_SIZE) throw new IOException("Snapshot is too small");
+            if (size > Integer.MAX_VALUE) throw new IOException("Snapshot is too large to be mapped");
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (buffer.getInt(0) != MAGIC) throw new IOException("Not a snapshot file");
+            int version = buffer.getInt(4);
+            if (version < 1 || version > VERSION) throw new IOException("Unsupported snapshot version: " + version);
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().limit((int) size - 4));
+            if ((int) crc.getValue() != buffer.getInt((int) size - 4)) throw new IOException("Snapshot checksum mismatch");
+
+            long capacity = buffer.getLong(8);
+            int sentCount = buffer.getInt(16);
+            int savedCount = buffer.getInt(20);
+            int table = (int) buffer.getLong((int) size - FOOTER_SIZE);
+
+            for (int i = 0; i < sentCount; i++) {
+                DataInputStream in = entry(buffer, buffer.getLong(table + i * 8));
+                String filename = in.readUTF();
+                sent.put(filename, MetadataLog.readPeerFile(in, version));
+            }
+
+            // the stored files are the bulk of the snapshot, these are decoded in parallel batches
+            int batches = (savedCount + DECODE_BATCH - 1) / DECODE_BATCH;
+            try {
+                IntStream.range(0, batches).parallel().forEach(batch -> {
+                    int first = sentCount + batch * DECODE_BATCH;
+                    int last = Math.min(sentCount + savedCount, first + DECODE_BATCH);
+                    try {
+                        for (int i = first; i < last; i++) {
+                            PeerFile file = MetadataLog.readPeerFile(entry(buffer, buffer.getLong(table + i * 8)), version);
+                            saved.put(file.getId(), file);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            return capacity;
+        }
+    }
+
+    private static DataInputStream entry(ByteBuffer buffer, long offset) {
+        return new DataInputStream(new ByteBufferInputStream(buffer.duplicate().position((int) offset)));
+    }
+
+    /**
+     * Input Stream reading from a (mapped) byte buffer
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+
+    /**
+     * Output Stream keeping track of the bytes written, used to build the offset table
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package peer.backend;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import peer.Constants;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured store for small objects. Objects are appended to large segment files
+ * (<code>segment-&lt;n&gt;.pack</code>) instead of getting a file each, and an in-memory index maps every key
+ * to its segment and position, so reads are a single positional read on an open channel.
+ * <p>
+ * Deletes append a tombstone. Segments whose content is mostly deleted entries are compacted in the background:
+ * the live entries are copied to the active segment and the old segment is deleted.
+ * <p>
+ * Record layout: <code>[type][key][length][crc32][data]</code>, a torn record at the end of the last segment
+ * is discarded on startup.
+ */
+public class PackStore {
+    private static final Logger log = LogManager.getLogger(PackStore.class);
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".pack";
+
+    private final Path directory;
+    private final PeerInternalState state;
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+    // segments are only closed and deleted while holding the write lock, reads hold the read lock
+    private final ReentrantReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+    // appends write to the disk while holding it, a lock does not pin the carrier of a virtual thread as a monitor does
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private Segment active;
+
+    /**
+     * Position of an object on a segment
+     */
+    private static class Entry {
+        private final int segment;
+        private final long position;
+        private final int length;
+        private final int recordSize;
+
+        Entry(int segment, long position, int length, int recordSize) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+    private static class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong live = new AtomicLong();
+        private volatile long size;
+
+        Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    PackStore(Path directory, PeerInternalState state) throws IOException {
+        this.directory = directory;
+        this.state = state;
+        Files.createDirectories(directory);
+        this.load();
+    }
+
+    /**
+     * Method to rebuild the index from the segments, the last record of a key wins
+     */
+    private void load() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                ids.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+
+        for (int id : ids) {
+            Segment segment = new Segment(id, segmentPath(id));
+            segments.put(id, segment);
+            long valid = this.scan(segment);
+            if (valid < segment.size) {
+                log.info("Discarding torn record at the end of {}", segment.path.getFileName());
+                segment.channel.truncate(valid);
+                segment.size = valid;
+            }
+        }
+
+        int next = ids.isEmpty() ? 0 : ids.get(ids.size() - 1);
+        this.active = segments.containsKey(next) ? segments.get(next) : this.createSegment(next);
+        log.info("Pack store loaded with {} objects on {} segments", index.size(), segments.size());
+    }
+
+    private long scan(Segment segment) throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path)))) {
+            while (true) {
+                byte type;
+                String key;
+                int length;
+                int checksum;
+                byte[] data;
+                try {
+                    type = in.readByte();
+                    key = in.readUTF();
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || length > Constants.PACK_THRESHOLD) return position;
+                    data = new byte[length];
+                    in.readFully(data);
+                } catch (EOFException e) {
+                    return position;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if ((int) crc.getValue() != checksum) return position;
+
+                int recordSize = headerSize(key) + length;
+                Entry previous;
+                if (type == PUT) {
+                    previous = index.put(key, new Entry(segment.id, position + headerSize(key), length, recordSize));
+                    segment.live.addAndGet(recordSize);
+                } else {
+                    previous = index.remove(key);
+                }
+                if (previous != null) segments.get(previous.segment).live.addAndGet(-previous.recordSize);
+                position += recordSize;
+            }
+        }
+    }
+
+    private static int headerSize(String key) {
+        return 1 + 2 + key.getBytes(StandardCharsets.UTF_8).length + 4 + 4;
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(PREFIX + id + SUFFIX);
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Segment segment = new Segment(id, segmentPath(id));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * @param key Object's key
+     * @return true if the object is on the store
+     */
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @param key Object's key
+     * @return the size of the object, or -1 if it is not on the store
+     */
+    public int size(String key) {
+        Entry entry = index.get(key);
+        return entry == null ? -1 : entry.length;
+    }
+
+    /**
+     * @return the keys of every object on the store
+     */
+    public Set<String> keys() {
+        return index.keySet();
+    }
+
+    /**
+     * Method to read an object
+     *
+     * @param key Object's key
+     * @return the object's content, or null if it is not on the store
+     * @throws IOException on error reading the segment
+     */
+    public byte[] read(String key) throws IOException {
+        segmentsLock.readLock().lock();
+        try {
+            Entry entry = index.get(key);
+            if (entry == null) return null;
+            ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+            FileChannel channel = segments.get(entry.segment).channel;
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.position + buffer.position()) < 0) {
+                    throw new IOException("Segment " + entry.segment + " is shorter than its index");
+                }
+            }
+            return buffer.array();
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Method to add an object, an object with the same key is replaced
+     *
+     * @param key     Object's key
+     * @param content Object's content, at most {@link Constants#PACK_THRESHOLD} bytes
+     * @throws IOException on error writing the segment
+     */
+    public void put(String key, byte[] content) throws IOException {
+        this.put(key, content, null);
+    }
+
+    /**
+     * Method to add an object received under a reservation, the record is committed to it
+     *
+     * @param key         Object's key
+     * @param content     Object's content, at most {@link Constants#PACK_THRESHOLD} bytes
+     * @param reservation Reservation the record is written under, or null to add it to the occupation
+     * @throws IOException on error writing the segment
+     */
+    public void put(String key, byte[] content, PeerInternalState.Reservation reservation) throws IOException {
+        appendLock.lock();
+        try {
+            Entry entry = this.append(PUT, key, content, reservation);
+            Entry previous = index.put(key, entry);
+            segments.get(entry.segment).live.addAndGet(entry.recordSize);
+            if (previous != null) segments.get(previous.segment).live.addAndGet(-previous.recordSize);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Method to add an object only if there is no object with the same key, the check and the append are done
+     * under the same lock so concurrent writers of the same object write it once
+     *
+     * @param key         Object's key
+     * @param content     Object's content, at most {@link Constants#PACK_THRESHOLD} bytes
+     * @param reservation Reservation the record is written under, or null to add it to the occupation
+     * @return true if the object was added
+     * @throws IOException on error writing the segment
+     */
+    public boolean putIfAbsent(String key, byte[] content, PeerInternalState.Reservation reservation) throws IOException {
+        appendLock.lock();
+        try {
+            if (index.containsKey(key)) return false;
+            this.put(key, content, reservation);
+            return true;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Method to delete an object
+     *
+     * @param key Object's key
+     * @return the size of the deleted object, or -1 if it was not on the store
+     * @throws IOException on error writing the tombstone
+     */
+    public int delete(String key) throws IOException {
+        appendLock.lock();
+        try {
+            Entry previous = index.remove(key);
+            if (previous == null) return -1;
+            this.append(DELETE, key, new byte[0], null);
+            segments.get(previous.segment).live.addAndGet(-previous.recordSize);
+            return previous.length;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private Entry append(byte type, String key, byte[] content, PeerInternalState.Reservation reservation) throws IOException {
+        if (content.length > Constants.PACK_THRESHOLD) throw new IOException("Object is too large for the pack store");
+        if (active.size >= Constants.PACK_SEGMENT_SIZE) {
+            active = this.createSegment(active.id + 1);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(headerSize(key) + content.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(key);
+        out.writeInt(content.length);
+        out.writeInt((int) crc.getValue());
+        out.write(content);
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        long position = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, position + record.position());
+        }
+        active.size += record.capacity();
+        if (reservation != null) reservation.commit(record.capacity());
+        else state.addOccupation(record.capacity());
+        return new Entry(active.id, position + headerSize(key), content.length, record.capacity());
+    }
+
+    /**
+     * Method to compact the segments whose live entries are less than {@link Constants#PACK_COMPACT_RATIO} of
+     * their size. The live entries are appended to the active segment and the old segment is deleted.
+     */
+    public void compact() {
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment == this.active() || segment.size == 0) continue;
+            if ((double) segment.live.get() / segment.size >= Constants.PACK_COMPACT_RATIO) continue;
+            try {
+                this.compact(segment);
+            } catch (IOException e) {
+                log.error("Could not compact {}: {}", segment.path.getFileName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the segment objects are appended to
+     */
+    private Segment active() {
+        appendLock.lock();
+        try {
+            return active;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        // the live entries are appended to this segment, or to the ones created after it
+        int first = this.active().id;
+        int moved = 0;
+        for (Map.Entry<String, Entry> object : index.entrySet()) {
+            if (object.getValue().segment != segment.id) continue;
+            appendLock.lock();
+            try {
+                // the object may have been deleted or replaced in the meantime
+                Entry entry = index.get(object.getKey());
+                if (entry == null || entry.segment != segment.id) continue;
+                byte[] content = this.read(object.getKey());
+                this.put(object.getKey(), content);
+                moved++;
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        // a tombstone is only needed while an older segment may still have the deleted object
+        boolean older = segments.keySet().stream().anyMatch(id -> id < segment.id);
+        if (older) {
+            this.copyTombstones(segment);
+        }
+
+        // the moved entries and tombstones must be on the disk before the segment with their only copy is deleted
+        for (Segment target : new ArrayList<>(segments.values())) {
+            if (target.id >= first) target.channel.force(false);
+        }
+
+        segmentsLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+        state.releaseOccupation(segment.size);
+        log.info("Compacted {}: {} live objects moved, {} freed", segment.path.getFileName(), moved, segment.size);
+    }
+
+    private void copyTombstones(Segment segment) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path)))) {
+            long position = 0;
+            while (position < segment.size) {
+                byte type = in.readByte();
+                String key = in.readUTF();
+                int length = in.readInt();
+                in.readInt();
+                in.readFully(new byte[length]);
+                position += headerSize(key) + length;
+                if (type != DELETE) continue;
+                appendLock.lock();
+                try {
+                    if (!index.containsKey(key)) this.append(DELETE, key, new byte[0], null);
+                } finally {
+                    appendLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the bytes used by the segments
+     */
+    public long diskSize() {
+        return segments.values().stream().mapToLong(segment -> segment.size).sum();
+    }
+}
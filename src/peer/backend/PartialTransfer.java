@@ -0,0 +1,208 @@
+package peer.backend;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * State of a download that can be resumed. The bytes are written to <code>&lt;target&gt;.part</code> and every
+ * stripe received is appended to <code>&lt;target&gt;.part.state</code> with its CRC32, computed while the stripe
+ * was being received. When the same range of the same file is requested again, the stripes on the state are
+ * checked against the partial file and only the missing or damaged stripes are fetched.
+ * <p>
+ * State layout: <code>[fileId][offset][length][stripe size]</code> followed by
+ * <code>[stripe offset][stripe length][crc32]</code> records.
+ */
+public class PartialTransfer implements Closeable {
+    private static final Logger log = LogManager.getLogger(PartialTransfer.class);
+    private static final int RECORD_SIZE = 16;
+
+    private final Path part;
+    private final Path statePath;
+    private final long offset;
+    private final long length;
+    private final long stripeSize;
+    private final FileChannel channel;
+    private final DataOutputStream state;
+    // stripes are registered from the threads receiving them, each forcing the file to the disk while holding it
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final List<Long> missing = new ArrayList<>();
+
+    private PartialTransfer(Path target, String fileId, long offset, long length, long stripeSize) throws IOException {
+        this.part = Path.of(target + ".part");
+        this.statePath = Path.of(target + ".part.state");
+        this.offset = offset;
+        this.length = length;
+        this.stripeSize = stripeSize;
+
+        Map<Long, Integer> received = this.load(fileId);
+        if (received == null) {
+            // nothing to resume, or it was a different transfer
+            Files.deleteIfExists(part);
+            this.writeHeader(fileId);
+            received = new HashMap<>();
+        }
+
+        this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int resumed = 0;
+        for (long stripe = offset; stripe < offset + length; stripe += stripeSize) {
+            Integer checksum = received.get(stripe);
+            if (checksum != null && checksum == this.checksum(stripe)) {
+                resumed++;
+            } else {
+                missing.add(stripe);
+            }
+        }
+        if (resumed > 0) log.info("Resuming transfer of {}: {} stripes already received", fileId, resumed);
+
+        this.state = new DataOutputStream(new FileOutputStream(statePath.toFile(), true));
+    }
+
+    /**
+     * Method to open the transfer of a range of a file to target, resuming a previous transfer if there is one
+     *
+     * @param target     Path of the file being received
+     * @param fileId     ID of the file being transferred
+     * @param offset     First byte of the range
+     * @param length     Number of bytes of the range
+     * @param stripeSize Size of each stripe
+     * @return the transfer
+     * @throws IOException on error opening the partial file or its state
+     */
+    public static PartialTransfer open(Path target, String fileId, long offset, long length, long stripeSize) throws IOException {
+        return new PartialTransfer(target, fileId, offset, length, stripeSize);
+    }
+
+    private Map<Long, Integer> load(String fileId) {
+        if (!Files.exists(statePath) || !Files.exists(part)) return null;
+        Map<Long, Integer> received = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(statePath)))) {
+            if (!in.readUTF().equals(fileId) || in.readLong() != offset || in.readLong() != length || in.readLong() != stripeSize) {
+                return null;
+            }
+            byte[] record = new byte[RECORD_SIZE];
+            while (true) {
+                try {
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    // end of the state, or a record torn by a crash
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                long stripe = buffer.getLong();
+                buffer.getInt();
+                received.put(stripe, buffer.getInt());
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return received;
+    }
+
+    private void writeHeader(String fileId) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(statePath.toFile()))) {
+            out.writeUTF(fileId);
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.writeLong(stripeSize);
+        }
+    }
+
+    private int checksum(long stripe) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = stripe - offset;
+        long end = position + this.stripeLength(stripe);
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int bytes = channel.read(buffer, position);
+            // a stripe that is not completely on the file was not received
+            if (bytes < 0) return ~0;
+            buffer.flip();
+            crc.update(buffer);
+            position += bytes;
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the first byte of the range, the byte at position 0 of the partial file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the offsets of the stripes that still have to be received
+     */
+    public List<Long> getMissing() {
+        return missing;
+    }
+
+    /**
+     * @param stripe Stripe's offset
+     * @return the length of the stripe, the last one may be shorter
+     */
+    public long stripeLength(long stripe) {
+        return Math.min(stripeSize, offset + length - stripe);
+    }
+
+    /**
+     * @return the partial file, positions on it are relative to the offset of the range
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Method to register a stripe that was completely received
+     *
+     * @param stripe   Stripe's offset
+     * @param checksum CRC32 of the stripe
+     * @throws IOException on error writing the state
+     */
+    public void received(long stripe, int checksum) throws IOException {
+        stateLock.lock();
+        try {
+            // the data must be on disk before the state says it is
+            channel.force(false);
+            state.writeLong(stripe);
+            state.writeInt((int) this.stripeLength(stripe));
+            state.writeInt(checksum);
+            state.flush();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Method to finish the transfer, the partial file becomes the target and the state is deleted
+     *
+     * @param target Path of the file being received
+     * @throws IOException on error moving the file
+     */
+    public void finish(Path target) throws IOException {
+        this.close();
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(statePath);
+    }
+
+    @Override
+    public void close() throws IOException {
+        state.close();
+        channel.close();
+    }
+}
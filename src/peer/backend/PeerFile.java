@@ -2,39 +2,122 @@ package peer.backend;
 
 import peer.chord.ChordReference;
 
-import java.io.Serializable;
-import java.util.HashSet;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 
 /**
  * Peer File Class, stores the metadata related to a served file
+ * <p>
+ * A file can be backed up with full replicas, served by the peers responsible for its keys, or erasure coded
+ * into <code>k</code> data and <code>m</code> parity fragments, each fragment served by the peer responsible for
+ * the key associated with its index.
+ * <p>
+ * A peer may keep the metadata of millions of files, so it is kept compact: the ID and the checksum, SHA-256
+ * digests in hexadecimal, are kept as their 32 bytes, the keys and the fragments are sorted primitive arrays
+ * replaced on every change (they are small and rarely change), and owners are interned by GUID. IDs that are
+ * not digests are kept as they are.
  */
-public class PeerFile implements Serializable {
+public class PeerFile {
+    private static final int[] EMPTY = new int[0];
+    private static final int FILE_ID_LENGTH = 64; // hex digits of a file's SHA-256
+
     private final int key;
-    private final String id;
+    // ID: 32 bytes of the digest and the fragment index (-1 if it is not a fragment), or the ID itself
+    private final long id0, id1, id2, id3;
+    private final short fragment;
+    private final String rawId;
     private final ChordReference owner;
     private final long size;
     private final int replicationDegree;
-    private final Set<Integer> keys = new HashSet<>();
+    private volatile int[] keys = EMPTY;
+    private final byte dataFragments;
+    private final byte parityFragments;
+    // fragment index and key pairs, sorted by index
+    private volatile int[] fragments = EMPTY;
+    private volatile long checksum0, checksum1, checksum2, checksum3;
+    private volatile String rawChecksum;
+    private volatile boolean hasChecksum = false;
+    // extra replica of a popular file, dropped first when space is needed
+    private volatile boolean soft = false;
     public boolean beingDeleted = false;
 
     public PeerFile(int key, String id, ChordReference owner, long size, int replicationDegree) {
+        this(key, id, owner, size, replicationDegree, 0, 0);
+    }
+
+    public PeerFile(int key, String id, ChordReference owner, long size, int replicationDegree, int dataFragments, int parityFragments) {
         // key -1 means it belongs to this peer
         this.key = key;
-        this.id = id;
-        this.owner = owner;
+        int separator = id.lastIndexOf('.');
+        long[] digest = Digest.parse(id, 0, separator < 0 ? id.length() : separator);
+        short index = -1;
+        if (digest != null && separator >= 0) {
+            try {
+                index = Short.parseShort(id.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                digest = null;
+            }
+            if (index < 0) digest = null;
+        }
+        if (digest != null) {
+            this.id0 = digest[0];
+            this.id1 = digest[1];
+            this.id2 = digest[2];
+            this.id3 = digest[3];
+            this.fragment = index;
+            this.rawId = null;
+        } else {
+            this.id0 = this.id1 = this.id2 = this.id3 = 0;
+            this.fragment = -1;
+            this.rawId = id;
+        }
+        this.owner = ChordReference.intern(owner);
         this.size = size;
         this.replicationDegree = replicationDegree;
+        this.dataFragments = (byte) dataFragments;
+        this.parityFragments = (byte) parityFragments;
+    }
+
+    /**
+     * Copy constructor, used to take a consistent copy of the metadata while it may still be changing
+     *
+     * @param other Peer File to be copied
+     */
+    public PeerFile(PeerFile other) {
+        this.key = other.key;
+        this.id0 = other.id0;
+        this.id1 = other.id1;
+        this.id2 = other.id2;
+        this.id3 = other.id3;
+        this.fragment = other.fragment;
+        this.rawId = other.rawId;
+        this.owner = other.owner;
+        this.size = other.size;
+        this.replicationDegree = other.replicationDegree;
+        this.dataFragments = other.dataFragments;
+        this.parityFragments = other.parityFragments;
+        this.keys = other.keys;
+        this.fragments = other.fragments;
+        this.setChecksum(other.getChecksum());
+        this.soft = other.soft;
+        this.beingDeleted = other.beingDeleted;
     }
 
     public void addKeys(List<Integer> keys) {
-        this.keys.addAll(keys);
+        for (int key : keys) {
+            this.addKey(key);
+        }
     }
 
     public void addKey(int key) {
-        this.keys.add(key);
+        this.getKeys().add(key);
     }
 
     public int getKey() {
@@ -42,7 +125,49 @@ public class PeerFile implements Serializable {
     }
 
     public String getId() {
-        return id;
+        if (rawId != null) return rawId;
+        String digest = Digest.format(id0, id1, id2, id3);
+        return fragment < 0 ? digest : fragmentId(digest, fragment);
+    }
+
+    /**
+     * @param id File's ID
+     * @return true if this is the file with the ID, compared without building the ID
+     */
+    public boolean hasId(String id) {
+        if (rawId != null) return rawId.equals(id);
+        int separator = fragment < 0 ? id.length() : id.lastIndexOf('.');
+        if (separator != 64) return false;
+        if (fragment >= 0 && !id.substring(separator + 1).equals(String.valueOf(fragment))) return false;
+        long[] digest = Digest.parse(id, 0, separator);
+        return digest != null && digest[0] == id0 && digest[1] == id1 && digest[2] == id2 && digest[3] == id3;
+    }
+
+    /**
+     * @return the hash of the ID, the same as {@link #hashId(String)} of {@link #getId()}
+     */
+    int idHash() {
+        return rawId != null ? rawId.hashCode() : Digest.hash(id0, id1, id2, id3, fragment);
+    }
+
+    /**
+     * @param id File's ID
+     * @return the hash of the ID
+     */
+    static int hashId(String id) {
+        int separator = id.lastIndexOf('.');
+        long[] digest = Digest.parse(id, 0, separator < 0 ? id.length() : separator);
+        if (digest == null) return id.hashCode();
+        short index = -1;
+        if (separator >= 0) {
+            try {
+                index = Short.parseShort(id.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                return id.hashCode();
+            }
+            if (index < 0) return id.hashCode();
+        }
+        return Digest.hash(digest[0], digest[1], digest[2], digest[3], index);
     }
 
     public ChordReference getOwner() {
@@ -57,20 +182,158 @@ public class PeerFile implements Serializable {
         return replicationDegree;
     }
 
+    /**
+     * @return the checksum of the file's content, see {@link Manifest#checksum()}, or null if it is not known
+     */
+    public String getChecksum() {
+        if (!hasChecksum) return null;
+        return rawChecksum != null ? rawChecksum : Digest.format(checksum0, checksum1, checksum2, checksum3);
+    }
+
+    public synchronized void setChecksum(String checksum) {
+        long[] digest = checksum == null ? null : Digest.parse(checksum, 0, checksum.length());
+        if (digest != null) {
+            this.checksum0 = digest[0];
+            this.checksum1 = digest[1];
+            this.checksum2 = digest[2];
+            this.checksum3 = digest[3];
+            this.rawChecksum = null;
+        } else {
+            this.rawChecksum = checksum;
+        }
+        this.hasChecksum = checksum != null;
+    }
+
+    /**
+     * @return true if this saved file is a soft replica, held beyond the replication degree while it is popular
+     */
+    public boolean isSoft() {
+        return soft;
+    }
+
+    public void setSoft(boolean soft) {
+        this.soft = soft;
+    }
+
+    /**
+     * @return true if this file is stored as erasure coded fragments instead of full replicas
+     */
+    public boolean isErasureCoded() {
+        return dataFragments != 0;
+    }
+
+    public int getDataFragments() {
+        return dataFragments & 0xFF;
+    }
+
+    public int getParityFragments() {
+        return parityFragments & 0xFF;
+    }
+
+    /**
+     * @return the key of the peer serving each stored fragment, by fragment index
+     */
+    public Map<Integer, Integer> getFragments() {
+        return new FragmentView();
+    }
+
+    /**
+     * @param index Fragment's Index
+     * @return the ID under which a fragment of this file is stored
+     */
+    public String getFragmentId(int index) {
+        return fragmentId(getId(), index);
+    }
+
+    public static String fragmentId(String fileId, int index) {
+        return fileId + "." + index;
+    }
+
+    /**
+     * @param fragmentId Stored ID
+     * @return the ID of the file a fragment belongs to, or the ID itself if it is not a fragment
+     */
+    public static String parentId(String fragmentId) {
+        int separator = fragmentSeparator(fragmentId);
+        return separator < 0 ? fragmentId : fragmentId.substring(0, separator);
+    }
+
+    /**
+     * @param fragmentId Stored ID
+     * @return the index of the fragment, or -1 if it is not a fragment
+     */
+    public static int fragmentIndex(String fragmentId) {
+        int separator = fragmentSeparator(fragmentId);
+        return separator < 0 ? -1 : Integer.parseInt(fragmentId.substring(separator + 1));
+    }
+
+    /**
+     * A fragment is stored as the file's SHA-256, in hex, followed by a dot and its index. Other IDs, legacy
+     * ones included, may have a dot too and are not fragments.
+     *
+     * @param id Stored ID
+     * @return the position of the dot before the fragment's index, or -1 if the ID is not a fragment
+     */
+    private static int fragmentSeparator(String id) {
+        int separator = id.lastIndexOf('.');
+        // the index is at most 9 digits so it always fits an int
+        if (separator != FILE_ID_LENGTH || id.length() == separator + 1 || id.length() > separator + 10) return -1;
+        for (int i = 0; i < separator; i++) {
+            if (Character.digit(id.charAt(i), 16) < 0) return -1;
+        }
+        for (int i = separator + 1; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') return -1;
+        }
+        return separator;
+    }
+
+    /**
+     * @return the description of the file sent to other peers: <code>id|owner|size|replication degree|checksum</code>
+     */
+    public String describe() {
+        String checksum = getChecksum();
+        return String.format("%s|%s|%d|%d|%s", getId(), owner, size, replicationDegree, checksum == null ? "-" : checksum);
+    }
+
+    /**
+     * @param description Description of a file, from {@link #describe()}
+     * @param key         Key the file is saved with
+     * @return the file, or null if the description is malformed
+     */
+    public static PeerFile parse(String description, int key) {
+        String[] parts = description.split("\\|");
+        if (parts.length != 5) return null;
+        ChordReference owner = ChordReference.parse(parts[1]);
+        if (owner == null) return null;
+        try {
+            PeerFile file = new PeerFile(key, parts[0], ChordReference.intern(owner), Long.parseLong(parts[2]), Integer.parseInt(parts[3]));
+            if (!parts[4].equals("-")) file.setChecksum(parts[4]);
+            return file;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         return "PeerFile{" +
                 "key=" + key +
-                ", id='" + id + '\'' +
+                ", id='" + getId() + '\'' +
                 ", owner=" + owner +
                 ", size=" + size +
                 ", replicationDegree=" + replicationDegree +
-                ", keys=" + keys +
+                ", keys=" + getKeys() +
+                (soft ? ", soft" : "") +
+                (isErasureCoded() ? ", erasure=" + getDataFragments() + "+" + getParityFragments() + ", fragments=" + getFragments() : "") +
                 '}';
     }
 
+    /**
+     * @return the keys of the peers serving the file, changes on the set change the file
+     */
     public Set<Integer> getKeys() {
-        return keys;
+        return new KeyView();
     }
 
     @Override
@@ -78,11 +341,199 @@ public class PeerFile implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         PeerFile peerFile = (PeerFile) o;
-        return Objects.equals(id, peerFile.id);
+        return id0 == peerFile.id0 && id1 == peerFile.id1 && id2 == peerFile.id2 && id3 == peerFile.id3
+                && fragment == peerFile.fragment && Objects.equals(rawId, peerFile.rawId);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id);
+        return this.idHash();
+    }
+
+    /**
+     * Set view over the sorted keys, every change replaces the array
+     */
+    private class KeyView extends AbstractSet<Integer> {
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Integer && Arrays.binarySearch(keys, (Integer) o) >= 0;
+        }
+
+        @Override
+        public boolean add(Integer key) {
+            synchronized (PeerFile.this) {
+                int[] current = keys;
+                int position = Arrays.binarySearch(current, key);
+                if (position >= 0) return false;
+                position = -position - 1;
+                int[] updated = new int[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, position);
+                updated[position] = key;
+                System.arraycopy(current, position, updated, position + 1, current.length - position);
+                keys = updated;
+                return true;
+            }
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Integer)) return false;
+            synchronized (PeerFile.this) {
+                int[] current = keys;
+                int position = Arrays.binarySearch(current, (Integer) o);
+                if (position < 0) return false;
+                int[] updated = current.length == 1 ? EMPTY : new int[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, position);
+                System.arraycopy(current, position + 1, updated, position, current.length - position - 1);
+                keys = updated;
+                return true;
+            }
+        }
+
+        @Override
+        public Iterator<Integer> iterator() {
+            int[] snapshot = keys;
+            return new Iterator<>() {
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < snapshot.length;
+                }
+
+                @Override
+                public Integer next() {
+                    if (next >= snapshot.length) throw new NoSuchElementException();
+                    return snapshot[next++];
+                }
+
+                @Override
+                public void remove() {
+                    KeyView.this.remove(snapshot[next - 1]);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+    }
+
+    /**
+     * Map view over the sorted fragment index and key pairs, every change replaces the array
+     */
+    private class FragmentView extends AbstractMap<Integer, Integer> {
+        private int find(int[] pairs, int index) {
+            int low = 0;
+            int high = pairs.length / 2 - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int current = pairs[middle * 2];
+                if (current < index) low = middle + 1;
+                else if (current > index) high = middle - 1;
+                else return middle;
+            }
+            return -(low + 1);
+        }
+
+        @Override
+        public Integer get(Object o) {
+            if (!(o instanceof Integer)) return null;
+            int[] pairs = fragments;
+            int position = this.find(pairs, (Integer) o);
+            return position < 0 ? null : pairs[position * 2 + 1];
+        }
+
+        @Override
+        public boolean containsKey(Object o) {
+            return this.get(o) != null;
+        }
+
+        @Override
+        public Integer put(Integer index, Integer key) {
+            synchronized (PeerFile.this) {
+                int[] current = fragments;
+                int position = this.find(current, index);
+                int[] updated;
+                if (position >= 0) {
+                    updated = current.clone();
+                    updated[position * 2 + 1] = key;
+                    fragments = updated;
+                    return current[position * 2 + 1];
+                }
+                position = -position - 1;
+                updated = new int[current.length + 2];
+                System.arraycopy(current, 0, updated, 0, position * 2);
+                updated[position * 2] = index;
+                updated[position * 2 + 1] = key;
+                System.arraycopy(current, position * 2, updated, position * 2 + 2, current.length - position * 2);
+                fragments = updated;
+                return null;
+            }
+        }
+
+        @Override
+        public Integer putIfAbsent(Integer index, Integer key) {
+            synchronized (PeerFile.this) {
+                Integer current = this.get(index);
+                return current != null ? current : this.put(index, key);
+            }
+        }
+
+        @Override
+        public Integer remove(Object o) {
+            if (!(o instanceof Integer)) return null;
+            synchronized (PeerFile.this) {
+                int[] current = fragments;
+                int position = this.find(current, (Integer) o);
+                if (position < 0) return null;
+                int[] updated = current.length == 2 ? EMPTY : new int[current.length - 2];
+                System.arraycopy(current, 0, updated, 0, position * 2);
+                System.arraycopy(current, position * 2 + 2, updated, position * 2, current.length - position * 2 - 2);
+                fragments = updated;
+                return current[position * 2 + 1];
+            }
+        }
+
+        @Override
+        public int size() {
+            return fragments.length / 2;
+        }
+
+        @Override
+        public Set<Entry<Integer, Integer>> entrySet() {
+            int[] snapshot = fragments;
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<Integer, Integer>> iterator() {
+                    return new Iterator<>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < snapshot.length;
+                        }
+
+                        @Override
+                        public Entry<Integer, Integer> next() {
+                            if (next >= snapshot.length) throw new NoSuchElementException();
+                            next += 2;
+                            return new SimpleImmutableEntry<>(snapshot[next - 2], snapshot[next - 1]);
+                        }
+
+                        @Override
+                        public void remove() {
+                            FragmentView.this.remove(snapshot[next - 2]);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return snapshot.length / 2;
+                }
+            };
+        }
     }
 }
@@ -5,83 +5,215 @@ import org.apache.logging.log4j.Logger;
 import peer.Constants;
 import peer.Peer;
 import peer.Utils;
+import peer.backend.legacy.LegacySnapshot;
+import peer.chord.ChordReference;
 
 import java.io.*;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * The Peer's Internal is managed by this class, it's responsible to keep everything in check,
  * files served, files stored, etc.
+ * <p>
+ * Every change to the state is appended to a {@link MetadataLog}, and from time to time a snapshot of the whole
+ * state is written so the log can be compacted. On load the snapshot is read and the log is replayed over it.
  */
-public class PeerInternalState implements Serializable {
+public class PeerInternalState {
     private static final Logger log = LogManager.getLogger(PeerInternalState.class);
 
     private final ConcurrentHashMap<String, PeerFile> sentFilesMap = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, PeerFile> savedFilesMap = new ConcurrentHashMap<>();
-    private transient ScheduledExecutorService scheduler;
+    // fileId -> filename of the sent files, only changed together with sentFilesMap, inside its compute functions
+    private final ConcurrentHashMap<String, String> sentIds = new ConcurrentHashMap<>();
+    private final SavedFileMap savedFilesMap = new SavedFileMap();
+    private ScheduledExecutorService scheduler;
+    private ScheduledExecutorService scrubber;
 
-    public static transient String PEER_DIR = "peer%d";
-    public final static transient String FILES_PATH = "peer%d/%s";
-    private static transient String DB_FILENAME = "peer%d/data.ser";
+    public static String PEER_DIR = "peer%d";
+    public final static String FILES_PATH = "peer%d/%s";
+    private static String DB_FILENAME = "peer%d/data.ser";
+    private static String LOG_FILENAME = "peer%d/data.log";
+    private static String ROTATED_LOG_FILENAME = "peer%d/data.log.old";
+    // copies of metadata that could not be read, no stored file is deleted as orphaned while one is kept
+    private static final String UNREADABLE = ".unreadable";
+    // copy of a state written before the metadata log, kept after it is converted
+    private static final String LEGACY = ".legacy";
 
-    private long capacity = Constants.DEFAULT_CAPACITY;
-    private long occupation;
+    private volatile long capacity = Constants.DEFAULT_CAPACITY;
+    private final AtomicLong occupation = new AtomicLong();
+    // bumped on every change to the occupation, so a reconciliation can tell if one happened while it walked
+    private final AtomicLong occupationChanges = new AtomicLong();
+    // space promised to backups that are still being received
+    private final AtomicLong reserved = new AtomicLong();
+    private final Set<Reservation> reservations = ConcurrentHashMap.newKeySet();
+    // files being received, only one transfer of each file runs at a time
+    private final Set<String> receiving = ConcurrentHashMap.newKeySet();
+    // last time each saved file was requested, only kept in memory
+    private final Map<String, Long> lastAccess = new ConcurrentHashMap<>();
+    // saved files removed on purpose, anti-entropy does not pull them back while they are here
+    private final Map<String, Long> tombstones = new ConcurrentHashMap<>();
+    // decayed GET count of each saved file that was requested
+    private final Map<String, Popularity> popularity = new ConcurrentHashMap<>();
 
-    private transient Peer peer;
+    // mutations hold the read lock so they can run concurrently, the snapshot holds the write lock
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private MetadataLog metadataLog;
+    private ChunkStore chunkStore;
+    private long lastSnapshot = System.currentTimeMillis();
+    // the state was converted from one written before the metadata log, the stored files still have to be
+    private boolean legacy = false;
+    // the snapshot or log records were written by an older version, they are written again on startup
+    private boolean outdated = false;
+
+    private Peer peer;
 
     public PeerInternalState(Peer peer) {
         this.peer = peer;
     }
 
     private void init() {
-        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.scheduler = Executors.newScheduledThreadPool(2);
+        this.scrubber = Executors.newSingleThreadScheduledExecutor();
     }
 
     private void startAsyncChecks() {
+        this.scheduler.scheduleWithFixedDelay(this::flush, Constants.METADATA_LOG_FLUSH_INTERVAL, Constants.METADATA_LOG_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
         this.scheduler.scheduleAtFixedRate(this::commit, 1, 5, TimeUnit.SECONDS);
+        this.scheduler.scheduleWithFixedDelay(this.chunkStore::expireParked, 60, 60, TimeUnit.SECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::expireReservations, 60, 60, TimeUnit.SECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::expireTombstones, 60, 60, TimeUnit.SECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::expirePopularity, 60, 60, TimeUnit.SECONDS);
+        this.scheduler.scheduleWithFixedDelay(this.chunkStore::compact, Constants.PACK_COMPACT_PERIOD, Constants.PACK_COMPACT_PERIOD, TimeUnit.SECONDS);
+        this.scrubber.scheduleWithFixedDelay(this::scrub, Constants.SCRUB_PERIOD, Constants.SCRUB_PERIOD, TimeUnit.SECONDS);
+        this.scheduler.scheduleWithFixedDelay(() -> this.reconcileOccupation(true),
+                Constants.OCCUPATION_RECONCILE_PERIOD, Constants.OCCUPATION_RECONCILE_PERIOD, TimeUnit.SECONDS);
     }
 
     public long getOccupation() {
-        return occupation;
+        return occupation.get();
+    }
+
+    /**
+     * Method to account for bytes that were committed to the peer's directory
+     *
+     * @param bytes Bytes written
+     */
+    public void addOccupation(long bytes) {
+        occupation.addAndGet(bytes);
+        occupationChanges.incrementAndGet();
+    }
+
+    /**
+     * Method to account for bytes that were freed from the peer's directory
+     *
+     * @param bytes Bytes freed
+     */
+    public void releaseOccupation(long bytes) {
+        occupation.accumulateAndGet(bytes, (current, freed) -> Math.max(0, current - freed));
+        occupationChanges.incrementAndGet();
     }
 
     public void setCapacity(long capacity) {
-        this.capacity = capacity;
+        this.record(() -> this.capacity = capacity, () -> MetadataLog.capacity(capacity));
+    }
+
+    public long getCapacity() {
+        return capacity;
     }
 
     public static PeerInternalState load(Peer peer) {
         PEER_DIR = String.format(PEER_DIR, peer.getGuid());
         DB_FILENAME = String.format(DB_FILENAME, peer.getGuid());
+        LOG_FILENAME = String.format(LOG_FILENAME, peer.getGuid());
+        ROTATED_LOG_FILENAME = String.format(ROTATED_LOG_FILENAME, peer.getGuid());
 
-        PeerInternalState peerInternalState = null;
+        PeerInternalState peerInternalState = new PeerInternalState(peer);
 
+        Path snapshot = Path.of(DB_FILENAME);
         try {
-            FileInputStream inputStream = new FileInputStream(DB_FILENAME);
-            ObjectInputStream objectIn = new ObjectInputStream(inputStream);
-            peerInternalState = (PeerInternalState) objectIn.readObject();
-            peerInternalState.peer = peer;
-            inputStream.close();
-            objectIn.close();
-        } catch (IOException | ClassNotFoundException e) {
-            log.info("Couldn't Load Database. Creating one now...");
+            if (!Files.exists(snapshot) || Files.size(snapshot) == 0) {
+                log.info("No database found. Creating one now...");
+            } else if (LegacySnapshot.matches(snapshot)) {
+                peerInternalState.readLegacySnapshot();
+            } else {
+                peerInternalState.readSnapshot();
+            }
+        } catch (IOException e) {
+            log.error("Could not read the database ({}), no stored file is deleted while a copy is kept as {}",
+                    e.getMessage(), DB_FILENAME + UNREADABLE);
+            keepUnreadable(snapshot);
         }
 
-        if (peerInternalState == null) {
-            peerInternalState = new PeerInternalState(peer);
-        }
+        Replayer replayer = peerInternalState.new Replayer();
+        int records = replay(Path.of(ROTATED_LOG_FILENAME), replayer);
+        records += replay(Path.of(LOG_FILENAME), replayer);
+        log.info("Replayed {} records from the metadata log", records);
 
         peerInternalState.init();
         peerInternalState.build();
 
+        if (peerInternalState.legacy || peerInternalState.outdated) {
+            try {
+                // the converted state replaces the one read, a serialized one is kept aside
+                peerInternalState.checkpoint();
+            } catch (IOException e) {
+                log.error("Could not write the converted database: {}", e.getMessage());
+            }
+        }
+
         return peerInternalState;
     }
 
+    /**
+     * Method to replay a metadata log, if any record could not be decoded a copy of the log is kept
+     *
+     * @return number of records replayed
+     */
+    private static int replay(Path path, Replayer replayer) {
+        try {
+            return MetadataLog.replay(path, replayer);
+        } catch (IOException e) {
+            log.error("Could not replay metadata log {} ({}), no stored file is deleted while a copy is kept as {}",
+                    path, e.getMessage(), path + UNREADABLE);
+            keepUnreadable(path);
+            return 0;
+        }
+    }
+
+    /**
+     * Method to keep a copy of metadata that could not be read, so it is not overwritten by the next snapshot
+     *
+     * @param path Metadata file
+     */
+    private static void keepUnreadable(Path path) {
+        try {
+            Files.copy(path, Path.of(path + UNREADABLE), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.error("Could not keep a copy of {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * @return false while a copy of metadata that could not be read is kept, files may be stored that the state
+     * does not know of
+     */
+    private boolean isComplete() {
+        return !Files.exists(Path.of(DB_FILENAME + UNREADABLE)) && !Files.exists(Path.of(LOG_FILENAME + UNREADABLE))
+                && !Files.exists(Path.of(ROTATED_LOG_FILENAME + UNREADABLE));
+    }
+
     private void build() {
         File directory = new File(PEER_DIR);
         // create dir if it does not exist
@@ -91,68 +223,791 @@ public class PeerInternalState implements Serializable {
                 return;
             }
         try {
-            new File(DB_FILENAME).createNewFile();
+            this.metadataLog = new MetadataLog(Path.of(LOG_FILENAME), Constants.METADATA_LOG_FSYNC);
+            this.chunkStore = new ChunkStore(Path.of(PEER_DIR, "chunks"), Path.of(PEER_DIR), this);
         } catch (IOException e) {
             log.info("[PIS] Could not load/create database file");
             e.printStackTrace();
             return;
         }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+
+        if (legacy) this.convertStoredFiles();
+        // the first reconciliation is done right away so the counter starts from the real usage
+        this.verifyStorage();
+        if (Constants.BACKGROUND_VERIFICATION) {
+            this.scrubber.submit((Runnable) this::scrub);
+        }
 
         log.info("Starting Async Tasks...");
         this.startAsyncChecks();
 
-        // this.updateOccupation();
         log.info("Database Loaded/Created Successfully");
     }
 
-    public void commit() {
+    /**
+     * Method to apply a change to the state and append its record to the metadata log, both happen
+     * under the checkpoint lock so a snapshot never sees one without the other
+     *
+     * @param change Change to the state
+     * @param record Record describing the change, encoded after the change is applied
+     */
+    private void record(Runnable change, Supplier<byte[]> record) {
+        checkpointLock.readLock().lock();
         try {
-            this.updateOccupation();
+            change.run();
+            if (metadataLog != null) metadataLog.append(record.get());
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Method to apply a change that is described by a number of records only known once it is applied
+     *
+     * @param change Change to the state, returning the records describing it
+     */
+    private void record(Supplier<List<byte[]>> change) {
+        checkpointLock.readLock().lock();
+        try {
+            List<byte[]> records = change.get();
+            if (metadataLog != null) records.forEach(metadataLog::append);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Method to write the pending records to the metadata log (group commit)
+     */
+    public void flush() {
+        if (metadataLog == null) return;
+        try {
+            metadataLog.flush();
         } catch (IOException e) {
-            log.error("Could not calculate occupation: {}", e.getMessage());
+            log.error("Could not flush metadata log: {}", e.getMessage());
         }
+    }
+
+    /**
+     * Method to write a new snapshot when the metadata log grew too large or the last one is too old.
+     * Nothing is written if nothing changed since the last snapshot.
+     */
+    public void commit() {
+        if (metadataLog == null || metadataLog.isEmpty()) return;
+
+        boolean logTooLarge = metadataLog.size() > Constants.METADATA_LOG_COMPACT_SIZE;
+        boolean snapshotTooOld = System.currentTimeMillis() - lastSnapshot > Constants.METADATA_SNAPSHOT_PERIOD * 1000;
+        if (!logTooLarge && !snapshotTooOld) return;
 
         try {
-            FileOutputStream fileOut = new FileOutputStream(DB_FILENAME);
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-            out.writeObject(this);
-            out.flush();
-            out.close();
-            fileOut.close();
+            this.checkpoint();
         } catch (IOException i) {
             log.error("Could not commit database: {}", i.getMessage());
         }
     }
 
+    /**
+     * Method to write a snapshot and compact the metadata log. The log is rotated and the state copied while
+     * mutations are blocked, then the copy is written without holding the lock. The rotated log is only
+     * deleted after the snapshot is safely on disk.
+     *
+     * @throws IOException on error writing the snapshot
+     */
+    private void checkpoint() throws IOException {
+        HashMap<String, PeerFile> sent = new HashMap<>();
+        HashMap<String, PeerFile> saved = new HashMap<>();
+        long capacity;
+
+        checkpointLock.writeLock().lock();
+        try {
+            metadataLog.rotate(Path.of(ROTATED_LOG_FILENAME));
+            sentFilesMap.forEach((filename, file) -> sent.put(filename, new PeerFile(file)));
+            savedFilesMap.forEach((fileId, file) -> saved.put(fileId, new PeerFile(file)));
+            capacity = this.capacity;
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+
+        Path snapshot = Path.of(DB_FILENAME);
+        Path temporary = Path.of(DB_FILENAME + ".tmp");
+        MetadataSnapshot.write(temporary, capacity, sent, saved);
+        Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(Path.of(ROTATED_LOG_FILENAME));
+
+        lastSnapshot = System.currentTimeMillis();
+        log.debug("Snapshot written with {} sent and {} saved files", sent.size(), saved.size());
+    }
+
+    /**
+     * Method to read a state written by Java serialization before the metadata log. It is converted on startup,
+     * and the serialized file is kept aside.
+     *
+     * @throws IOException on error reading the state
+     */
+    private void readLegacySnapshot() throws IOException {
+        final long started = System.currentTimeMillis();
+        peer.backend.legacy.PeerInternalState state = LegacySnapshot.read(Path.of(DB_FILENAME));
+        state.getSentFilesMap().forEach((filename, file) -> sentFilesMap.put(filename, convert(file)));
+        state.getSavedFilesMap().forEach((fileId, file) -> savedFilesMap.put(fileId, convert(file)));
+        this.capacity = state.getCapacity();
+        sentIds.clear();
+        sentFilesMap.forEach((filename, file) -> sentIds.put(file.getId(), filename));
+        Files.copy(Path.of(DB_FILENAME), Path.of(DB_FILENAME + LEGACY), StandardCopyOption.REPLACE_EXISTING);
+        this.legacy = true;
+        log.info("Legacy database converted with {} sent and {} saved files in {}ms",
+                sentFilesMap.size(), savedFilesMap.size(), System.currentTimeMillis() - started);
+    }
+
+    private static PeerFile convert(peer.backend.legacy.PeerFile legacy) {
+        ChordReference owner = legacy.getOwner() == null ? null : ChordReference.intern(legacy.getOwner().toReference());
+        PeerFile file = new PeerFile(legacy.getKey(), legacy.getId(), owner, legacy.getSize(), legacy.getReplicationDegree());
+        legacy.getKeys().forEach(file::addKey);
+        return file;
+    }
+
+    /**
+     * Method to move the saved files of a converted state into the chunk store. They were stored whole on the
+     * peer's directory, where their manifests are now kept.
+     */
+    private void convertStoredFiles() {
+        int converted = 0;
+        for (PeerFile file : savedFilesMap.values()) {
+            Path path = Path.of(PEER_DIR, file.getId());
+            Path whole = Path.of(PEER_DIR, file.getId() + LEGACY);
+            try {
+                if (Files.isRegularFile(path) && Files.size(path) == file.getSize()) {
+                    Files.move(path, whole, StandardCopyOption.REPLACE_EXISTING);
+                }
+                if (!Files.exists(whole)) continue;
+                chunkStore.ingest(file.getId(), whole);
+                Files.delete(whole);
+                converted++;
+            } catch (IOException e) {
+                log.error("Could not convert stored file {}: {}", file.getId(), e.getMessage());
+            }
+        }
+        log.info("Converted {} stored files to chunks", converted);
+    }
+
+    private void readSnapshot() throws IOException {
+        final long started = System.currentTimeMillis();
+        this.outdated = MetadataSnapshot.version(Path.of(DB_FILENAME)) < MetadataSnapshot.VERSION;
+        this.capacity = MetadataSnapshot.read(Path.of(DB_FILENAME), this.sentFilesMap, this.savedFilesMap);
+        sentIds.clear();
+        sentFilesMap.forEach((filename, file) -> sentIds.put(file.getId(), filename));
+        log.info("Snapshot loaded with {} sent and {} saved files in {}ms",
+                sentFilesMap.size(), savedFilesMap.size(), System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Method to reconcile the saved files with the files on the peer's directory. The chunk references are
+     * rebuilt from the manifests of the saved files, checked in parallel against their sizes and chunks. Entries
+     * whose manifest or chunks are missing, or whose size differs, are dropped and the owner is told with a
+     * REMOVED so it can find another peer. Files and chunks without an entry cannot be served, so they are
+     * deleted, unless some metadata could not be read and the entries may be missing. The occupation is computed
+     * on the same pass.
+     */
+    private void verifyStorage() {
+        final long started = System.currentTimeMillis();
+
+        Set<String> metadataFiles = Set.of(Path.of(DB_FILENAME).getFileName().toString(),
+                Path.of(DB_FILENAME + ".tmp").getFileName().toString(),
+                Path.of(DB_FILENAME + UNREADABLE).getFileName().toString(),
+                Path.of(DB_FILENAME + LEGACY).getFileName().toString(),
+                Path.of(LOG_FILENAME).getFileName().toString(),
+                Path.of(LOG_FILENAME + UNREADABLE).getFileName().toString(),
+                Path.of(ROTATED_LOG_FILENAME).getFileName().toString(),
+                Path.of(ROTATED_LOG_FILENAME + UNREADABLE).getFileName().toString());
+        boolean sweep = this.isComplete();
+        if (!sweep) log.warn("Metadata could not be read, files without an entry are kept");
+
+        List<PeerFile> broken = Collections.synchronizedList(new ArrayList<>());
+        long total;
+        long orphaned = 0;
+        try {
+            total = chunkStore.rebuild(savedFilesMap, broken, sweep);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(Path.of(PEER_DIR))) {
+                for (Path path : stream) {
+                    if (!Files.isRegularFile(path)) continue;
+                    String filename = path.getFileName().toString();
+                    if (!sweep || metadataFiles.contains(filename) || filename.startsWith("restored_") || savedFilesMap.containsKey(filename)) {
+                        total += Files.size(path);
+                    } else {
+                        Files.deleteIfExists(path);
+                        orphaned++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Could not verify the peer's directory: {}", e.getMessage());
+            this.reconcileOccupation(false);
+            return;
+        }
+        this.occupation.set(total);
+
+        for (PeerFile file : broken) {
+            try {
+                // chunks were not referenced for broken files, only the manifest is left
+                chunkStore.forget(file.getId());
+            } catch (IOException e) {
+                log.error("Could not delete damaged file {}: {}", file.getId(), e.getMessage());
+            }
+            this.removeSavedFile(file.getId());
+            peer.PROTOCOL_EXECUTOR.submit(() -> peer.sendRemoved(file.getOwner(), file));
+        }
+
+        log.info("Verified {} saved files in {}ms: {} damaged, {} orphaned files removed",
+                savedFilesMap.size() + broken.size(), System.currentTimeMillis() - started, broken.size(), orphaned);
+    }
+
+    /**
+     * Method to read every saved file and check each of its chunks against its hash, and its manifest against
+     * the checksum recorded when it was received. Damaged replicas are dropped and their owners notified with
+     * REMOVED, so the file is replicated again. Reads are limited to {@link Constants#SCRUB_RATE} bytes per second
+     * so this can run in the background while the peer is serving requests.
+     */
+    private void scrub() {
+        long started = System.currentTimeMillis();
+        int damaged = 0;
+        for (PeerFile file : savedFilesMap.values()) {
+            if (!this.scrub(file)) damaged++;
+            try {
+                Thread.sleep(file.getSize() * 1000 / Constants.SCRUB_RATE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        log.info("Scrubbed saved files in {}ms: {} damaged", System.currentTimeMillis() - started, damaged);
+    }
+
+    /**
+     * Method to check a single saved file, dropping it and notifying its owner if it is damaged
+     *
+     * @param file Saved File
+     * @return true if the file is intact
+     */
+    private boolean scrub(PeerFile file) {
+        boolean intact = chunkStore.verify(file.getId());
+        if (intact && file.getChecksum() != null && !file.getChecksum().equals(chunkStore.checksum(file.getId()))) {
+            log.error("Manifest of {} does not match its checksum", file.getId());
+            intact = false;
+        }
+        if (!intact && this.removeSavedFile(file.getId()) != null) {
+            try {
+                chunkStore.delete(file.getId());
+            } catch (IOException e) {
+                log.error("Could not delete damaged file {}: {}", file.getId(), e.getMessage());
+            }
+            peer.PROTOCOL_EXECUTOR.submit(() -> peer.sendRemoved(file.getOwner(), file));
+        }
+        return intact;
+    }
+
+    /**
+     * Method called when a saved file is found to be damaged while it is being read, the file is checked
+     * in the background
+     *
+     * @param fileId Saved File's ID
+     */
+    void damaged(String fileId) {
+        PeerFile file = savedFilesMap.get(fileId);
+        if (file != null) scrubber.submit(() -> this.scrub(file));
+    }
+
+    /**
+     * Replays the metadata log records directly over the maps
+     */
+    private class Replayer implements MetadataLog.Handler {
+        @Override
+        public void addSent(String filename, PeerFile file) {
+            putSentFile(filename, file);
+        }
+
+        @Override
+        public void removeSent(String filename) {
+            takeSentFile(filename);
+        }
+
+        @Override
+        public void addSaved(PeerFile file) {
+            savedFilesMap.put(file.getId(), file);
+        }
+
+        @Override
+        public void removeSaved(String fileId) {
+            savedFilesMap.remove(fileId);
+        }
+
+        @Override
+        public void addKey(String fileId, int key) {
+            PeerFile file = getSentFileById(fileId);
+            if (file != null) file.addKey(key);
+        }
+
+        @Override
+        public void removeKey(String fileId, int key) {
+            PeerFile file = getSentFileById(fileId);
+            if (file != null) file.getKeys().remove(key);
+        }
+
+        @Override
+        public void capacity(long capacity) {
+            PeerInternalState.this.capacity = capacity;
+        }
+
+        @Override
+        public void addFragment(String fileId, int index, int key) {
+            PeerFile file = getSentFileById(fileId);
+            if (file != null) file.getFragments().put(index, key);
+        }
+
+        @Override
+        public void removeFragment(String fileId, int index) {
+            PeerFile file = getSentFileById(fileId);
+            if (file != null) file.getFragments().remove(index);
+        }
+
+        @Override
+        public void outdated(int format) {
+            // the records are written again in the current format by the snapshot taken on startup
+            outdated = true;
+        }
+    }
+
     public boolean hasSpace(double size) {
-        return size < (this.capacity - this.occupation);
+        return size < (this.capacity - this.occupation.get() - this.reserved.get());
     }
 
-    public void updateOccupation() throws IOException {
-        occupation = Files.walk(Path.of(PEER_DIR))
-                .filter(p -> p.toFile().isFile())
-                .mapToLong(p -> p.toFile().length())
-                .sum();
+    /**
+     * Space reserved for a file being received. The bytes written while it is received are committed to it,
+     * which moves them from the reserved space to the occupation, and the rest is released when the transfer
+     * ends, on success or failure.
+     */
+    public class Reservation {
+        private final long bytes;
+        private final AtomicLong left;
+        private final long created = System.currentTimeMillis();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+            this.left = new AtomicLong(bytes);
+        }
+
+        /**
+         * Method to account for bytes written under this reservation. The bytes are added to the occupation
+         * before they are taken from the reserved space, so the free space is never seen larger than it is.
+         * Bytes written beyond the reservation only add to the occupation.
+         *
+         * @param written Bytes written
+         */
+        public void commit(long written) {
+            long moved = Math.min(written, left.getAndUpdate(current -> Math.max(0, current - written)));
+            addOccupation(written);
+            if (moved > 0) reserved.addAndGet(-moved);
+        }
+
+        /**
+         * Method to release the reserved space that was not committed, only the first call has any effect
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                reserved.addAndGet(-left.getAndSet(0));
+                reservations.remove(this);
+            }
+        }
     }
 
-    public void addSentFile(String filename, PeerFile file) {
-        if (this.sentFilesMap.containsKey(filename)) {
-            for (Integer key : this.sentFilesMap.get(filename).getKeys()) {
-                file.addKey(key);
+    /**
+     * Method to reserve space for a file that is about to be received. The check and the reservation are a
+     * single compare and set, so concurrent backups can never reserve more than the free space together.
+     *
+     * @param bytes Bytes to be reserved
+     * @return the reservation, or null if there is not enough free space
+     */
+    public Reservation reserve(long bytes) {
+        while (true) {
+            long current = reserved.get();
+            if (occupation.get() + current + bytes > capacity) return null;
+            if (reserved.compareAndSet(current, current + bytes)) break;
+        }
+        Reservation reservation = new Reservation(bytes);
+        reservations.add(reservation);
+        return reservation;
+    }
+
+    /**
+     * Method to claim a file that is about to be received, so concurrent transfers of the same file do not
+     * both store it. The claim is taken before the space is reserved and dropped once the transfer ends.
+     *
+     * @param fileId File's ID
+     * @return true if no other transfer of the file is running
+     */
+    public boolean claim(String fileId) {
+        return receiving.add(fileId);
+    }
+
+    public void unclaim(String fileId) {
+        receiving.remove(fileId);
+    }
+
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    /**
+     * Method to release the reservations of transfers that did not finish in time
+     */
+    private void expireReservations() {
+        long deadline = System.currentTimeMillis() - Constants.RESERVATION_TIMEOUT * 1000;
+        for (Reservation reservation : reservations) {
+            if (reservation.created < deadline) {
+                log.info("Releasing {} reserved for a transfer that did not finish", Utils.prettySize(reservation.bytes));
+                reservation.release();
+            }
+        }
+    }
+
+    /**
+     * Method to reconcile the occupation counter with the real usage of the peer's directory. The counter is
+     * kept up to date by the operations that write or delete files, this walk only catches drift. If the
+     * counter changes while the directory is being walked the result is discarded and the next run retries.
+     * The drift is added to the counter instead of replacing it, so a change made after the walk is kept.
+     *
+     * @param throttled if true the walk pauses every few files so it does not compete with the protocols for disk
+     */
+    public void reconcileOccupation(boolean throttled) {
+        long changes = occupationChanges.get();
+        long before = occupation.get();
+        long total;
+        try {
+            total = this.directorySize(Path.of(PEER_DIR), throttled, new int[]{0});
+        } catch (IOException e) {
+            log.error("Could not calculate occupation: {}", e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (occupationChanges.get() != changes) {
+            log.debug("Occupation changed during reconciliation, will retry on next run");
+            return;
+        }
+        if (before != total) {
+            occupation.addAndGet(total - before);
+            log.info("Occupation drift corrected: {} -> {}", Utils.prettySize(before), Utils.prettySize(total));
+        }
+    }
+
+    /**
+     * @return true for the files of writes and transfers still in progress, they are counted once committed
+     */
+    private static boolean isTemporary(Path path) {
+        String filename = path.getFileName().toString();
+        return filename.contains(".tmp") || filename.endsWith(".part") || filename.endsWith(".part.state");
+    }
+
+    private long directorySize(Path directory, boolean throttled, int[] visited) throws IOException, InterruptedException {
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path)) {
+                    total += directorySize(path, throttled, visited);
+                } else if (!isTemporary(path)) {
+                    try {
+                        total += Files.size(path);
+                    } catch (NoSuchFileException e) {
+                        // deleted while walking, the counter was already updated by whoever deleted it
+                    }
+                }
+                if (throttled && ++visited[0] % Constants.OCCUPATION_RECONCILE_BATCH == 0) {
+                    Thread.sleep(Constants.OCCUPATION_RECONCILE_PAUSE);
+                }
             }
         }
-        this.sentFilesMap.put(filename, file);
+        return total;
+    }
+
+    public void addSentFile(String filename, PeerFile file) {
+        this.record(() -> this.sentFilesMap.compute(filename, (name, previous) -> {
+            // the copies of a previous version of the file are stored under its old ID, they are not merged
+            if (previous != null && previous != file && previous.getId().equals(file.getId())) {
+                for (Integer key : previous.getKeys()) {
+                    file.addKey(key);
+                }
+                if (previous.getDataFragments() == file.getDataFragments() && previous.getParityFragments() == file.getParityFragments()) {
+                    previous.getFragments().forEach(file.getFragments()::putIfAbsent);
+                }
+            }
+            return this.indexSentFile(name, previous, file);
+        }), () -> MetadataLog.addSent(filename, file));
+    }
+
+    public PeerFile removeSentFile(String filename) {
+        PeerFile[] removed = new PeerFile[1];
+        this.record(() -> removed[0] = this.takeSentFile(filename), () -> MetadataLog.removeSent(filename));
+        return removed[0];
+    }
+
+    private void putSentFile(String filename, PeerFile file) {
+        this.sentFilesMap.compute(filename, (name, previous) -> this.indexSentFile(name, previous, file));
+    }
+
+    private PeerFile takeSentFile(String filename) {
+        PeerFile[] removed = new PeerFile[1];
+        this.sentFilesMap.computeIfPresent(filename, (name, previous) -> {
+            removed[0] = previous;
+            return this.indexSentFile(name, previous, null);
+        });
+        return removed[0];
+    }
+
+    /**
+     * Method to update the fileId index, called while holding the entry of the filename on sentFilesMap
+     *
+     * @return the new entry
+     */
+    private PeerFile indexSentFile(String filename, PeerFile previous, PeerFile file) {
+        if (previous != null) sentIds.remove(previous.getId(), filename);
+        if (file != null) sentIds.put(file.getId(), filename);
+        return file;
+    }
+
+    /**
+     * @param filename Sent File's filename
+     * @return the sent file, or null if it was not backed up
+     */
+    public PeerFile getSentFile(String filename) {
+        return sentFilesMap.get(filename);
+    }
+
+    /**
+     * @param fileId Sent File's ID
+     * @return the filename the file was backed up from, or null if there is no such file
+     */
+    public String getSentFilename(String fileId) {
+        return sentIds.get(fileId);
+    }
+
+    /**
+     * @param fileId Sent File's ID
+     * @return the sent file, or null if there is no such file
+     */
+    public PeerFile getSentFileById(String fileId) {
+        String filename = sentIds.get(fileId);
+        return filename == null ? null : sentFilesMap.get(filename);
+    }
+
+    /**
+     * Method to resolve the filename of a sent file from its filename or its ID
+     *
+     * @param file Sent File's filename or ID
+     * @return the filename, or null if there is no such file
+     */
+    public String resolveSentFile(String file) {
+        return sentFilesMap.containsKey(file) ? file : sentIds.get(file);
     }
 
     public void addSavedFile(PeerFile file) {
-        this.savedFilesMap.put(file.getId(), file);
+        this.record(() -> this.savedFilesMap.put(file.getId(), file), () -> MetadataLog.addSaved(file));
+        this.touch(file.getId());
+    }
+
+    public PeerFile removeSavedFile(String fileId) {
+        PeerFile[] removed = new PeerFile[1];
+        this.record(() -> removed[0] = this.savedFilesMap.remove(fileId), () -> MetadataLog.removeSaved(fileId));
+        lastAccess.remove(fileId);
+        popularity.remove(fileId);
+        return removed[0];
+    }
+
+    /**
+     * Method to turn a saved file into a soft replica or back into a regular one
+     *
+     * @param file Saved File
+     * @param soft true if the file is a soft replica
+     */
+    public void setSoft(PeerFile file, boolean soft) {
+        this.record(() -> file.setSoft(soft), () -> MetadataLog.addSaved(file));
+    }
+
+    /**
+     * Method to register that a saved file was requested
+     *
+     * @param fileId Saved File's ID
+     */
+    public void touch(String fileId) {
+        lastAccess.put(fileId, System.currentTimeMillis());
+    }
+
+    /**
+     * Method to count a GET for a saved file, the count fades by half every
+     * {@link Constants#POPULARITY_HALF_LIFE} seconds
+     *
+     * @param fileId Saved File's ID
+     */
+    public void countRequest(String fileId) {
+        popularity.computeIfAbsent(fileId, id -> new Popularity()).increment(System.currentTimeMillis());
+    }
+
+    /**
+     * @param fileId Saved File's ID
+     * @return the decayed GET count of the file
+     */
+    public double getPopularity(String fileId) {
+        Popularity count = popularity.get(fileId);
+        return count == null ? 0 : count.value(System.currentTimeMillis());
+    }
+
+    private void expirePopularity() {
+        long now = System.currentTimeMillis();
+        popularity.values().removeIf(count -> count.value(now) < 0.5);
+    }
+
+    /**
+     * Exponentially decayed counter
+     */
+    private static class Popularity {
+        private double value = 0;
+        private long updated = 0;
+
+        synchronized double value(long now) {
+            return value * Math.pow(0.5, (now - updated) / (Constants.POPULARITY_HALF_LIFE * 1000.0));
+        }
+
+        synchronized void increment(long now) {
+            value = value(now) + 1;
+            updated = now;
+        }
+    }
+
+    /**
+     * Method to register that a saved file was deleted or reclaimed, so its neighbours do not give it back
+     * for {@link Constants#TOMBSTONE_TTL} seconds. Files lost to damage are not tombstoned, they are repaired.
+     *
+     * @param fileId Removed File's ID
+     */
+    public void tombstone(String fileId) {
+        tombstones.put(fileId, System.currentTimeMillis());
+    }
+
+    /**
+     * @param fileId File's ID
+     * @return true if the file was deleted or reclaimed recently
+     */
+    public boolean isTombstoned(String fileId) {
+        Long removed = tombstones.get(fileId);
+        return removed != null && System.currentTimeMillis() - removed < Constants.TOMBSTONE_TTL * 1000;
+    }
+
+    private void expireTombstones() {
+        long now = System.currentTimeMillis();
+        tombstones.values().removeIf(removed -> now - removed >= Constants.TOMBSTONE_TTL * 1000);
+    }
+
+    /**
+     * @return the last time each saved file was requested
+     */
+    public Map<String, Long> getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Method to register that a backed up file is now served by the peer responsible for key
+     *
+     * @param file Backed up File
+     * @param key  Key associated with the peer serving it
+     */
+    public void addKey(PeerFile file, int key) {
+        this.record(() -> file.addKey(key), () -> MetadataLog.addKey(file.getId(), key));
+    }
+
+    /**
+     * Method to register that a backed up file is no longer served by the peer responsible for key
+     *
+     * @param file Backed up File
+     * @param key  Key associated with the peer that stopped serving it
+     */
+    public void removeKey(PeerFile file, int key) {
+        this.record(() -> file.getKeys().remove(key), () -> MetadataLog.removeKey(file.getId(), key));
+    }
+
+    /**
+     * Method to register that a fragment of an erasure coded file is now served by the peer responsible for key
+     *
+     * @param file  Backed up File
+     * @param index Fragment's Index
+     * @param key   Key associated with the peer serving it
+     */
+    public void addFragment(PeerFile file, int index, int key) {
+        this.record(() -> file.getFragments().put(index, key), () -> MetadataLog.addFragment(file.getId(), index, key));
+    }
+
+    /**
+     * Method to register that a fragment of an erasure coded file is no longer served
+     *
+     * @param file  Backed up File
+     * @param index Fragment's Index
+     */
+    public void removeFragment(PeerFile file, int index) {
+        this.record(() -> file.getFragments().remove(index), () -> MetadataLog.removeFragment(file.getId(), index));
+    }
+
+    /**
+     * Method to register that a copy of a backed up file was deleted by the peer storing it, the sent file is
+     * forgotten once no peer stores any copy. The checkpoint lock is taken before the file's monitor, like every
+     * other change to a file.
+     *
+     * @param filename Sent file's name
+     * @param file     Backed up File
+     * @param key      Key associated with the peer that deleted its copy
+     * @param fragment Fragment's Index, or -1 for a whole replica
+     * @return true if the sent file was forgotten
+     */
+    public boolean forgetCopy(String filename, PeerFile file, int key, int fragment) {
+        boolean[] forgotten = new boolean[1];
+        this.record(() -> {
+            boolean[] removed = new boolean[1];
+            this.sentFilesMap.computeIfPresent(filename, (name, previous) -> {
+                if (previous != file) return previous;
+                synchronized (file) {
+                    removeCopy(file, key, fragment);
+                    removed[0] = true;
+                    if (!file.getKeys().isEmpty() || !file.getFragments().isEmpty()) return previous;
+                }
+                forgotten[0] = true;
+                return this.indexSentFile(name, previous, null);
+            });
+            if (!removed[0]) removeCopy(file, key, fragment);
+
+            List<byte[]> records = new ArrayList<>();
+            records.add(fragment < 0 ? MetadataLog.removeKey(file.getId(), key) : MetadataLog.removeFragment(file.getId(), fragment));
+            if (forgotten[0]) records.add(MetadataLog.removeSent(filename));
+            return records;
+        });
+        return forgotten[0];
+    }
+
+    private static void removeCopy(PeerFile file, int key, int fragment) {
+        if (fragment < 0) {
+            file.getKeys().remove(key);
+        } else {
+            file.getFragments().remove(fragment);
+        }
+    }
+
+    public ChunkStore getChunkStore() {
+        return chunkStore;
     }
 
     public ConcurrentHashMap<String, PeerFile> getSentFilesMap() {
         return sentFilesMap;
     }
 
-    public ConcurrentHashMap<String, PeerFile> getSavedFilesMap() {
+    public Map<String, PeerFile> getSavedFilesMap() {
         return savedFilesMap;
     }
 
@@ -172,7 +1027,9 @@ public class PeerInternalState implements Serializable {
         }
         ret.append("----- Storage -----").append("\n");
         ret.append(String.format("Capacity: %s\n", Utils.prettySize(this.capacity)));
-        ret.append(String.format("Occupation: %s\n", Utils.prettySize(this.occupation)));
+        ret.append(String.format("Occupation (committed): %s\n", Utils.prettySize(this.occupation.get())));
+        ret.append(String.format("Reserved: %s (%d transfers)\n", Utils.prettySize(this.reserved.get()), this.reservations.size()));
+        ret.append(this.chunkStore.cacheStatistics()).append("\n");
         ret.append("-------------- END OF REPORT --------------").append("\n");
 
         return ret.toString();
@@ -0,0 +1,245 @@
+package peer.backend;
+
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8). A block is split into <code>k</code> data shards and
+ * <code>m</code> parity shards are computed from them, any <code>k</code> of the <code>k + m</code> shards
+ * are enough to rebuild the others.
+ * <p>
+ * The coding matrix is a Vandermonde matrix multiplied by the inverse of its top square, so the first
+ * <code>k</code> rows are the identity (data shards are stored as they are) and every square sub-matrix
+ * made of <code>k</code> rows is invertible.
+ */
+public class ReedSolomon {
+    private static final int POLYNOMIAL = 0x11D;
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= POLYNOMIAL;
+        }
+        // doubled so the sum of two logarithms does not need to be reduced
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix;
+
+    /**
+     * @param dataShards   Number of data shards (k)
+     * @param parityShards Number of parity shards (m)
+     */
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException(String.format("Invalid Reed-Solomon geometry: %d+%d", dataShards, parityShards));
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        int total = dataShards + parityShards;
+        byte[][] vandermonde = new byte[total][dataShards];
+        for (int r = 0; r < total; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                vandermonde[r][c] = power((byte) r, c);
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    public int getTotalShards() {
+        return dataShards + parityShards;
+    }
+
+    /**
+     * Method to compute the parity shards from the data shards
+     *
+     * @param shards Shards, the first k are read and the last m are written
+     * @param offset Offset on every shard
+     * @param length Number of bytes to encode on every shard
+     */
+    public void encodeParity(byte[][] shards, int offset, int length) {
+        byte[][] rows = new byte[parityShards][];
+        byte[][] outputs = new byte[parityShards][];
+        for (int i = 0; i < parityShards; i++) {
+            rows[i] = matrix[dataShards + i];
+            outputs[i] = shards[dataShards + i];
+        }
+        byte[][] inputs = new byte[dataShards][];
+        System.arraycopy(shards, 0, inputs, 0, dataShards);
+        code(rows, inputs, outputs, offset, length);
+    }
+
+    /**
+     * Method to rebuild the missing shards from the present ones, at least k shards must be present
+     *
+     * @param shards  Shards, missing shards are written
+     * @param present Which shards are present
+     * @param offset  Offset on every shard
+     * @param length  Number of bytes to rebuild on every shard
+     */
+    public void reconstruct(byte[][] shards, boolean[] present, int offset, int length) {
+        int total = getTotalShards();
+        byte[][] subMatrix = new byte[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        int found = 0;
+        for (int i = 0; i < total && found < dataShards; i++) {
+            if (present[i]) {
+                subMatrix[found] = matrix[i];
+                inputs[found] = shards[i];
+                found++;
+            }
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException(String.format("Only %d shards present, %d are needed", found, dataShards));
+        }
+
+        // the inverse maps the present shards back to the data shards
+        byte[][] decode = invert(subMatrix);
+
+        int missingData = 0;
+        for (int i = 0; i < dataShards; i++) {
+            if (!present[i]) missingData++;
+        }
+        if (missingData > 0) {
+            byte[][] rows = new byte[missingData][];
+            byte[][] outputs = new byte[missingData][];
+            int next = 0;
+            for (int i = 0; i < dataShards; i++) {
+                if (!present[i]) {
+                    rows[next] = decode[i];
+                    outputs[next++] = shards[i];
+                }
+            }
+            code(rows, inputs, outputs, offset, length);
+        }
+
+        int missingParity = 0;
+        for (int i = dataShards; i < total; i++) {
+            if (!present[i]) missingParity++;
+        }
+        if (missingParity > 0) {
+            byte[][] rows = new byte[missingParity][];
+            byte[][] outputs = new byte[missingParity][];
+            int next = 0;
+            for (int i = dataShards; i < total; i++) {
+                if (!present[i]) {
+                    rows[next] = matrix[i];
+                    outputs[next++] = shards[i];
+                }
+            }
+            byte[][] data = new byte[dataShards][];
+            System.arraycopy(shards, 0, data, 0, dataShards);
+            code(rows, data, outputs, offset, length);
+        }
+    }
+
+    /**
+     * Method to multiply the coding rows by the input shards, one output shard per row
+     */
+    private static void code(byte[][] rows, byte[][] inputs, byte[][] outputs, int offset, int length) {
+        for (int o = 0; o < outputs.length; o++) {
+            byte[] output = outputs[o];
+            byte[] row = rows[o];
+            Arrays.fill(output, offset, offset + length, (byte) 0);
+            for (int i = 0; i < inputs.length; i++) {
+                int coefficient = row[i] & 0xFF;
+                if (coefficient == 0) continue;
+                byte[] input = inputs[i];
+                int logCoefficient = LOG[coefficient];
+                for (int b = offset; b < offset + length; b++) {
+                    int value = input[b] & 0xFF;
+                    if (value != 0) output[b] ^= EXP[logCoefficient + LOG[value]];
+                }
+            }
+        }
+    }
+
+    private static byte multiply(byte a, byte b) {
+        if (a == 0 || b == 0) return 0;
+        return EXP[LOG[a & 0xFF] + LOG[b & 0xFF]];
+    }
+
+    private static byte divide(byte a, byte b) {
+        if (b == 0) throw new ArithmeticException("Division by zero");
+        if (a == 0) return 0;
+        return EXP[LOG[a & 0xFF] - LOG[b & 0xFF] + 255];
+    }
+
+    private static byte power(byte a, int n) {
+        if (n == 0) return 1;
+        if (a == 0) return 0;
+        return EXP[(LOG[a & 0xFF] * n) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] result = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                byte value = 0;
+                for (int i = 0; i < b.length; i++) {
+                    value ^= multiply(a[r][i], b[i][c]);
+                }
+                result[r][c] = value;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method to invert a square matrix with Gauss-Jordan elimination
+     */
+    private static byte[][] invert(byte[][] matrix) {
+        int size = matrix.length;
+        byte[][] work = new byte[size][size * 2];
+        for (int r = 0; r < size; r++) {
+            System.arraycopy(matrix[r], 0, work[r], 0, size);
+            work[r][size + r] = 1;
+        }
+
+        for (int c = 0; c < size; c++) {
+            int pivot = c;
+            while (pivot < size && work[pivot][c] == 0) pivot++;
+            if (pivot == size) throw new IllegalArgumentException("Matrix is singular");
+            byte[] swap = work[c];
+            work[c] = work[pivot];
+            work[pivot] = swap;
+
+            byte scale = work[c][c];
+            for (int i = 0; i < size * 2; i++) {
+                work[c][i] = divide(work[c][i], scale);
+            }
+            for (int r = 0; r < size; r++) {
+                if (r == c || work[r][c] == 0) continue;
+                byte factor = work[r][c];
+                for (int i = 0; i < size * 2; i++) {
+                    work[r][i] ^= multiply(factor, work[c][i]);
+                }
+            }
+        }
+
+        byte[][] inverse = new byte[size][size];
+        for (int r = 0; r < size; r++) {
+            System.arraycopy(work[r], size, inverse[r], 0, size);
+        }
+        return inverse;
+    }
+}
@@ -0,0 +1,130 @@
+package peer.backend;
+
+import peer.Constants;
+import peer.chord.ChordReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latency and throughput measured on the transfers from each peer, used to choose the replicas a restore
+ * fetches from and when to hedge a request that is late.
+ * <p>
+ * Each peer keeps a moving average of the time until its first byte arrives and of the rate it streams at
+ * afterwards. The first byte latencies of every peer are also kept on a window of recent samples, a request is
+ * late when it is slower than {@link Constants#HEDGE_PERCENTILE} of them.
+ */
+public class ReplicaStats {
+    private static final double WEIGHT = 0.25; // weight of a new sample on the moving averages
+
+    private final Map<Integer, Stats> peers = new HashMap<>();
+    private final long[] samples = new long[Constants.HEDGE_SAMPLES];
+    private int count = 0;
+    private int next = 0;
+
+    private static class Stats {
+        private double firstByte = -1; // milliseconds
+        private double rate = -1; // bytes per millisecond
+        private long failed = 0;
+    }
+
+    /**
+     * Method to register the time a peer took to start sending
+     *
+     * @param peer   Peer
+     * @param millis Time until the first byte arrived, or until the request was given up on
+     */
+    public synchronized void started(ChordReference peer, long millis) {
+        Stats stats = peers.computeIfAbsent(peer.getGuid(), guid -> new Stats());
+        stats.firstByte = stats.firstByte < 0 ? millis : stats.firstByte + WEIGHT * (millis - stats.firstByte);
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(samples.length, count + 1);
+    }
+
+    /**
+     * Method to register a transfer from a peer
+     *
+     * @param peer   Peer
+     * @param bytes  Bytes received
+     * @param millis Time from the first to the last byte
+     */
+    public synchronized void streamed(ChordReference peer, long bytes, long millis) {
+        Stats stats = peers.computeIfAbsent(peer.getGuid(), guid -> new Stats());
+        double rate = (double) bytes / Math.max(1, millis);
+        stats.rate = stats.rate < 0 ? rate : stats.rate + WEIGHT * (rate - stats.rate);
+        stats.failed = 0;
+    }
+
+    /**
+     * Method to register that a peer could not serve a request
+     *
+     * @param peer Peer
+     */
+    public synchronized void failed(ChordReference peer) {
+        peers.computeIfAbsent(peer.getGuid(), guid -> new Stats()).failed = System.currentTimeMillis();
+    }
+
+    /**
+     * @param peer    Peer
+     * @param bytes   Bytes to be sent
+     * @param started if true the peer is already sending, its first byte latency is not counted
+     * @return the milliseconds the peer is expected to take to send the bytes, peers without samples are
+     * expected to be as good as the typical peer
+     */
+    public synchronized double expected(ChordReference peer, long bytes, boolean started) {
+        Stats stats = peers.get(peer.getGuid());
+        double firstByte = 0;
+        if (!started) firstByte = stats == null || stats.firstByte < 0 ? (count == 0 ? 0 : this.percentile(0.5)) : stats.firstByte;
+        double rate = stats == null || stats.rate <= 0 ? this.typicalRate() : stats.rate;
+        return firstByte + bytes / rate;
+    }
+
+    private double typicalRate() {
+        return peers.values().stream().filter(stats -> stats.rate > 0).mapToDouble(stats -> stats.rate).average().orElse(1);
+    }
+
+    /**
+     * Method to rank peers by the time they are expected to take to send some bytes, peers that failed in the
+     * last {@link Constants#REPLICA_FAILURE_PENALTY} seconds come last
+     *
+     * @param replicas Peers serving the bytes
+     * @param bytes    Bytes to be sent
+     * @return the peers, fastest first
+     */
+    public synchronized List<ChordReference> rank(Collection<ChordReference> replicas, long bytes) {
+        long now = System.currentTimeMillis();
+        Map<ChordReference, Double> expected = new HashMap<>();
+        Map<ChordReference, Boolean> penalized = new HashMap<>();
+        for (ChordReference replica : replicas) {
+            Stats stats = peers.get(replica.getGuid());
+            expected.put(replica, this.expected(replica, bytes, false));
+            penalized.put(replica, stats != null && now - stats.failed < Constants.REPLICA_FAILURE_PENALTY * 1000);
+        }
+
+        List<ChordReference> ranked = new ArrayList<>(replicas);
+        ranked.sort(Comparator.comparing((ChordReference replica) -> penalized.get(replica)).thenComparingDouble(expected::get));
+        return ranked;
+    }
+
+    /**
+     * @return the milliseconds after which a request that did not start is hedged, the
+     * {@link Constants#HEDGE_PERCENTILE} of the recent first byte latencies
+     */
+    public synchronized long hedgeDelay() {
+        if (count < Constants.HEDGE_MIN_SAMPLES) return Constants.HEDGE_MAX_DELAY;
+        long delay = (long) this.percentile(Constants.HEDGE_PERCENTILE);
+        return Math.max(Constants.HEDGE_MIN_DELAY, Math.min(Constants.HEDGE_MAX_DELAY, delay));
+    }
+
+    private double percentile(double percentile) {
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, (int) Math.ceil(percentile * count) - 1)];
+    }
+}
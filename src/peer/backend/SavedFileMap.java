@@ -0,0 +1,197 @@
+package peer.backend;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Map of the saved files by ID, with open addressing over a single array of Peer Files. The ID is not kept as a
+ * key, each slot is matched against the ID held by the file itself, so an entry costs a reference on the array
+ * instead of a node, a key string and its characters.
+ * <p>
+ * Lookups hold the read lock and changes the write lock. Iteration goes over a copy of the values, so the map may
+ * be changed while it is being iterated, as with a concurrent map.
+ */
+public class SavedFileMap extends AbstractMap<String, PeerFile> {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private PeerFile[] table = new PeerFile[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private static int slot(int hash, int length) {
+        // the hashes of digests are already spread, the ones of other IDs are spread here
+        return (hash ^ hash >>> 16) & (length - 1);
+    }
+
+    private int find(PeerFile[] table, String fileId) {
+        int slot = slot(PeerFile.hashId(fileId), table.length);
+        while (table[slot] != null) {
+            if (table[slot].hasId(fileId)) return slot;
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return -1;
+    }
+
+    @Override
+    public PeerFile get(Object key) {
+        if (!(key instanceof String)) return null;
+        lock.readLock().lock();
+        try {
+            int slot = this.find(table, (String) key);
+            return slot < 0 ? null : table[slot];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.get(key) != null;
+    }
+
+    /**
+     * Method to add a file, the key must be the file's ID
+     */
+    @Override
+    public PeerFile put(String key, PeerFile file) {
+        if (!file.hasId(key)) throw new IllegalArgumentException("Saved files are stored by their ID");
+        lock.writeLock().lock();
+        try {
+            int slot = this.find(table, key);
+            if (slot >= 0) {
+                PeerFile previous = table[slot];
+                table[slot] = file;
+                return previous;
+            }
+            if (size + 1 > table.length * LOAD_FACTOR) this.resize(table.length * 2);
+            this.insert(table, file);
+            size++;
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void insert(PeerFile[] table, PeerFile file) {
+        int slot = slot(file.idHash(), table.length);
+        while (table[slot] != null) {
+            slot = (slot + 1) & (table.length - 1);
+        }
+        table[slot] = file;
+    }
+
+    private void resize(int capacity) {
+        PeerFile[] resized = new PeerFile[capacity];
+        for (PeerFile file : table) {
+            if (file != null) this.insert(resized, file);
+        }
+        table = resized;
+    }
+
+    @Override
+    public PeerFile remove(Object key) {
+        if (!(key instanceof String)) return null;
+        lock.writeLock().lock();
+        try {
+            int slot = this.find(table, (String) key);
+            if (slot < 0) return null;
+            PeerFile removed = table[slot];
+            table[slot] = null;
+            size--;
+
+            // move back the entries of the same run that would no longer be found
+            int mask = table.length - 1;
+            int hole = slot;
+            int next = (slot + 1) & mask;
+            while (table[next] != null) {
+                int home = slot(table[next].idHash(), table.length);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    table[hole] = table[next];
+                    table[next] = null;
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            table = new PeerFile[INITIAL_CAPACITY];
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the saved files
+     */
+    @Override
+    public Collection<PeerFile> values() {
+        List<PeerFile> values = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (PeerFile file : table) {
+                if (file != null) values.add(file);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return values;
+    }
+
+    /**
+     * @return a copy of the entries, removing an entry removes the file from the map
+     */
+    @Override
+    public Set<Entry<String, PeerFile>> entrySet() {
+        Collection<PeerFile> values = this.values();
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, PeerFile>> iterator() {
+                Iterator<PeerFile> files = values.iterator();
+                return new Iterator<>() {
+                    private PeerFile current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return files.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, PeerFile> next() {
+                        current = files.next();
+                        return new SimpleImmutableEntry<>(current.getId(), current);
+                    }
+
+                    @Override
+                    public void remove() {
+                        SavedFileMap.this.remove(current.getId());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.size();
+            }
+        };
+    }
+}
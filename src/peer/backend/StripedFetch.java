@@ -0,0 +1,434 @@
+package peer.backend;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import peer.Constants;
+import peer.Peer;
+import peer.chord.ChordReference;
+import peer.ssl.SSLConnection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Fetches the missing stripes of a {@link PartialTransfer} from the replicas of a file at the same time. Each
+ * replica has a worker that keeps taking the next stripe and fetching it with a ranged GET, so faster replicas
+ * end up serving more stripes. Replicas are ranked by the latency and the throughput measured on earlier
+ * transfers, see {@link ReplicaStats}, and late stripes are hedged. A replica that is much slower than the
+ * fastest one stops taking stripes, and the stripes of a failed replica are put back for the others. Stripes
+ * are written in place with positional writes, so they can arrive in any order.
+ */
+public class StripedFetch {
+    private static final Logger log = LogManager.getLogger(StripedFetch.class);
+
+    private final Peer peer;
+    private final ScheduledExecutorService scheduler;
+    private final ReplicaStats stats = new ReplicaStats();
+
+    /**
+     * @param peer      Peer the stripes are requested by
+     * @param scheduler Scheduler the hedged requests are started on
+     */
+    public StripedFetch(Peer peer, ScheduledExecutorService scheduler) {
+        this.peer = peer;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Method to fetch the missing stripes of a transfer. Slow replicas are only left out on the first round,
+     * after that every replica still working is used, until every stripe is received or no replica is left.
+     *
+     * @param peerFile File being fetched
+     * @param transfer Transfer to write the stripes to
+     * @param replicas Peers serving the file
+     * @return true if every stripe was received
+     * @throws InterruptedException if interrupted while the workers run
+     */
+    public boolean fetch(PeerFile peerFile, PartialTransfer transfer, List<ChordReference> replicas) throws InterruptedException {
+        ConcurrentLinkedDeque<Long> stripes = new ConcurrentLinkedDeque<>(transfer.getMissing());
+        log.info("Restoring {} stripes of {} from {} replicas", stripes.size(), peerFile.getId(), replicas.size());
+
+        List<ChordReference> available = new ArrayList<>(replicas);
+        boolean first = true;
+        while (!stripes.isEmpty() && !available.isEmpty()) {
+            List<ChordReference> ranked = stats.rank(available, transfer.stripeLength(transfer.getOffset()));
+            available.removeAll(new Round(peerFile, transfer, stripes, first).run(ranked));
+            first = false;
+        }
+        if (!stripes.isEmpty()) {
+            log.info("Could not receive {} stripes, the restore can be resumed later", stripes.size());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * One round of a striped fetch. Workers are started on the best ranked replicas, no more than there are
+     * stripes, and the other replicas are kept as spares. A stripe whose replica did not start sending it after
+     * the hedge delay, see {@link ReplicaStats#hedgeDelay()}, is requested from a spare as well, and a worker out
+     * of stripes requests a stripe still being fetched if it is expected to get it sooner. The first copy of a
+     * stripe to arrive is kept and the other request is cancelled, so the slowest replica does not hold the
+     * restore back.
+     */
+    private class Round {
+        private final PeerFile peerFile;
+        private final PartialTransfer transfer;
+        private final ConcurrentLinkedDeque<Long> stripes;
+        private final boolean leaveSlow;
+        private final long hedgeDelay = stats.hedgeDelay();
+        private final ConcurrentLinkedDeque<ChordReference> spares = new ConcurrentLinkedDeque<>();
+        private final Set<Stripe> inFlight = ConcurrentHashMap.newKeySet();
+        // bytes per millisecond of each replica, measured on its last stripe
+        private final Map<ChordReference, Double> rates = new ConcurrentHashMap<>();
+        private final List<ChordReference> failed = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger active = new AtomicInteger();
+        private final Phaser workers = new Phaser(1);
+
+        /**
+         * @param peerFile  File to be restored
+         * @param transfer  Transfer to write the stripes to
+         * @param stripes   Stripes to be fetched, failed stripes are put back
+         * @param leaveSlow if true, replicas much slower than the fastest stop taking stripes
+         */
+        Round(PeerFile peerFile, PartialTransfer transfer, ConcurrentLinkedDeque<Long> stripes, boolean leaveSlow) {
+            this.peerFile = peerFile;
+            this.transfer = transfer;
+            this.stripes = stripes;
+            this.leaveSlow = leaveSlow;
+        }
+
+        /**
+         * @param ranked Peers serving the file, fastest first
+         * @return the replicas that failed
+         */
+        List<ChordReference> run(List<ChordReference> ranked) throws InterruptedException {
+            int count = Math.min(ranked.size(), stripes.size());
+            spares.addAll(ranked.subList(count, ranked.size()));
+            for (int i = 0; i < count; i++) {
+                this.start(ranked.get(i), null);
+            }
+            workers.awaitAdvanceInterruptibly(workers.arrive());
+            return failed;
+        }
+
+        private void start(ChordReference replica, Stripe first) {
+            workers.register();
+            active.incrementAndGet();
+            peer.PROTOCOL_EXECUTOR.submit(() -> {
+                try {
+                    this.work(replica, first);
+                } catch (RuntimeException e) {
+                    log.error("Restore worker for {} failed: {}", replica, e.getMessage());
+                } finally {
+                    active.decrementAndGet();
+                    workers.arriveAndDeregister();
+                }
+            });
+        }
+
+        private void work(ChordReference replica, Stripe first) {
+            Attempt attempt = first == null ? null : first.join(replica);
+            while (true) {
+                if (attempt == null) attempt = this.next(replica);
+                if (attempt == null) {
+                    spares.addLast(replica);
+                    return;
+                }
+
+                Stripe stripe = attempt.stripe;
+                if (this.fetch(attempt)) {
+                    double fastest = rates.values().stream().mapToDouble(Double::doubleValue).max().orElse(0);
+                    if (leaveSlow && active.get() > 1 && rates.get(replica) * Constants.RESTORE_SLOW_FACTOR < fastest) {
+                        log.info("Replica {} is too slow, leaving the remaining stripes to the others", replica);
+                        return;
+                    }
+                    attempt = null;
+                    continue;
+                }
+
+                boolean abandoned = stripe.leave(attempt);
+                if (stripe.isDone()) {
+                    // the other copy of the stripe arrived first
+                    spares.addLast(replica);
+                    return;
+                }
+                log.error("Could not fetch stripe at {} from {}, giving it to another replica", stripe.position, replica);
+                failed.add(replica);
+                if (abandoned) stripes.addFirst(stripe.position);
+                ChordReference spare = spares.pollFirst();
+                if (spare != null) this.start(spare, null);
+                return;
+            }
+        }
+
+        /**
+         * @param replica Replica with nothing to fetch
+         * @return an attempt on the next stripe, or on a stripe the replica is expected to get before the
+         * replica fetching it, null if there is none
+         */
+        private Attempt next(ChordReference replica) {
+            Long position;
+            while ((position = stripes.poll()) != null) {
+                Stripe stripe = new Stripe(position);
+                inFlight.add(stripe);
+                Attempt attempt = stripe.join(replica);
+                if (attempt != null) return attempt;
+            }
+
+            long now = System.currentTimeMillis();
+            Stripe best = null;
+            double bestGain = 0;
+            for (Stripe stripe : inFlight) {
+                Attempt other = stripe.single();
+                if (other == null || other.replica.equals(replica)) continue;
+                long length = transfer.stripeLength(stripe.position);
+                boolean late = !other.output.started() && now - other.started >= hedgeDelay;
+                double gain = late ? Double.MAX_VALUE : stats.expected(other.replica, length - other.output.written(), other.output.started())
+                        - stats.expected(replica, length, false);
+                if (gain > bestGain) {
+                    best = stripe;
+                    bestGain = gain;
+                }
+            }
+            return best == null ? null : best.join(replica);
+        }
+
+        /**
+         * @param attempt Attempt to fetch a stripe
+         * @return true if the stripe was received on this attempt
+         */
+        private boolean fetch(Attempt attempt) {
+            Stripe stripe = attempt.stripe;
+            ChordReference replica = attempt.replica;
+            long length = transfer.stripeLength(stripe.position);
+            ScheduledFuture<?> hedge = scheduler.schedule(() -> this.hedge(attempt), hedgeDelay, TimeUnit.MILLISECONDS);
+            try {
+                SSLConnection connection = peer.connectToPeer(replica.getAddress());
+                long bytes = attempt.connected(connection) ? peer.fetchFile(connection, peerFile, attempt.output, stripe.position, length) : -1;
+                long now = System.currentTimeMillis();
+                long firstByte = attempt.output.getFirstWrite();
+
+                if (bytes == length && stripe.complete(attempt)) {
+                    try {
+                        transfer.received(stripe.position, attempt.output.getChecksum());
+                    } catch (IOException e) {
+                        // the stripe is on the file, a resumed restore only fetches it again
+                        log.error("Could not record the stripe at {}: {}", stripe.position, e.getMessage());
+                    }
+                    stats.started(replica, firstByte - attempt.started);
+                    stats.streamed(replica, length, now - firstByte);
+                    rates.put(replica, (double) length / Math.max(1, now - attempt.started));
+                    return true;
+                }
+                if (stripe.isDone()) {
+                    // a replica that lost the race started at least this late
+                    if (firstByte == 0) stats.started(replica, now - attempt.started);
+                } else {
+                    stats.failed(replica);
+                }
+                return false;
+            } finally {
+                hedge.cancel(false);
+                attempt.finished();
+            }
+        }
+
+        private void hedge(Attempt attempt) {
+            synchronized (attempt) {
+                // the worker is still registered while the attempt runs, so the round can not end before the spare starts
+                if (attempt.done || attempt.output.started() || attempt.stripe.isDone()) return;
+                ChordReference spare = spares.pollFirst();
+                if (spare == null) return;
+                log.info("{} did not start sending the stripe at {} after {}ms, requesting it from {} too",
+                        attempt.replica, attempt.stripe.position, hedgeDelay, spare);
+                this.start(spare, attempt.stripe);
+            }
+        }
+
+        /**
+         * Stripe being fetched, by one replica or by two
+         */
+        private class Stripe {
+            private final long position;
+            private final List<Attempt> attempts = new ArrayList<>();
+            private boolean done = false;
+
+            Stripe(long position) {
+                this.position = position;
+            }
+
+            synchronized Attempt join(ChordReference replica) {
+                if (done || attempts.size() == 2) return null;
+                for (Attempt attempt : attempts) {
+                    if (attempt.replica.equals(replica)) return null;
+                }
+                Attempt attempt = new Attempt(this, replica);
+                attempts.add(attempt);
+                return attempt;
+            }
+
+            synchronized Attempt single() {
+                return !done && attempts.size() == 1 ? attempts.get(0) : null;
+            }
+
+            /**
+             * @param winner Attempt that received the stripe
+             * @return true if it was the first one, the other attempt is cancelled
+             */
+            synchronized boolean complete(Attempt winner) {
+                if (done) return false;
+                done = true;
+                for (Attempt attempt : attempts) {
+                    if (attempt != winner) attempt.cancel();
+                }
+                inFlight.remove(this);
+                return true;
+            }
+
+            /**
+             * @param attempt Attempt that failed
+             * @return true if no other replica is fetching the stripe, it has to be put back
+             */
+            synchronized boolean leave(Attempt attempt) {
+                attempts.remove(attempt);
+                if (done || !attempts.isEmpty()) return false;
+                inFlight.remove(this);
+                return true;
+            }
+
+            synchronized boolean isDone() {
+                return done;
+            }
+        }
+
+        /**
+         * Request of a stripe to a replica, cancelled by closing its connection
+         */
+        private class Attempt {
+            private final Stripe stripe;
+            private final ChordReference replica;
+            private final PositionalChannel output;
+            private final long started = System.currentTimeMillis();
+            private SSLConnection connection;
+            private boolean cancelled = false;
+            private boolean done = false;
+
+            Attempt(Stripe stripe, ChordReference replica) {
+                this.stripe = stripe;
+                this.replica = replica;
+                this.output = new PositionalChannel(transfer.getChannel(), stripe.position - transfer.getOffset());
+            }
+
+            /**
+             * @param connection Connection to the replica, or null
+             * @return true if the stripe can be requested on the connection
+             */
+            synchronized boolean connected(SSLConnection connection) {
+                this.connection = connection;
+                if (connection != null && cancelled) abort(connection);
+                return connection != null && !cancelled;
+            }
+
+            synchronized void cancel() {
+                cancelled = true;
+                output.cancel();
+                if (connection != null) abort(connection);
+            }
+
+            synchronized void finished() {
+                done = true;
+            }
+        }
+    }
+
+    private static void abort(SSLConnection connection) {
+        try {
+            connection.getSocketChannel().close();
+        } catch (IOException e) {
+            log.debug("Could not close connection: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Writable Channel writing to a file from a fixed position, so several channels can write to different
+     * ranges of the same file at the same time. A CRC32 of the bytes written is kept as they are written, and
+     * the channel can be cancelled, after which it refuses every write.
+     */
+    private static class PositionalChannel implements WritableByteChannel {
+        private final FileChannel file;
+        private final CRC32 checksum = new CRC32();
+        private final long start;
+        private volatile long position;
+        private volatile long firstWrite = 0;
+        private volatile boolean cancelled = false;
+
+        PositionalChannel(FileChannel file, long position) {
+            this.file = file;
+            this.start = position;
+            this.position = position;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (cancelled) throw new ClosedChannelException();
+            if (firstWrite == 0) firstWrite = System.currentTimeMillis();
+            checksum.update(src.duplicate());
+            int written = 0;
+            // the transport writes each record once, so the record is written completely
+            while (src.hasRemaining()) {
+                written += file.write(src, position + written);
+            }
+            position += written;
+            return written;
+        }
+
+        int getChecksum() {
+            return (int) checksum.getValue();
+        }
+
+        /**
+         * @return the time the first bytes arrived, 0 if none did
+         */
+        long getFirstWrite() {
+            return firstWrite;
+        }
+
+        boolean started() {
+            return firstWrite != 0;
+        }
+
+        long written() {
+            return position - start;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !cancelled && file.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // the file is shared, it is closed by its owner
+        }
+    }
+}
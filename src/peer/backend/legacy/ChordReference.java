@@ -0,0 +1,18 @@
+package peer.backend.legacy;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * Serialized form of a reference to a peer before the metadata log
+ */
+public class ChordReference implements Serializable {
+    private static final long serialVersionUID = -6082862859049710346L;
+
+    private InetSocketAddress address;
+    private int guid;
+
+    public peer.chord.ChordReference toReference() {
+        return new peer.chord.ChordReference(address, guid);
+    }
+}
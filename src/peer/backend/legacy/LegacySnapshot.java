@@ -0,0 +1,53 @@
+package peer.backend.legacy;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Reader of the state written by Java serialization before the metadata log. The classes of the stream are
+ * resolved to the ones of this package, and nothing outside them and the JDK is deserialized.
+ */
+public class LegacySnapshot {
+    private static final Map<String, Class<?>> CLASSES = Map.of(
+            "peer.backend.PeerInternalState", PeerInternalState.class,
+            "peer.backend.PeerFile", PeerFile.class,
+            "peer.chord.ChordReference", ChordReference.class);
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=32;peer.backend.legacy.*;java.base/*;!*");
+
+    /**
+     * @param path Serialized state
+     * @return true if the file starts as a Java serialization stream
+     */
+    public static boolean matches(Path path) {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return in.readShort() == ObjectStreamConstants.STREAM_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param path Serialized state
+     * @return the state
+     * @throws IOException on error reading the file, or if it does not hold a peer's state
+     */
+    public static PeerInternalState read(Path path) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path))) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                Class<?> legacy = CLASSES.get(desc.getName());
+                return legacy != null ? legacy : super.resolveClass(desc);
+            }
+        }) {
+            in.setObjectInputFilter(FILTER);
+            Object state = in.readObject();
+            if (!(state instanceof PeerInternalState)) throw new InvalidClassException("Not a peer's state");
+            return (PeerInternalState) state;
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package peer.backend.legacy;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Serialized form of a file's metadata before the metadata log
+ */
+public class PeerFile implements Serializable {
+    private static final long serialVersionUID = 7291012794071524583L;
+
+    private int key;
+    private String id;
+    private ChordReference owner;
+    private long size;
+    private int replicationDegree;
+    private Set<Integer> keys;
+    public boolean beingDeleted;
+
+    public int getKey() {
+        return key;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public ChordReference getOwner() {
+        return owner;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getReplicationDegree() {
+        return replicationDegree;
+    }
+
+    public Set<Integer> getKeys() {
+        return keys != null ? keys : new HashSet<>();
+    }
+}
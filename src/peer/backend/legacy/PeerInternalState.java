@@ -0,0 +1,29 @@
+package peer.backend.legacy;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serialized form of the peer's state before the metadata log, it has the name, fields and serial version of
+ * the class that wrote it
+ */
+public class PeerInternalState implements Serializable {
+    private static final long serialVersionUID = -1953448217418771558L;
+
+    private ConcurrentHashMap<String, PeerFile> sentFilesMap;
+    private ConcurrentHashMap<String, PeerFile> savedFilesMap;
+    private long capacity;
+    private long occupation;
+
+    public ConcurrentHashMap<String, PeerFile> getSentFilesMap() {
+        return sentFilesMap != null ? sentFilesMap : new ConcurrentHashMap<>();
+    }
+
+    public ConcurrentHashMap<String, PeerFile> getSavedFilesMap() {
+        return savedFilesMap != null ? savedFilesMap : new ConcurrentHashMap<>();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Contains the classes the peer's state was serialized with before the metadata log and snapshot, only used to
+ * read the state of a peer that is upgraded
+ */
+package peer.backend.legacy;
@@ -1,18 +1,22 @@
 package peer.chord;
 
 import messages.Message;
+import messages.application.Ack;
 import messages.chord.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import peer.Constants;
 import peer.Peer;
+import peer.Threads;
 import peer.backend.PeerFile;
 import peer.backend.PeerInternalState;
 import peer.ssl.MessageTimeoutException;
 import peer.ssl.SSLConnection;
 import peer.ssl.SSLPeer;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -33,8 +37,10 @@ public abstract class ChordPeer extends SSLPeer {
     protected ChordReference bootPeer;
     protected ChordReference predecessor;
     protected ChordReference[] routingTable = new ChordReference[Constants.M_BIT];
+    // the next peers on the ring after the successor, refreshed on every stabilization
+    protected List<ChordReference> successorList = new ArrayList<>();
     protected ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(2);
-    protected ExecutorService executorService = Executors.newFixedThreadPool(16);
+    protected ExecutorService executorService = Threads.pool(16);
     private int nextFinger = 1;
 
     /**
@@ -117,6 +123,14 @@ public abstract class ChordPeer extends SSLPeer {
         }
         log.debug("Trying to join the CHORD circle on: " + this.bootPeer);
 
+        try {
+            // peers started together do not all join through the boot peer at the same time
+            Thread.sleep(ThreadLocalRandom.current().nextLong(Constants.JOIN_JITTER));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
         SSLConnection bootPeerConnection = this.connectToPeer(bootPeer.getAddress());
         if (bootPeerConnection == null) {
             log.error("Aborting join operation...");
@@ -151,64 +165,52 @@ public abstract class ChordPeer extends SSLPeer {
         this.closeConnection(bootPeerConnection);
         this.setSuccessor(this.findSuccessor(bootPeer, this.guid));
 
-        SSLConnection connection = this.connectToPeer(successor().getAddress());
-        this.send(connection, new Copy(new ChordReference(this.address, this.guid)));
-        CopyReply copyReply;
-        try {
-            copyReply = (CopyReply) this.receiveBlocking(connection, 100);
-        } catch (MessageTimeoutException e) {
-            log.error("Could not receive copy reply...");
-            this.startPeriodicChecks();
-            return true;
-        }
-        this.closeConnection(connection);
-
-        List<PeerFile> files = copyReply.getFiles();
-        if (files.size() == 0) {
-            this.startPeriodicChecks();
-            return true;
-        }
-
-        log.info("Reclaiming {} files...", files.size());
-        List<Future<PeerFile>> ops = new ArrayList<>();
-        for (PeerFile file : files) {
-            Callable<PeerFile> op = () -> this.reclaimFile(file);
-            ops.add(executorService.submit(op));
+        List<PeerFile> files = this.requestCopy(successor());
+        if (!files.isEmpty()) {
+            log.info("Taking over {} files from {}...", files.size(), successor());
+            int received = ((Peer) this).receiveReplicas(successor(), files);
+            log.info("Took over {} of {} files", received, files.size());
         }
 
-        for (Future<PeerFile> op : ops) {
-            try {
-                log.info("Reclaimed: {}", op.get());
-            } catch (InterruptedException | ExecutionException e) {
-                log.error("Error processing operation");
-            }
-        }
-
-        log.info("Files reclaimed!");
-
         this.startPeriodicChecks();
         return true;
     }
 
     /**
-     * Method to reclaim a file which should be on this peer
+     * Method to get the files this peer takes over from its successor when it joins, the successor sends them
+     * one page at a time
      *
-     * @param file File to be reclaimed
-     * @return the reclaimed peer file
-     * @see PeerFile
+     * @param successor Successor of this peer
+     * @return the files this peer should serve, with its key
      */
-    private PeerFile reclaimFile(PeerFile file) {
-        SSLConnection newConnection = this.connectToPeer(successor().getAddress());
-        boolean result = ((Peer) this).receiveFile(newConnection, file, file.getId());
-        // connection is closed on receive file because there's nothing left to do on close
-
-        if (result) {
-            // TODO send delete for file ID
-        } else {
-            return null;
-        }
-
-        return file;
+    private List<PeerFile> requestCopy(ChordReference successor) {
+        ChordReference self = new ChordReference(this.address, this.guid);
+        List<PeerFile> files = new ArrayList<>();
+        String after = null;
+        do {
+            SSLConnection connection = this.connectToPeer(successor.getAddress());
+            if (connection == null) break;
+            try {
+                this.send(connection, new Copy(self, after));
+                Message reply = this.receiveBlocking(connection, 100);
+                if (!(reply instanceof CopyReply)) break;
+                CopyReply page = (CopyReply) reply;
+                if (page.getCount() > 0) {
+                    connection.setPeerNetData(ByteBuffer.allocate(Constants.TLS_CHUNK_SIZE));
+                    connection.getSocketChannel().configureBlocking(true);
+                    this.send(connection, new Ack(self));
+                    page.setList(this.receiveBytes(connection, page.getListSize()), this.guid);
+                    files.addAll(page.getFiles());
+                }
+                after = page.getNext();
+            } catch (MessageTimeoutException | IOException | IllegalArgumentException e) {
+                log.error("Could not receive the files to take over: {}", e.getMessage());
+                break;
+            } finally {
+                this.closeConnection(connection);
+            }
+        } while (after != null);
+        return files;
     }
 
     /**
@@ -394,6 +396,73 @@ public abstract class ChordPeer extends SSLPeer {
         if (successor().getGuid() != this.guid)
             this.notifyPeer(successor(), new ChordReference(this.address, this.guid));
 
+        this.updateSuccessorList();
+    }
+
+    /**
+     * Method to refresh the successor list, it is the successor followed by the successor's own list
+     */
+    private void updateSuccessorList() {
+        ChordReference successor = successor();
+        if (successor == null || successor.getGuid() == this.guid) {
+            synchronized (this) {
+                this.successorList = new ArrayList<>();
+            }
+            return;
+        }
+
+        List<ChordReference> successors = this.requestSuccessors(successor);
+        if (successors == null) return;
+
+        List<ChordReference> updated = new ArrayList<>();
+        updated.add(successor);
+        for (ChordReference reference : successors) {
+            if (updated.size() == Constants.SUCCESSOR_LIST_SIZE) break;
+            if (reference.getGuid() == this.guid || updated.contains(reference)) continue;
+            updated.add(reference);
+        }
+        synchronized (this) {
+            this.successorList = updated;
+        }
+    }
+
+    /**
+     * @return the successor list of this peer, the successor first
+     */
+    public synchronized List<ChordReference> getSuccessorList() {
+        if (successorList.isEmpty() && successor() != null && successor().getGuid() != this.guid) {
+            return List.of(successor());
+        }
+        return new ArrayList<>(successorList);
+    }
+
+    /**
+     * Method to get the successor list of a peer
+     *
+     * @param target Peer to be asked
+     * @return the peer's successor list, or null if it could not be received
+     */
+    public List<ChordReference> getSuccessors(ChordReference target) {
+        if (target.getGuid() == this.guid) return this.getSuccessorList();
+        return this.requestSuccessors(target);
+    }
+
+    private List<ChordReference> requestSuccessors(ChordReference target) {
+        SSLConnection connection = this.connectToPeer(target.getAddress());
+        if (connection == null) return null;
+
+        ChordReference self = new ChordReference(this.address, this.guid);
+        this.send(connection, new Successors(self));
+        Message reply;
+        try {
+            reply = this.receiveBlocking(connection, 50);
+        } catch (MessageTimeoutException e) {
+            log.debug("Could not receive successor list!");
+            this.closeConnection(connection);
+            return null;
+        }
+        this.closeConnection(connection);
+        return reply instanceof SuccessorsReply ? ((SuccessorsReply) reply).getSuccessors() : null;
     }
 
     /**
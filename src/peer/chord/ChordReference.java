@@ -8,6 +8,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,6 +18,7 @@ import java.util.regex.Pattern;
  */
 public class ChordReference implements Serializable {
     private static final Logger log = LogManager.getLogger(ChordReference.class);
+    private static final ConcurrentHashMap<Integer, ChordReference> interned = new ConcurrentHashMap<>();
     private InetSocketAddress address;
     private int guid;
 
@@ -49,6 +51,19 @@ public class ChordReference implements Serializable {
         return null;
     }
 
+    /**
+     * Method to get a shared instance of a reference, so the metadata of many files owned by the same peer
+     * holds a single copy of it. A peer that comes back on a different address replaces the shared instance.
+     *
+     * @param reference Reference to be interned
+     * @return the shared reference with the same GUID and address
+     */
+    public static ChordReference intern(ChordReference reference) {
+        if (reference == null) return null;
+        return interned.compute(reference.guid, (guid, current) ->
+                current != null && current.address.equals(reference.address) ? current : new ChordReference(reference.address, guid));
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
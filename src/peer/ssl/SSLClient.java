@@ -2,6 +2,7 @@ package peer.ssl;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import peer.Constants;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -9,7 +10,6 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.Random;
 
 /**
  * Client Side for an SSLPeer, this class is responsible for knowing how to make a connection to another peer.
@@ -45,13 +45,7 @@ public class SSLClient<M> extends SSLCommunication<M> {
      * @return an SSLConnection if the connection was successful
      * @throws IOException on Error connecting to the peer
      */
-    public synchronized SSLConnection connectToPeer(InetSocketAddress socketAddress) throws IOException {
-        try {
-            Thread.sleep(new Random().nextInt(1000));
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
+    public SSLConnection connectToPeer(InetSocketAddress socketAddress) throws IOException {
         SSLEngine engine = context.createSSLEngine(socketAddress.getAddress().getHostAddress(), socketAddress.getPort());
         engine.setUseClientMode(true);
 
@@ -61,14 +55,18 @@ public class SSLClient<M> extends SSLCommunication<M> {
         ByteBuffer peerNetData = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
 
         SocketChannel socketChannel = SocketChannel.open();
-        socketChannel.configureBlocking(false);
-        socketChannel.connect(socketAddress);
+        try {
+            // the connect blocks until it is accepted, a peer that is down must not hold the caller for the
+            // system's connect timeout
+            socketChannel.socket().connect(socketAddress, (int) Constants.CONNECT_TIMEOUT);
+            socketChannel.configureBlocking(false);
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
 
         SSLConnection connection = new SSLConnection(socketChannel, engine, false, appData, netData, peerData, peerNetData);
 
-        while (!socketChannel.finishConnect()) {
-            // can do something here...
-        }
         engine.beginHandshake();
         try {
             connection.setHandshake(this.doHandshake(connection));
@@ -3,6 +3,7 @@ package peer.ssl;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import peer.Constants;
+import peer.Threads;
 
 import javax.net.ssl.*;
 import java.io.FileInputStream;
@@ -10,13 +11,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.KeyStore;
 import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Class Responsible to transport and receive the data, and other mechanisms related to SSLEngine complex
@@ -29,7 +29,8 @@ public class SSLCommunication<M> {
     private final Decoder<M> decoder;
     private final Encoder<M> encoder;
     private final Sizer<M> sizer;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // the delegated tasks of the engines run one at a time, also on the virtual thread mode
+    private final ExecutorService executor = Threads.single();
 
     /**
      * Constructor for an SSLCommunication, it takes the decoder/encoder/sizer for the message conversion
@@ -296,13 +297,14 @@ public class SSLCommunication<M> {
     }
 
     /**
-     * Method to send a File using a FileChannel
+     * Method to send a File using a Channel, the channel must fill the buffer on every read until the end of
+     * the file, as the receiver expects full records
      *
      * @param connection  Connection to be used
-     * @param fileChannel File Channel used to read the file to be send
+     * @param fileChannel Channel used to read the file to be send
      * @throws IOException on error sending/reading the file
      */
-    protected void sendFile(SSLConnection connection, FileChannel fileChannel) throws IOException, InterruptedException {
+    protected void sendFile(SSLConnection connection, ReadableByteChannel fileChannel) throws IOException, InterruptedException {
         SSLEngine engine = connection.getEngine();
 
         connection.setAppData(ByteBuffer.allocate(Constants.CHUNK_SIZE));
@@ -339,20 +341,24 @@ public class SSLCommunication<M> {
     }
 
     /**
-     * Method to receive a file to a File Channel
+     * Method to receive a file to a Channel
      *
      * @param connection  connection to be used
-     * @param fileChannel File Channel used to write the file
+     * @param fileChannel Channel used to write the file
+     * @param remaining   bytes of the file still to be received, used to know the size of the last record
      * @return bytes written to the file
      * @throws IOException on error Receiving/writing the file
      */
-    protected int receiveFile(SSLConnection connection, FileChannel fileChannel) throws IOException {
+    protected int receiveFile(SSLConnection connection, WritableByteChannel fileChannel, long remaining) throws IOException {
         SSLEngine engine = connection.getEngine();
 
         connection.getPeerNetData().clear();
         connection.getSocketChannel().socket().setSoTimeout(1000);
         ReadableByteChannel byteChannel = Channels.newChannel(connection.getSocketChannel().socket().getInputStream());
 
+        // the last record is smaller than the others, knowing its size avoids waiting for the read to time out
+        long lastRecord = remaining < Constants.CHUNK_SIZE ? remaining + (Constants.TLS_CHUNK_SIZE - Constants.CHUNK_SIZE) : -1;
+
         int bytesRead = 0;
         do {
             int read;
@@ -363,8 +369,12 @@ public class SSLCommunication<M> {
                 break;
             }
             log.debug("Read in single read: {}", read);
+            if (read < 0) {
+                if (bytesRead == 0) bytesRead = read;
+                break;
+            }
             bytesRead += read;
-        } while (bytesRead % Constants.TLS_CHUNK_SIZE != 0);
+        } while (bytesRead % Constants.TLS_CHUNK_SIZE != 0 && bytesRead != lastRecord);
 
         connection.getPeerNetData().flip();
 
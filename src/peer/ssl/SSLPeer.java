@@ -5,19 +5,24 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import peer.Constants;
 import peer.Peer;
+import peer.Threads;
 import peer.Utils;
+import peer.backend.Compression;
 import peer.backend.PeerInternalState;
 
 import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Abstract Class intended to be used by an higher layer, containing application data to be transferred using
@@ -31,7 +36,7 @@ public abstract class SSLPeer {
 
     protected InetSocketAddress address;
     private final SSLContext context;
-    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final ExecutorService executor = Threads.pool(4);
     private final SSLServer<Message> server;
     private final SSLClient<Message> client;
 
@@ -100,7 +105,7 @@ public abstract class SSLPeer {
      * @param address Address to connect to
      * @return an SSLConnection if the connection was successful or null otherwise
      */
-    public synchronized SSLConnection connectToPeer(InetSocketAddress address) {
+    public SSLConnection connectToPeer(InetSocketAddress address) {
         try {
             log.debug("Connecting to peer: " + address);
             return this.client.connectToPeer(address);
@@ -168,19 +173,22 @@ public abstract class SSLPeer {
      * Method to receive a file with a known size
      *
      * @param connection  Connection to be used
-     * @param fileChannel File Channel to be used
+     * @param fileChannel Channel to be used
      * @param size        File's Size in Bytes
+     * @return bytes written to the file channel
      */
-    public void receiveFile(SSLConnection connection, FileChannel fileChannel, long size) {
+    public long receiveFile(SSLConnection connection, WritableByteChannel fileChannel, long size) {
+        long total = 0;
+        // nothing is sent for an empty file, waiting for a record would only time out
+        if (size == 0) return total;
         try {
             final long started = System.currentTimeMillis();
 
-            long total = 0;
             connection.setPeerData(ByteBuffer.allocate(Constants.CHUNK_SIZE));
             while (true) {
                 long bytes;
-                bytes = this.client.receiveFile(connection, fileChannel);
-                total += bytes;
+                bytes = this.client.receiveFile(connection, fileChannel, size - total);
+                if (bytes > 0) total += bytes;
 
                 System.out.printf("Receiving (%s): %s (%s)\r",
                         Utils.prettySize(size),
@@ -189,21 +197,58 @@ public abstract class SSLPeer {
                 );
                 if (bytes < 0 || total == size) {
                     System.out.printf("Received (%s): %s\n", Utils.prettySize(size), Utils.progressBar(total, size));
-                    return;
+                    return total;
                 }
             }
         } catch (IOException e) {
             log.error("Error receiving file: {}", e.getMessage());
         }
+        return total;
+    }
+
+    /**
+     * Method to receive a file sent with a codec. The compressed size is not known, so records are received
+     * until the end of the stream, the padding after it completes the last record.
+     *
+     * @param connection  Connection to be used
+     * @param fileChannel Channel the file is written to, decompressed
+     * @param size        File's Size in Bytes
+     * @param codec       Codec negotiated for the transfer
+     * @return bytes written to the file channel
+     */
+    public long receiveFile(SSLConnection connection, WritableByteChannel fileChannel, long size, String codec) {
+        if (!Compression.DEFLATE.equals(codec)) return this.receiveFile(connection, fileChannel, size);
+        if (size == 0) return 0;
+        Compression.Decompressor decompressor = Compression.decompress(fileChannel);
+        try {
+            final long started = System.currentTimeMillis();
+
+            connection.setPeerData(ByteBuffer.allocate(Constants.CHUNK_SIZE));
+            while (!decompressor.isFinished()) {
+                if (this.client.receiveFile(connection, decompressor, Constants.CHUNK_SIZE) < 0) break;
+
+                System.out.printf("Receiving (%s): %s (%s)\r",
+                        Utils.prettySize(size),
+                        Utils.progressBar(decompressor.getProduced(), size),
+                        Utils.rate(started, System.currentTimeMillis(), decompressor.getProduced())
+                );
+            }
+            System.out.printf("Received (%s): %s\n", Utils.prettySize(size), Utils.progressBar(decompressor.getProduced(), size));
+        } catch (IOException e) {
+            log.error("Error receiving file: {}", e.getMessage());
+        } finally {
+            decompressor.close();
+        }
+        return decompressor.getProduced();
     }
 
     /**
      * Method to send a file to another peer
      *
      * @param connection  connection to be Used
-     * @param fileChannel File Channel Used to read the file from the system
+     * @param fileChannel Channel Used to read the file from the system
      */
-    public void sendFile(SSLConnection connection, FileChannel fileChannel) {
+    public void sendFile(SSLConnection connection, ReadableByteChannel fileChannel) {
         try {
             this.client.sendFile(connection, fileChannel);
         } catch (IOException | InterruptedException e) {
@@ -211,6 +256,35 @@ public abstract class SSLPeer {
         }
     }
 
+    /**
+     * Method to send a block of bytes with the same framing as a file, used for data that does not fit
+     * on a single message
+     *
+     * @param connection connection to be Used
+     * @param bytes      bytes to be sent
+     */
+    public void sendBytes(SSLConnection connection, byte[] bytes) {
+        if (bytes.length == 0) return;
+        this.sendFile(connection, Channels.newChannel(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Method to receive a block of bytes sent with {@link #sendBytes(SSLConnection, byte[])}, the connection
+     * must be on blocking mode
+     *
+     * @param connection Connection to be used
+     * @param size       Number of bytes expected
+     * @return the bytes received
+     * @throws IOException if the bytes could not be received
+     */
+    public byte[] receiveBytes(SSLConnection connection, int size) throws IOException {
+        if (size == 0) return new byte[0];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+        long received = this.receiveFile(connection, Channels.newChannel(bytes), size);
+        if (received != size) throw new IOException(String.format("Expected %d bytes but received %d", size, received));
+        return bytes.toByteArray();
+    }
+
     /**
      * Method to handle a notification, this is called by the server when a new message is received
      *